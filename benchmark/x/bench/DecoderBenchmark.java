@@ -0,0 +1,208 @@
+/**
+ * @brief x bench holds the tools used to measure the x lib http stack. It is not part of the library
+ *
+ * @author Callum Taylor
+ **/
+package x.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import x.lib.ResponseDecoder;
+
+/**
+ * @brief Measures how fast String response bodies are read by {@link ResponseDecoder} and by the line reader it
+ * replaced.
+ *
+ * The bodies are JSON-like UTF-8 text with a line break every 80 or so characters and a few multi byte characters,
+ * read from memory so that only the decoding is measured. Each size is read with the old
+ * <code>BufferedReader.readLine()</code> loop, and with {@link ResponseDecoder#readString} both with and without a
+ * <code>Content-Length</code>.
+ *
+ * Example:
+ * @code
+ * for (DecoderBenchmark.Result result : DecoderBenchmark.runAll())
+ * {
+ * 	Debug.out(result);
+ * }
+ * @endcode
+ */
+public class DecoderBenchmark
+{
+	/**
+	 * The body sizes measured by {@link runAll}, from 10KB to 10MB
+	 */
+	public static final int[] DEFAULT_BODY_SIZES = {10 * 1024, 100 * 1024, 1024 * 1024, 10 * 1024 * 1024};
+
+	private static final long BYTES_PER_RUN = 200L * 1024 * 1024;
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final String LINE = "{\"id\": 1234567, \"name\": \"caf\u00e9 \u00fcber na\u00efve\", \"tags\": [\"a\", \"b\", \"c\"]},\n";
+
+	/**
+	 * Measures every size in {@link DEFAULT_BODY_SIZES}, reading 200MB of bodies with each reader
+	 * @return The results, three for each size in the order line reader, decoder with length and decoder without
+	 * @throws IOException
+	 */
+	public static List<Result> runAll() throws IOException
+	{
+		List<Result> results = new ArrayList<Result>();
+
+		for (int size : DEFAULT_BODY_SIZES)
+		{
+			results.addAll(run(size, (int)Math.max(1, BYTES_PER_RUN / size)));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Measures one body size. Each reader reads the body as many times again before it is measured, so that the
+	 * code is compiled
+	 * @param bodySize The size of the body in bytes
+	 * @param iterations The amount of times each reader reads the body
+	 * @return The results in the order line reader, decoder with length and decoder without
+	 * @throws IOException
+	 */
+	public static List<Result> run(int bodySize, int iterations) throws IOException
+	{
+		byte[] body = createBody(bodySize);
+		List<Result> results = new ArrayList<Result>();
+
+		for (int reader = 0; reader < 3; reader++)
+		{
+			measure(reader, body, iterations);
+			results.add(measure(reader, body, iterations));
+		}
+
+		return results;
+	}
+
+	private static Result measure(int reader, byte[] body, int iterations) throws IOException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+
+		long checksum = 0;
+		long start = System.nanoTime();
+
+		for (int index = 0; index < iterations; index++)
+		{
+			InputStream is = new ByteArrayInputStream(body);
+
+			if (reader == 0)
+			{
+				checksum += readLines(is).length();
+			}
+			else
+			{
+				checksum += ResponseDecoder.readString(is, reader == 1 ? body.length : -1, CONTENT_TYPE).length();
+			}
+		}
+
+		Result result = new Result();
+		result.reader = reader == 0 ? "readLine" : reader == 1 ? "ResponseDecoder" : "ResponseDecoder, no length";
+		result.bodySize = body.length;
+		result.iterations = iterations;
+		result.duration = (System.nanoTime() - start) / 1000;
+		result.characters = checksum / iterations;
+
+		return result;
+	}
+
+	/**
+	 * Reads a body the way {@link x.lib.AsyncHttpClient} did before it used {@link ResponseDecoder}
+	 */
+	private static String readLines(InputStream i) throws IOException
+	{
+		InputStream is = new BufferedInputStream(i);
+		InputStreamReader reader = new InputStreamReader(is);
+		BufferedReader rd = new BufferedReader(reader);
+		String line;
+		StringBuilder sb = new StringBuilder();
+
+		while ((line = rd.readLine()) != null)
+		{
+			sb.append(line);
+		}
+
+		rd.close();
+
+		return sb.toString();
+	}
+
+	private static byte[] createBody(int bodySize) throws UnsupportedEncodingException
+	{
+		byte[] line = LINE.getBytes("UTF-8");
+		byte[] body = new byte[bodySize];
+
+		for (int offset = 0; offset < bodySize; offset += line.length)
+		{
+			System.arraycopy(line, 0, body, offset, Math.min(line.length, bodySize - offset));
+		}
+
+		// don't end on half of a multi byte character
+		for (int index = Math.max(0, bodySize - 8); index < bodySize; index++)
+		{
+			body[index] = ' ';
+		}
+
+		return body;
+	}
+
+	/**
+	 * @brief The outcome of reading one body size with one reader
+	 */
+	public static class Result
+	{
+		/**
+		 * The name of the reader
+		 */
+		public String reader;
+		/**
+		 * The size of the body in bytes
+		 */
+		public int bodySize;
+		/**
+		 * The amount of times the body was read
+		 */
+		public int iterations;
+		/**
+		 * The time the reads took in microseconds
+		 */
+		public long duration;
+		/**
+		 * The length of the String read from the body
+		 */
+		public long characters;
+
+		/**
+		 * Gets the average time one read took
+		 * @return The time in microseconds
+		 */
+		public double getTimePerRead()
+		{
+			return duration / (double)iterations;
+		}
+
+		/**
+		 * Gets the amount of body bytes read per second
+		 * @return The throughput in MB/s
+		 */
+		public double getThroughput()
+		{
+			return duration == 0 ? 0 : (bodySize * (double)iterations / (1024.0 * 1024.0)) / (duration / 1000000.0);
+		}
+
+		@Override public String toString()
+		{
+			return String.format("%s: %dKB x%d, %.1fus per read, %.1fMB/s, %d chars", reader, bodySize / 1024, iterations, getTimePerRead(), getThroughput(), characters);
+		}
+	}
+}
@@ -0,0 +1,513 @@
+/**
+ * @brief x bench holds the tools used to measure the x lib http stack. It is not part of the library
+ *
+ * @author Callum Taylor
+ **/
+package x.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import x.lib.Debug;
+
+/**
+ * @brief A small HTTP/1.1 server on the loopback interface, used to benchmark {@link HttpTransport}s against each other.
+ *
+ * Every request is answered with a 200 and a body of the response size after the latency, which stands in for the
+ * time a real server takes to process the request. Connections are kept alive and pipelined requests are answered
+ * in order. The server runs on a single thread with a selector, so it can hold thousands of connections without
+ * adding threads to the process being measured.
+ *
+ * Request bodies must be sent with a <code>Content-Length</code>, chunked bodies are answered with a 411.
+ *
+ * Example:
+ * @code
+ * LoopbackServer server = new LoopbackServer(4096, 20);
+ * server.start();
+ *
+ * TransportBenchmark.Result result = new TransportBenchmark(new UrlConnectionTransport()).run(server.getUrl("/"), 1000, 16);
+ *
+ * server.stop();
+ * @endcode
+ */
+public class LoopbackServer
+{
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int MAX_HEADER_SIZE = 65536;
+	private static final int BACKLOG = 16384;
+
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mConnectionCount = new AtomicLong();
+	private final PriorityQueue<Pending> mPending = new PriorityQueue<Pending>();
+	private volatile int mResponseSize;
+	private volatile long mLatency;
+	private volatile boolean mRunning;
+	private byte[] mResponse;
+	private byte[] mHeadResponse;
+	private Selector mSelector;
+	private ServerSocketChannel mServerChannel;
+	private Thread mThread;
+	private long mSequence = 0;
+
+	/**
+	 * Default constructor
+	 * @param responseSize The size of the response body in bytes
+	 * @param latency The time in MS to wait before answering each request
+	 */
+	public LoopbackServer(int responseSize, long latency)
+	{
+		setResponseSize(responseSize);
+		setLatency(latency);
+	}
+
+	/**
+	 * Sets the size of the response body
+	 * @param responseSize The size in bytes
+	 */
+	public synchronized void setResponseSize(int responseSize)
+	{
+		mResponseSize = Math.max(0, responseSize);
+
+		byte[] header = ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + mResponseSize + "\r\n\r\n").getBytes();
+		byte[] response = new byte[header.length + mResponseSize];
+		System.arraycopy(header, 0, response, 0, header.length);
+
+		for (int index = header.length; index < response.length; index++)
+		{
+			response[index] = (byte)('a' + (index % 26));
+		}
+
+		mHeadResponse = header;
+		mResponse = response;
+	}
+
+	/**
+	 * Sets the time to wait before answering each request
+	 * @param latency The time in MS
+	 */
+	public void setLatency(long latency)
+	{
+		mLatency = Math.max(0, latency);
+	}
+
+	/**
+	 * Starts the server on a free port
+	 * @throws IOException If the server could not be bound
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (mRunning)
+		{
+			return;
+		}
+
+		mSelector = Selector.open();
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().setReuseAddress(true);
+		mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), BACKLOG);
+		mServerChannel.configureBlocking(false);
+		mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+		mRunning = true;
+		mThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				loop();
+			}
+		}, "XHttp-loopback");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the server and closes all of its connections
+	 */
+	public synchronized void stop()
+	{
+		if (!mRunning)
+		{
+			return;
+		}
+
+		mRunning = false;
+		mSelector.wakeup();
+
+		try
+		{
+			mThread.join(5000);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the port the server is listening on
+	 * @return The port, or -1 if the server has not been started
+	 */
+	public int getPort()
+	{
+		return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Gets a url on the server
+	 * @param path The path, starting with /
+	 * @return The url
+	 */
+	public String getUrl(String path)
+	{
+		return "http://127.0.0.1:" + getPort() + path;
+	}
+
+	/**
+	 * Gets the amount of requests answered since the server started
+	 * @return The amount of requests
+	 */
+	public long getRequestCount()
+	{
+		return mRequestCount.get();
+	}
+
+	/**
+	 * Gets the amount of connections accepted since the server started. Fewer connections than requests
+	 * means connections were kept alive or multiplexed
+	 * @return The amount of connections
+	 */
+	public long getConnectionCount()
+	{
+		return mConnectionCount.get();
+	}
+
+	private void loop()
+	{
+		try
+		{
+			while (mRunning)
+			{
+				long timeout = 0;
+				Pending next = mPending.peek();
+				if (next != null)
+				{
+					timeout = Math.max(1, next.due - System.currentTimeMillis());
+				}
+
+				mSelector.select(timeout);
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					try
+					{
+						if (!key.isValid())
+						{
+							continue;
+						}
+
+						if (key.isAcceptable())
+						{
+							accept();
+						}
+						else
+						{
+							if (key.isReadable())
+							{
+								read(key);
+							}
+
+							if (key.isValid() && key.isWritable())
+							{
+								write(key);
+							}
+						}
+					}
+					catch (IOException e)
+					{
+						close(key);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				while ((next = mPending.peek()) != null && next.due <= now)
+				{
+					mPending.poll();
+					answer(next.key, next.head);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Debug.out(e);
+		}
+		finally
+		{
+			for (SelectionKey key : mSelector.keys())
+			{
+				close(key);
+			}
+
+			try
+			{
+				mSelector.close();
+			}
+			catch (IOException e)
+			{
+				// already closing
+			}
+
+			mPending.clear();
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = mServerChannel.accept()) != null)
+		{
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(mSelector, SelectionKey.OP_READ, new Connection());
+			mConnectionCount.incrementAndGet();
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException
+	{
+		Connection connection = (Connection)key.attachment();
+		SocketChannel channel = (SocketChannel)key.channel();
+
+		if (connection.in.remaining() == 0)
+		{
+			if (connection.in.capacity() >= MAX_HEADER_SIZE)
+			{
+				throw new IOException("Request too large");
+			}
+
+			ByteBuffer larger = ByteBuffer.allocate(connection.in.capacity() * 2);
+			connection.in.flip();
+			larger.put(connection.in);
+			connection.in = larger;
+		}
+
+		if (channel.read(connection.in) == -1)
+		{
+			close(key);
+			return;
+		}
+
+		while (parse(key, connection))
+		{
+			// parse every pipelined request that has fully arrived
+		}
+	}
+
+	private boolean parse(SelectionKey key, Connection connection) throws IOException
+	{
+		if (connection.skip > 0)
+		{
+			int skipped = (int)Math.min(connection.skip, connection.in.position());
+			compact(connection.in, skipped);
+			connection.skip -= skipped;
+
+			if (connection.skip > 0)
+			{
+				return false;
+			}
+		}
+
+		byte[] data = connection.in.array();
+		int length = connection.in.position();
+		int end = -1;
+
+		for (int index = 3; index < length; index++)
+		{
+			if (data[index] == '\n' && data[index - 1] == '\r' && data[index - 2] == '\n' && data[index - 3] == '\r')
+			{
+				end = index + 1;
+				break;
+			}
+		}
+
+		if (end < 0)
+		{
+			return false;
+		}
+
+		String[] lines = new String(data, 0, end, "ISO-8859-1").split("\r\n");
+		boolean head = lines[0].startsWith("HEAD ");
+		long contentLength = 0;
+		boolean chunked = false;
+
+		for (int index = 1; index < lines.length; index++)
+		{
+			int colon = lines[index].indexOf(':');
+			if (colon < 0) continue;
+
+			String name = lines[index].substring(0, colon).trim().toLowerCase(Locale.US);
+			String value = lines[index].substring(colon + 1).trim();
+
+			if (name.equals("content-length"))
+			{
+				contentLength = Long.parseLong(value);
+			}
+			else if (name.equals("transfer-encoding") && !value.equalsIgnoreCase("identity"))
+			{
+				chunked = true;
+			}
+			else if (name.equals("connection") && value.equalsIgnoreCase("close"))
+			{
+				connection.closeAfterResponse = true;
+			}
+		}
+
+		compact(connection.in, end);
+		connection.skip = contentLength;
+
+		if (chunked)
+		{
+			connection.closeAfterResponse = true;
+			connection.out.add(ByteBuffer.wrap("HTTP/1.1 411 Length Required\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes()));
+			key.interestOps(SelectionKey.OP_WRITE);
+			return false;
+		}
+
+		mRequestCount.incrementAndGet();
+		connection.waiting++;
+
+		if (mLatency > 0)
+		{
+			mPending.add(new Pending(key, head, System.currentTimeMillis() + mLatency, mSequence++));
+		}
+		else
+		{
+			answer(key, head);
+		}
+
+		return true;
+	}
+
+	private void answer(SelectionKey key, boolean head)
+	{
+		if (!key.isValid())
+		{
+			return;
+		}
+
+		Connection connection = (Connection)key.attachment();
+		byte[] response;
+
+		synchronized (this)
+		{
+			response = head ? mHeadResponse : mResponse;
+		}
+
+		connection.waiting--;
+		connection.out.add(ByteBuffer.wrap(response));
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	private void write(SelectionKey key) throws IOException
+	{
+		Connection connection = (Connection)key.attachment();
+		SocketChannel channel = (SocketChannel)key.channel();
+
+		while (!connection.out.isEmpty())
+		{
+			ByteBuffer buffer = connection.out.getFirst();
+			channel.write(buffer);
+
+			if (buffer.hasRemaining())
+			{
+				return;
+			}
+
+			connection.out.removeFirst();
+		}
+
+		if (connection.closeAfterResponse && connection.waiting == 0)
+		{
+			close(key);
+			return;
+		}
+
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void compact(ByteBuffer buffer, int consumed)
+	{
+		buffer.flip();
+		buffer.position(consumed);
+		buffer.compact();
+	}
+
+	private void close(SelectionKey key)
+	{
+		key.cancel();
+
+		try
+		{
+			key.channel().close();
+		}
+		catch (IOException e)
+		{
+			// already closed
+		}
+	}
+
+	/**
+	 * @brief The buffers of an accepted connection
+	 */
+	private static class Connection
+	{
+		public ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		public final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+		public long skip;
+		public int waiting;
+		public boolean closeAfterResponse;
+	}
+
+	/**
+	 * @brief A request waiting for the latency to pass before it is answered
+	 */
+	private static class Pending implements Comparable<Pending>
+	{
+		public final SelectionKey key;
+		public final boolean head;
+		public final long due;
+		public final long sequence;
+
+		public Pending(SelectionKey key, boolean head, long due, long sequence)
+		{
+			this.key = key;
+			this.head = head;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Pending another)
+		{
+			if (due != another.due)
+			{
+				return due < another.due ? -1 : 1;
+			}
+
+			return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+		}
+	}
+}
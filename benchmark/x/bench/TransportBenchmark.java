@@ -0,0 +1,522 @@
+/**
+ * @brief x bench holds the tools used to measure the x lib http stack. It is not part of the library
+ *
+ * @author Callum Taylor
+ **/
+package x.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import x.lib.AsyncHttpClient;
+import x.lib.AsyncHttpResponse;
+import x.lib.ConnectionPool;
+import x.lib.HttpMetrics;
+import x.lib.HttpTransport;
+import x.lib.NioHttpEngine;
+
+/**
+ * @brief Measures the throughput and latency of a {@link HttpTransport}.
+ *
+ * A fixed amount of GET requests are sent to a url from a number of threads at once, each thread sending its next
+ * request as soon as the last one is read. Run it against a {@link LoopbackServer} to compare transports without
+ * the network getting in the way.
+ *
+ * Example:
+ * @code
+ * LoopbackServer server = new LoopbackServer(1024, 5);
+ * server.start();
+ *
+ * List<TransportBenchmark.Result> results = TransportBenchmark.compare(server.getUrl("/"), 2000, 32, new UrlConnectionTransport(), new MyHttp2Transport());
+ * for (TransportBenchmark.Result result : results)
+ * {
+ * 	Debug.out(result);
+ * }
+ *
+ * server.stop();
+ * @endcode
+ *
+ * {@link runEngine} measures the same thing through a {@link NioHttpEngine}, so the thread count and throughput of
+ * a thread per request can be compared with an event loop, for example at 1000 requests in flight:
+ * @code
+ * Debug.out(new TransportBenchmark(new UrlConnectionTransport()).run(server.getUrl("/"), 10000, 1000));
+ * Debug.out(TransportBenchmark.runEngine(server.getUrl("/"), 10000, 1000, 1));
+ * @endcode
+ *
+ * {@link runClient} sends the requests through {@link AsyncHttpClient} on an executor, to compare virtual threads
+ * with the bounded pool at 10000 requests in flight:
+ * @code
+ * Debug.out(TransportBenchmark.runClient(new VirtualThreadExecutor(), server.getUrl("/"), 50000, 10000));
+ * Debug.out(TransportBenchmark.runClient(new HttpExecutor(200, 1, 10000), server.getUrl("/"), 50000, 10000));
+ * @endcode
+ */
+public class TransportBenchmark
+{
+	private static final int WARMUP_BATCH = 250;
+	private static final long WARMUP_BATCH_DELAY = 20;
+	private static final int MAX_CLIENT_CONNECTIONS = 2000;
+
+	private final HttpTransport mTransport;
+	private int mWarmupRequests = 100;
+
+	/**
+	 * Default constructor
+	 * @param transport The transport to measure
+	 */
+	public TransportBenchmark(HttpTransport transport)
+	{
+		mTransport = transport;
+	}
+
+	/**
+	 * Sets the amount of requests sent before the measured run, so that connections are open and code is compiled. Defaults to 100
+	 * @param requests The amount of requests
+	 */
+	public void setWarmupRequests(int requests)
+	{
+		mWarmupRequests = Math.max(0, requests);
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param url The url to request
+	 * @param requests The amount of requests to measure
+	 * @param concurrency The amount of requests sent at once
+	 * @return The result
+	 * @throws InterruptedException If the thread was interrupted whilst waiting for the requests
+	 */
+	public Result run(String url, int requests, int concurrency) throws InterruptedException
+	{
+		if (mWarmupRequests > 0)
+		{
+			send(url, mWarmupRequests, concurrency);
+		}
+
+		return send(url, requests, concurrency);
+	}
+
+	/**
+	 * Runs the same benchmark through several transports, one after the other
+	 * @param url The url to request
+	 * @param requests The amount of requests to measure for each transport
+	 * @param concurrency The amount of requests sent at once
+	 * @param transports The transports to compare
+	 * @return The result of each transport, in the same order
+	 * @throws InterruptedException If the thread was interrupted whilst waiting for the requests
+	 */
+	public static List<Result> compare(String url, int requests, int concurrency, HttpTransport... transports) throws InterruptedException
+	{
+		List<Result> results = new ArrayList<Result>();
+
+		for (HttpTransport transport : transports)
+		{
+			results.add(new TransportBenchmark(transport).run(url, requests, concurrency));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Runs the benchmark through a new {@link NioHttpEngine}, which is shut down afterwards
+	 * @param url The url to request
+	 * @param requests The amount of requests to measure
+	 * @param concurrency The amount of requests sent at once, and the amount of connections the engine can open
+	 * @param loops The amount of event loop threads the engine uses
+	 * @return The result
+	 * @throws InterruptedException If the thread was interrupted whilst waiting for the requests
+	 */
+	public static Result runEngine(String url, int requests, int concurrency, int loops) throws InterruptedException
+	{
+		NioHttpEngine engine = new NioHttpEngine(loops);
+		engine.setMaxConnectionsPerHost(concurrency);
+		engine.setCallbackExecutor(new Executor()
+		{
+			public void execute(Runnable command)
+			{
+				command.run();
+			}
+		});
+
+		try
+		{
+			sendEngine(engine, url, Math.min(requests, concurrency), concurrency);
+			return sendEngine(engine, url, requests, concurrency);
+		}
+		finally
+		{
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the benchmark through {@link AsyncHttpClient} downloads on an executor, for example to compare a
+	 * {@link VirtualThreadExecutor} with a {@link HttpExecutor}. The client's executor and connection pool are
+	 * replaced for the run and put back afterwards. The new pool opens at most 2000 connections to the server, which
+	 * keeps the connects within the accept queue of the loopback interface. This limit is about the server, not the
+	 * executor: the requests beyond it wait in the pool's queue for the host without taking a thread of any kind.
+	 * The callbacks of the requests must not need this thread, so call it from a background thread
+	 * @param requestExecutor The executor to run the requests on
+	 * @param url The url to request, a counter is added to the query so that the requests are not coalesced
+	 * @param requests The amount of requests to measure
+	 * @param concurrency The amount of requests in flight at once
+	 * @return The result
+	 * @throws InterruptedException If the thread was interrupted whilst waiting for the requests
+	 */
+	public static Result runClient(Executor requestExecutor, String url, int requests, int concurrency) throws InterruptedException
+	{
+		Executor previousExecutor = AsyncHttpClient.getExecutor();
+		ConnectionPool previousPool = AsyncHttpClient.getConnectionPool();
+
+		AsyncHttpClient.setExecutor(requestExecutor);
+		AsyncHttpClient.setConnectionPool(new ConnectionPool(concurrency, ConnectionPool.DEFAULT_KEEP_ALIVE_DURATION, Math.min(concurrency, MAX_CLIENT_CONNECTIONS)));
+
+		try
+		{
+			// open the connections gradually, a burst of thousands of connects overflows the server's accept queue
+			sendClient(requestExecutor, url, Math.min(requests, concurrency), concurrency, WARMUP_BATCH);
+			return sendClient(requestExecutor, url, requests, concurrency, 0);
+		}
+		finally
+		{
+			AsyncHttpClient.setExecutor(previousExecutor);
+			AsyncHttpClient.setConnectionPool(previousPool);
+		}
+	}
+
+	private static Result sendEngine(NioHttpEngine engine, String url, int requests, int concurrency) throws InterruptedException
+	{
+		concurrency = Math.max(1, Math.min(concurrency, requests));
+		final Recorder recorder = new Recorder();
+		final Semaphore inFlight = new Semaphore(concurrency);
+		final CountDownLatch done = new CountDownLatch(requests);
+
+		for (int index = 0; index < requests; index++)
+		{
+			inFlight.acquire();
+			recorder.sample();
+
+			final long requestStart = System.nanoTime();
+			engine.download(url, null, new AsyncHttpResponse()
+			{
+				@Override public void onSuccess(byte[] response)
+				{
+					recorder.bytes.addAndGet(response.length);
+				}
+
+				@Override public void onFailure()
+				{
+					recorder.failures.incrementAndGet();
+				}
+
+				@Override public void onFinish()
+				{
+					recorder.record(requestStart);
+					inFlight.release();
+					done.countDown();
+				}
+			});
+		}
+
+		recorder.await(done);
+
+		return recorder.getResult("NioHttpEngine x" + engine.getLoopCount(), requests, concurrency);
+	}
+
+	private static Result sendClient(Executor requestExecutor, String url, int requests, int concurrency, int batch) throws InterruptedException
+	{
+		concurrency = Math.max(1, Math.min(concurrency, requests));
+		final Recorder recorder = new Recorder();
+		final Semaphore inFlight = new Semaphore(concurrency);
+		final CountDownLatch done = new CountDownLatch(requests);
+		String separator = url.contains("?") ? "&" : "?";
+
+		for (int index = 0; index < requests; index++)
+		{
+			inFlight.acquire();
+			recorder.sample();
+
+			if (batch > 0 && index > 0 && index % batch == 0)
+			{
+				Thread.sleep(WARMUP_BATCH_DELAY);
+			}
+
+			final long requestStart = System.nanoTime();
+
+			try
+			{
+				new AsyncHttpClient().download(url + separator + "request=" + index, new AsyncHttpResponse()
+				{
+					@Override public void onSuccess(byte[] response)
+					{
+						recorder.bytes.addAndGet(response.length);
+					}
+
+					@Override public void onFailure()
+					{
+						recorder.failures.incrementAndGet();
+					}
+
+					@Override public void onFinish()
+					{
+						recorder.record(requestStart);
+						inFlight.release();
+						done.countDown();
+					}
+				});
+			}
+			catch (RuntimeException e)
+			{
+				// the executor rejected the request
+				recorder.failures.incrementAndGet();
+				recorder.record(requestStart);
+				inFlight.release();
+				done.countDown();
+			}
+		}
+
+		recorder.await(done);
+
+		return recorder.getResult("AsyncHttpClient on " + requestExecutor.getClass().getSimpleName(), requests, concurrency);
+	}
+
+	private Result send(final String url, final int requests, int concurrency) throws InterruptedException
+	{
+		concurrency = Math.max(1, Math.min(concurrency, requests));
+		final Recorder recorder = new Recorder();
+		final AtomicInteger next = new AtomicInteger(0);
+		final CountDownLatch done = new CountDownLatch(concurrency);
+
+		for (int index = 0; index < concurrency; index++)
+		{
+			Thread thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					byte[] buffer = new byte[8192];
+
+					try
+					{
+						while (next.getAndIncrement() < requests)
+						{
+							long requestStart = System.nanoTime();
+
+							try
+							{
+								recorder.bytes.addAndGet(request(url, buffer));
+							}
+							catch (IOException e)
+							{
+								recorder.failures.incrementAndGet();
+							}
+
+							recorder.record(requestStart);
+						}
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}, "XHttp-benchmark-" + index);
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		recorder.await(done);
+
+		return recorder.getResult(mTransport.getName(), requests, concurrency);
+	}
+
+	private long request(String url, byte[] buffer) throws IOException
+	{
+		HttpURLConnection conn = mTransport.openConnection(new URL(url));
+		long received = 0;
+
+		try
+		{
+			conn.setUseCaches(false);
+
+			if (conn.getResponseCode() / 100 != 2)
+			{
+				throw new IOException("Unexpected response " + conn.getResponseCode());
+			}
+
+			InputStream is = conn.getInputStream();
+			int len;
+			while ((len = is.read(buffer)) > -1)
+			{
+				received += len;
+			}
+
+			// closing a fully read stream leaves the connection open for the next request
+			is.close();
+		}
+		catch (IOException e)
+		{
+			conn.disconnect();
+			throw e;
+		}
+
+		return received;
+	}
+
+	/**
+	 * @brief The outcome of a benchmark run
+	 */
+	public static class Result
+	{
+		/**
+		 * The name of the transport
+		 */
+		public String transport;
+		/**
+		 * The amount of requests measured
+		 */
+		public int requests;
+		/**
+		 * The amount of requests sent at once
+		 */
+		public int concurrency;
+		/**
+		 * The amount of requests that failed
+		 */
+		public int failures;
+		/**
+		 * The time the run took in MS
+		 */
+		public long duration;
+		/**
+		 * The amount of requests per second
+		 */
+		public double throughput;
+		/**
+		 * The median latency in microseconds
+		 */
+		public long p50;
+		/**
+		 * The 95th percentile latency in microseconds
+		 */
+		public long p95;
+		/**
+		 * The 99th percentile latency in microseconds
+		 */
+		public long p99;
+		/**
+		 * The longest latency in microseconds
+		 */
+		public long max;
+		/**
+		 * The amount of body bytes read
+		 */
+		public long bytesReceived;
+		/**
+		 * The most platform threads seen in the process whilst the run was going
+		 */
+		public int peakThreads;
+		/**
+		 * The most heap in use whilst the run was going, above what was in use when it started, in bytes
+		 */
+		public long peakMemory;
+
+		@Override public String toString()
+		{
+			return String.format("%s: %d requests x%d in %dms, %.1f req/s, p50 %.2fms p95 %.2fms p99 %.2fms max %.2fms, %d failed, %d threads, %.1fMB heap",
+				transport, requests, concurrency, duration, throughput, p50 / 1000.0, p95 / 1000.0, p99 / 1000.0, max / 1000.0, failures, peakThreads, peakMemory / (1024.0 * 1024.0));
+		}
+	}
+
+	/**
+	 * @brief Collects the latencies, thread count and heap use of a run
+	 */
+	private static class Recorder
+	{
+		private static final long SAMPLE_INTERVAL = 10;
+
+		public final HttpMetrics.Histogram histogram = new HttpMetrics.Histogram();
+		public final AtomicInteger failures = new AtomicInteger(0);
+		public final AtomicLong bytes = new AtomicLong(0);
+		private final AtomicInteger mPeakThreads = new AtomicInteger(Thread.activeCount());
+		private final AtomicLong mPeakMemory = new AtomicLong(0);
+		private final long mBaseMemory;
+		private final long mStart;
+
+		public Recorder()
+		{
+			Runtime runtime = Runtime.getRuntime();
+			runtime.gc();
+
+			mBaseMemory = runtime.totalMemory() - runtime.freeMemory();
+			mStart = System.nanoTime();
+		}
+
+		/**
+		 * Records a finished request
+		 * @param requestStart The time the request started from {@link System.nanoTime}
+		 */
+		public void record(long requestStart)
+		{
+			histogram.record((System.nanoTime() - requestStart) / 1000);
+		}
+
+		/**
+		 * Waits for the requests to finish, sampling the thread count and heap use whilst waiting
+		 * @param done The latch counted down by the requests
+		 * @throws InterruptedException
+		 */
+		public void await(CountDownLatch done) throws InterruptedException
+		{
+			do
+			{
+				sample();
+			}
+			while (!done.await(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS));
+		}
+
+		/**
+		 * Samples the thread count and heap use. Only call it from the thread that started the run, so that the
+		 * threads it counts are the platform threads in its group rather than those of a request thread
+		 */
+		public void sample()
+		{
+			int threads = Thread.activeCount();
+			int peakThreads;
+			while (threads > (peakThreads = mPeakThreads.get()) && !mPeakThreads.compareAndSet(peakThreads, threads));
+
+			Runtime runtime = Runtime.getRuntime();
+			long memory = runtime.totalMemory() - runtime.freeMemory() - mBaseMemory;
+			long peakMemory;
+			while (memory > (peakMemory = mPeakMemory.get()) && !mPeakMemory.compareAndSet(peakMemory, memory));
+		}
+
+		public Result getResult(String name, int requests, int concurrency)
+		{
+			Result result = new Result();
+			result.transport = name;
+			result.requests = requests;
+			result.concurrency = concurrency;
+			result.failures = failures.get();
+			result.duration = (System.nanoTime() - mStart) / 1000000;
+			result.throughput = result.duration == 0 ? requests : requests * 1000.0 / result.duration;
+			result.p50 = histogram.getValueAtPercentile(50);
+			result.p95 = histogram.getValueAtPercentile(95);
+			result.p99 = histogram.getValueAtPercentile(99);
+			result.max = histogram.getMax();
+			result.bytesReceived = bytes.get();
+			result.peakThreads = mPeakThreads.get();
+			result.peakMemory = mPeakMemory.get();
+
+			return result;
+		}
+	}
+}
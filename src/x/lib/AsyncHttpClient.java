@@ -6,26 +6,54 @@
 package x.lib;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 
 import x.type.ConnectionInfo;
 import x.type.FileHttpParams;
+import x.type.HeaderSet;
 import x.type.HttpParams;
+import x.type.HttpResult;
 import x.type.ItemList;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 
@@ -68,8 +96,67 @@ public class AsyncHttpClient
 	private RequestMode mRequestMode;
 	private AsyncHttpResponse mResponse;
 	private static final String BOUNDARY = "----------XLibraryAsyncRequest35146";
+	private static final int STREAM_BUFFER_SIZE = 8192;
+	private static final int REQUEST_COMPRESSION_THRESHOLD = 1024;
+	private static final int BUFFERED_BODY_LIMIT = 1024 * 1024;
+	/**
+	 * The default time in MS to wait for a connection to be made
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+	/**
+	 * The default time in MS to wait for data whilst reading the response
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	/**
+	 * The response code given to requests which timed out
+	 */
+	public static final int RESPONSE_CODE_TIMEOUT = -3;
+	/**
+	 * The response code given to requests which the executor refused to run
+	 */
+	public static final int RESPONSE_CODE_REJECTED = -4;
 	public static boolean followRedirect = true;
 	public static HttpParams globalHeaders = new HttpParams();
+	private static volatile CompiledHeaders compiledGlobalHeaders;
+	public static boolean acceptCompression = true;
+	private static ConnectionPool connectionPool = new ConnectionPool();
+	private static HttpTransport transport = new UrlConnectionTransport();
+	private static Executor executor = HttpExecutor.getDefault();
+	private static HttpCache httpCache;
+	private static final HashMap<String, HttpLoader> inFlightRequests = new HashMap<String, HttpLoader>();
+	private static long coalescedRequestCount = 0;
+	public static boolean coalesceRequests = true;
+	private static CircuitBreaker circuitBreaker;
+	private static ConcurrencyLimiter concurrencyLimiter;
+	private static ScheduledThreadPoolExecutor timeoutScheduler;
+	private static Handler mainHandler;
+	private static HttpMetricsListener metricsListener;
+	private static HttpMetrics httpMetrics = HttpMetrics.getDefault();
+	private static File partialDownloadDirectory;
+
+	/**
+	 * @brief How POST/PUT bodies are handed to the connection
+	 */
+	public enum StreamingMode
+	{
+		/**
+		 * The connection buffers the whole body before sending it, so it can
+		 * be sent again for a redirect or an authentication challenge. Bodies
+		 * of 1MB or more are streamed with a Content-Length header instead
+		 */
+		BUFFERED,
+		/**
+		 * The body is sent as it is written with a Content-Length header. The
+		 * body can not be sent again, so redirects and authentication
+		 * challenges fail with a HttpRetryException
+		 */
+		FIXED_LENGTH,
+		/**
+		 * The body is sent as it is written using chunked transfer encoding.
+		 * Like {@link FIXED_LENGTH} the body can not be sent again
+		 */
+		CHUNKED;
+	}
 
 	/**
 	 * @brief The request mode enumerator for making AsyncHttp requests
@@ -96,7 +183,12 @@ public class AsyncHttpClient
 		/**
 		 * Downloads binary data from the server
 		 */
-		DOWNLOAD("DOWNLOAD");
+		DOWNLOAD("DOWNLOAD"),
+		/**
+		 * Streams binary data from the server to
+		 * {@link AsyncHttpResponse.onStream} without buffering it in memory
+		 */
+		STREAM("STREAM");
 
 		private String mEnumStr;
 
@@ -111,8 +203,15 @@ public class AsyncHttpClient
 		}
 	}
 
-	private HttpLoader mHttpLoader;
+	private volatile HttpLoader mHttpLoader;
 	private AsyncHttpResponse mAsyncHttpResponse;
+	private HttpExecutor.Priority mPriority;
+	private boolean mCompressRequestBody = false;
+	private StreamingMode mStreamingMode = StreamingMode.BUFFERED;
+	private int mWriteSliceSize = 1024;
+	private RetryPolicy mRetryPolicy;
+	private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int mReadTimeout = DEFAULT_READ_TIMEOUT;
 
 	/**
 	 * Default constructor
@@ -126,7 +225,8 @@ public class AsyncHttpClient
 	 * Default constructor
 	 *
 	 * @param timeout
-	 *            The timeout delay for the request
+	 *            The total time in MS the request can take, including
+	 *            retries and redirects. See {@link setTimeout}
 	 */
 	public AsyncHttpClient(int timeout)
 	{
@@ -188,38 +288,9 @@ public class AsyncHttpClient
 	{
 		try
 		{
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-			StringBuffer res = new StringBuffer("\r\n").append("--").append(getBoundary()).append("\r\n");
-
-			ItemList<String[]> headers = values.getHeaders();
-			int size = headers.size();
-
-			for (int index = 0; index < size; index++)
-			{
-				String key = headers.get(index)[0];
-				String val = headers.get(index)[1];
-
-				res.append("Content-Disposition: form-data; name=\"").append(key).append("\"\r\n").append("\r\n").append(val).append("\r\n").append("--").append(getBoundary()).append("\r\n");
-			}
-
-			bos.write(res.toString().getBytes());
-
-			if (files != null && files.size() > 0)
-			{
-				int count = files.size();
-				for (int index = 0; index < count; index++)
-				{
-					StringBuffer fileRes = new StringBuffer();
-					fileRes.append("Content-Disposition: form-data; name=\"").append(files.getFieldName(index)).append("\"; filename=\"").append(files.getFileName(index)).append("\"\r\n").append("Content-Type: ").append(files.getFileType(index)).append("\r\n\r\n");
-
-					bos.write(fileRes.toString().getBytes());
-					bos.write(files.getFileContents(index));
-				}
-			}
-
-			StringBuffer end = new StringBuffer("\r\n--" + getBoundary() + "--\r\n");
-			bos.write(end.toString().getBytes());
+			MultipartBody body = new MultipartBody(values, files);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(body.getContentLength() > 0 ? (int)body.getContentLength() : 32);
+			body.writeTo(bos, null);
 
 			return bos.toByteArray();
 		}
@@ -231,12 +302,29 @@ public class AsyncHttpClient
 		return null;
 	}
 
+	/**
+	 * Gets a streaming multipart body for a HttpParam object and FileHttpParam
+	 * files object. Unlike {@link getFormPostDataWithFiles} the files are not
+	 * loaded into memory, they are written to the connection as the request
+	 * is sent. Pass the body as the post data of a POST/PUT request
+	 *
+	 * @param values
+	 *            The values to send
+	 * @param files
+	 *            The files to send
+	 * @return The multipart body
+	 */
+	public static MultipartBody getMultipartBody(HttpParams values, FileHttpParams files)
+	{
+		return new MultipartBody(values, files);
+	}
+
 	/**
 	 * Cancels the request
 	 */
 	public void cancel()
 	{
-		mHttpLoader.cancel(true);
+		mHttpLoader.cancelRequest();
 	}
 
 	/**
@@ -401,6 +489,57 @@ public class AsyncHttpClient
 		return mResponse;
 	}
 
+	/**
+	 * Gets the request mode set by {@link AsyncHttpClient.createClient}
+	 *
+	 * @return The request mode
+	 */
+	public RequestMode getRequestMode()
+	{
+		return mRequestMode;
+	}
+
+	/**
+	 * Gets the url set by {@link AsyncHttpClient.createClient}
+	 *
+	 * @return The url
+	 */
+	public String getUrl()
+	{
+		return mUrl;
+	}
+
+	/**
+	 * Gets the post data set by {@link AsyncHttpClient.createClient}
+	 *
+	 * @return The post data, can be null
+	 */
+	public Object getPostData()
+	{
+		return mPost;
+	}
+
+	/**
+	 * Gets the request parameters set by
+	 * {@link AsyncHttpClient.createClient}
+	 *
+	 * @return The request parameters, can be null
+	 */
+	public HttpParams getRequestParameters()
+	{
+		return mRequestParams;
+	}
+
+	/**
+	 * Gets the headers set by {@link AsyncHttpClient.createClient}
+	 *
+	 * @return The headers, can be null
+	 */
+	public HttpParams getHeaders()
+	{
+		return mHeaders;
+	}
+
 	/**
 	 * Executes a pre-created request built by
 	 * {@link AsyncHttpClient.createClient}
@@ -425,6 +564,84 @@ public class AsyncHttpClient
 		}
 	}
 
+	/**
+	 * Executes a pre-created request built by
+	 * {@link AsyncHttpClient.createClient} and returns a future for its
+	 * result. The response set on the client is not called
+	 *
+	 * @return The future, see {@link submit(RequestMode, String, Object, HttpParams, HttpParams)}
+	 */
+	public HttpFuture<HttpResult> submit()
+	{
+		return submit(mRequestMode, mUrl, mPost, mRequestParams, mHeaders);
+	}
+
+	/**
+	 * Initiates a request with a server and returns a future for its result
+	 *
+	 * @param requestMode
+	 *            The request mode for the connection
+	 * @param urlStr
+	 *            The URL to the server
+	 * @return The future, see {@link submit(RequestMode, String, Object, HttpParams, HttpParams)}
+	 */
+	public HttpFuture<HttpResult> submit(RequestMode requestMode, String urlStr)
+	{
+		return submit(requestMode, urlStr, null, null, null);
+	}
+
+	/**
+	 * Initiates a request with a server and returns a future for its
+	 * result. The future succeeds when the server responds with a 2xx and
+	 * fails with a {@link HttpResponseException} otherwise. Cancelling the
+	 * future cancels the request and closes its connection. A client can
+	 * only send one request, so create a client for each future
+	 *
+	 * @param requestMode
+	 *            The request mode for the connection
+	 * @param urlStr
+	 *            The URL to the server
+	 * @param postData
+	 *            The data to be sent to the server, can be null
+	 * @param requestParameters
+	 *            The request parameters for the URL, can be null
+	 * @param httpHeaders
+	 *            The request headers for the URL, can be null
+	 * @return The future, completed on the main thread
+	 */
+	public HttpFuture<HttpResult> submit(RequestMode requestMode, String urlStr, Object postData, HttpParams requestParameters, HttpParams httpHeaders)
+	{
+		HttpFuture<HttpResult> future = new HttpFuture<HttpResult>();
+		future.setOnCancel(new Runnable()
+		{
+			public void run()
+			{
+				cancel();
+			}
+		});
+
+		request(requestMode, urlStr, postData, requestParameters, httpHeaders, new FutureResponse(future));
+		return future;
+	}
+
+	/**
+	 * Creates a stream of the body of a url, which only reads the body as
+	 * fast as its subscriber asks for it. The request is sent when the
+	 * stream is subscribed to
+	 *
+	 * @param url
+	 *            The url to stream
+	 * @param requestParameters
+	 *            The request parameters, can be null
+	 * @param params
+	 *            The header parameters, can be null
+	 * @return The stream
+	 */
+	public HttpStream openStream(String url, HttpParams requestParameters, HttpParams params)
+	{
+		return new HttpStream(this, url, requestParameters, params);
+	}
+
 	/**
 	 * Initiates a request with a server
 	 *
@@ -576,6 +793,12 @@ public class AsyncHttpClient
 				download(urlStr, requestParameters, httpHeaders, response);
 				break;
 			}
+
+			case STREAM:
+			{
+				stream(urlStr, requestParameters, httpHeaders, response);
+				break;
+			}
 		}
 	}
 
@@ -632,6 +855,149 @@ public class AsyncHttpClient
 		mHttpLoader.download(urlStr, params, response);
 	}
 
+	/**
+	 * Streams a file from a url. The body is passed to
+	 * {@link AsyncHttpResponse.onStream} on the request thread and is never
+	 * held in memory
+	 *
+	 * @param url
+	 *            The url to stream
+	 * @param response
+	 *            The response
+	 */
+	public void stream(String url, AsyncHttpResponse response)
+	{
+		stream(url, null, null, response);
+	}
+
+	/**
+	 * Streams a file from a url. The body is passed to
+	 * {@link AsyncHttpResponse.onStream} on the request thread and is never
+	 * held in memory
+	 *
+	 * @param url
+	 *            The url to stream
+	 * @param requestParameters
+	 *            The request parameters
+	 * @param params
+	 *            The header parameters
+	 * @param response
+	 *            The response
+	 */
+	public void stream(String url, HttpParams requestParameters, HttpParams params, AsyncHttpResponse response)
+	{
+		String urlStr = url;
+
+		if (requestParameters != null)
+		{
+			requestParameters.URLEncode();
+			urlStr += requestParameters.toString();
+		}
+
+		mHttpLoader.stream(urlStr, params, null, response);
+	}
+
+	/**
+	 * Downloads a file from a url straight to a file. The file is passed to
+	 * {@link AsyncHttpResponse.onSuccess(Object)} when the download has
+	 * finished
+	 *
+	 * @param url
+	 *            The url to download
+	 * @param file
+	 *            The file to write to. Any existing file will be overwritten
+	 * @param response
+	 *            The response
+	 */
+	public void downloadToFile(String url, File file, AsyncHttpResponse response)
+	{
+		downloadToFile(url, null, null, file, response);
+	}
+
+	/**
+	 * Downloads a file from a url straight to a file. The file is passed to
+	 * {@link AsyncHttpResponse.onSuccess(Object)} when the download has
+	 * finished
+	 *
+	 * @param url
+	 *            The url to download
+	 * @param requestParameters
+	 *            The request parameters
+	 * @param params
+	 *            The header parameters
+	 * @param file
+	 *            The file to write to. Any existing file will be overwritten
+	 * @param response
+	 *            The response
+	 */
+	public void downloadToFile(String url, HttpParams requestParameters, HttpParams params, File file, AsyncHttpResponse response)
+	{
+		String urlStr = url;
+
+		if (requestParameters != null)
+		{
+			requestParameters.URLEncode();
+			urlStr += requestParameters.toString();
+		}
+
+		mHttpLoader.stream(urlStr, params, file, response);
+	}
+
+	/**
+	 * Downloads a file from a url to a file in a way that can be resumed. If
+	 * the connection drops, the data received so far is kept in
+	 * {@link getPartialDownloadDirectory} and calling this again with the same
+	 * url carries on from where it stopped. The file is passed to
+	 * {@link AsyncHttpResponse.onSuccess(Object)} when the download has
+	 * finished
+	 *
+	 * @param url
+	 *            The url to download
+	 * @param file
+	 *            The file to write to. Any existing file will be overwritten
+	 * @param response
+	 *            The response
+	 */
+	public void downloadResumable(String url, File file, AsyncHttpResponse response)
+	{
+		downloadResumable(url, null, null, file, 1, response);
+	}
+
+	/**
+	 * Downloads a file from a url to a file in a way that can be resumed. If
+	 * the connection drops, the data received so far is kept in
+	 * {@link getPartialDownloadDirectory} and calling this again with the same
+	 * url carries on from where it stopped. The file is passed to
+	 * {@link AsyncHttpResponse.onSuccess(Object)} when the download has
+	 * finished
+	 *
+	 * @param url
+	 *            The url to download
+	 * @param requestParameters
+	 *            The request parameters
+	 * @param params
+	 *            The header parameters
+	 * @param file
+	 *            The file to write to. Any existing file will be overwritten
+	 * @param segments
+	 *            The amount of ranges to download in parallel. Servers which
+	 *            don't support ranges and small files use a single connection
+	 * @param response
+	 *            The response
+	 */
+	public void downloadResumable(String url, HttpParams requestParameters, HttpParams params, File file, int segments, AsyncHttpResponse response)
+	{
+		String urlStr = url;
+
+		if (requestParameters != null)
+		{
+			requestParameters.URLEncode();
+			urlStr += requestParameters.toString();
+		}
+
+		mHttpLoader.resumable(urlStr, params, file, segments, response);
+	}
+
 	/**
 	 * Initiates a get request with a server
 	 *
@@ -922,221 +1288,1979 @@ public class AsyncHttpClient
 		mHttpLoader.put(url, postData, httpHeaders, response);
 	}
 
-	public void setCookie(HttpParams cookie)
+	/**
+	 * Sets the connection pool used by all requests. Use
+	 * {@link ConnectionPool.createLegacyPool} to close the connection after
+	 * every request
+	 *
+	 * @param pool
+	 *            The pool to use
+	 */
+	public static void setConnectionPool(ConnectionPool pool)
 	{
-		mHeaders.setParam("Cookie", cookie.toString());
+		connectionPool = pool == null ? new ConnectionPool() : pool;
 	}
 
 	/**
-	 * @brief This class is the main AsyncTask loader for the requests
+	 * Gets the connection pool used by all requests
+	 *
+	 * @return The connection pool
 	 */
-	private class HttpLoader extends AsyncTask<String, Void, Object>
+	public static ConnectionPool getConnectionPool()
 	{
-		public ConnectionInfo mConnectionInfo = new ConnectionInfo();
-
-		// private final int DOWNLOAD = 0x00;
-		// private final int GET = 0x01;
-		// private final int GET_IMAGE = 0x11;
-		// private final int POST = 0x02;
-		// private final int PUT = 0x03;
-		// private final int DELETE = 0x04;
+		return connectionPool;
+	}
 
-		private long mLoadTime = 0;
-		private AsyncHttpResponse mAsyncHttpResponse;
-		private RequestMode type;
-		private Handler mTimeoutHandler;
-		private int mTimeout = 10000;
-		private Object mSendData;
-		private HttpParams mHttpParams;
-		private String mUrl;
+	/**
+	 * Sets the transport that opens the connections for all requests
+	 *
+	 * @param requestTransport
+	 *            The transport to use, or null to use the default
+	 *            {@link UrlConnectionTransport}
+	 */
+	public static void setTransport(HttpTransport requestTransport)
+	{
+		transport = requestTransport == null ? new UrlConnectionTransport() : requestTransport;
+	}
 
-		/**
-		 * Default Constructor
-		 */
-		public HttpLoader()
-		{
-		}
+	/**
+	 * Gets the transport that opens the connections for all requests
+	 *
+	 * @return The transport
+	 */
+	public static HttpTransport getTransport()
+	{
+		return transport;
+	}
 
-		/**
-		 * Default Constructor
-		 *
+	/**
+	 * Sets the executor the requests are run on. If the executor is a
+	 * {@link HttpExecutor} the request is run in the lane for the client's
+	 * priority
+	 *
+	 * @param requestExecutor
+	 *            The executor to use, or null to use the default
+	 *            {@link HttpExecutor}
+	 */
+	public static void setExecutor(Executor requestExecutor)
+	{
+		executor = requestExecutor == null ? HttpExecutor.getDefault() : requestExecutor;
+	}
+
+	/**
+	 * Gets the executor the requests are run on
+	 *
+	 * @return The executor
+	 */
+	public static Executor getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Runs each request on its own virtual thread when the runtime supports
+	 * them, see {@link VirtualThreadExecutor}. Otherwise the bounded
+	 * {@link HttpExecutor} is used
+	 *
+	 * Requests already started on the previous executor finish on it
+	 *
+	 * @param enabled
+	 *            True to use virtual threads, false to go back to the
+	 *            default {@link HttpExecutor}
+	 * @return True if requests are now run on virtual threads
+	 */
+	public static boolean setVirtualThreadMode(boolean enabled)
+	{
+		if (executor instanceof VirtualThreadExecutor && enabled)
+		{
+			return true;
+		}
+
+		// the old executor is not shut down, requests running on it or waiting in a host queue to be handed to it
+		// still finish there. It holds no threads once they are done
+		setExecutor(enabled ? VirtualThreadExecutor.create() : null);
+		return executor instanceof VirtualThreadExecutor;
+	}
+
+	/**
+	 * Sets the priority of the requests made by this client. By default
+	 * downloads and streams run in the
+	 * {@link HttpExecutor.Priority.BULK} lane and every other request in
+	 * the {@link HttpExecutor.Priority.INTERACTIVE} lane
+	 *
+	 * @param priority
+	 *            The priority, or null to choose it by the request mode
+	 */
+	public void setPriority(HttpExecutor.Priority priority)
+	{
+		mPriority = priority;
+	}
+
+	/**
+	 * Gets the priority of the requests made by this client
+	 *
+	 * @return The priority, or null if it is chosen by the request mode
+	 */
+	public HttpExecutor.Priority getPriority()
+	{
+		return mPriority;
+	}
+
+	/**
+	 * Sets the cache used for GET and DOWNLOAD requests
+	 *
+	 * @param cache
+	 *            The cache to use, or null to disable caching
+	 */
+	public static void setHttpCache(HttpCache cache)
+	{
+		httpCache = cache;
+	}
+
+	/**
+	 * Gets the cache used for GET and DOWNLOAD requests
+	 *
+	 * @return The cache, or null if caching is disabled
+	 */
+	public static HttpCache getHttpCache()
+	{
+		return httpCache;
+	}
+
+	/**
+	 * Sets the circuit breaker requests are checked against before they are
+	 * sent. Requests to a host whose circuit is open fail with
+	 * {@link CircuitBreaker.RESPONSE_CODE_CIRCUIT_OPEN} when they are
+	 * started, without waiting in any queue or taking an executor thread
+	 *
+	 * @param breaker
+	 *            The circuit breaker, or null to disable
+	 */
+	public static void setCircuitBreaker(CircuitBreaker breaker)
+	{
+		circuitBreaker = breaker;
+	}
+
+	/**
+	 * Gets the circuit breaker requests are checked against
+	 *
+	 * @return The circuit breaker, or null if disabled
+	 */
+	public static CircuitBreaker getCircuitBreaker()
+	{
+		return circuitBreaker;
+	}
+
+	/**
+	 * Sets the limiter for the amount of requests sent to each host at once
+	 *
+	 * @param limiter
+	 *            The limiter, or null to disable
+	 */
+	public static void setConcurrencyLimiter(ConcurrencyLimiter limiter)
+	{
+		concurrencyLimiter = limiter;
+	}
+
+	/**
+	 * Gets the limiter for the amount of requests sent to each host at once
+	 *
+	 * @return The limiter, or null if disabled
+	 */
+	public static ConcurrencyLimiter getConcurrencyLimiter()
+	{
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * Sets the listener which is given the {@link ConnectionInfo} of every
+	 * request once it has finished. Whilst a listener is set, the DNS lookup
+	 * of each new connection is timed with a lookup of its own, which can
+	 * cost a second lookup once the platform's DNS cache has expired
+	 *
+	 * @param listener
+	 *            The listener, or null to disable
+	 */
+	public static void setMetricsListener(HttpMetricsListener listener)
+	{
+		metricsListener = listener;
+	}
+
+	/**
+	 * Gets the listener which is given the {@link ConnectionInfo} of every
+	 * request once it has finished
+	 *
+	 * @return The listener, or null if disabled
+	 */
+	public static HttpMetricsListener getMetricsListener()
+	{
+		return metricsListener;
+	}
+
+	/**
+	 * Gets {@link globalHeaders} compiled into a header set. The set is only
+	 * compiled again when globalHeaders is replaced or changed through its
+	 * methods
+	 *
+	 * @return The compiled global headers
+	 */
+	public static HeaderSet getGlobalHeaderSet()
+	{
+		HttpParams source = globalHeaders;
+		CompiledHeaders compiled = compiledGlobalHeaders;
+
+		if (compiled == null || compiled.source != source || compiled.modCount != source.getModCount())
+		{
+			compiled = new CompiledHeaders();
+			compiled.source = source;
+			compiled.modCount = source.getModCount();
+			compiled.headers = HeaderSet.compile(source);
+			compiledGlobalHeaders = compiled;
+		}
+
+		return compiled.headers;
+	}
+
+	/**
+	 * Sets the registry the latency, errors and bytes of every request are
+	 * recorded in. Defaults to {@link HttpMetrics.getDefault}
+	 *
+	 * @param metrics
+	 *            The registry, or null to disable recording
+	 */
+	public static void setHttpMetrics(HttpMetrics metrics)
+	{
+		httpMetrics = metrics;
+	}
+
+	/**
+	 * Gets the registry the latency, errors and bytes of every request are
+	 * recorded in
+	 *
+	 * @return The registry, or null if recording is disabled
+	 */
+	public static HttpMetrics getHttpMetrics()
+	{
+		return httpMetrics;
+	}
+
+	/**
+	 * Sets the directory partial files from {@link downloadResumable} are
+	 * kept in. Defaults to the <code>partial</code> folder of the cache
+	 * given to {@link setHttpCache}, or of the temporary directory (the app's
+	 * cache directory on Android) if there is no cache
+	 *
+	 * @param directory
+	 *            The directory, or null to use the default
+	 */
+	public static void setPartialDownloadDirectory(File directory)
+	{
+		partialDownloadDirectory = directory;
+	}
+
+	/**
+	 * Keeps the partial files from {@link downloadResumable} in the
+	 * <code>partial</code> folder of a cache
+	 *
+	 * @param cache
+	 *            The cache to use
+	 */
+	public static void setPartialDownloadDirectory(CacheManager cache)
+	{
+		partialDownloadDirectory = new File(cache.getCachePath(), "partial");
+	}
+
+	/**
+	 * Gets the directory partial files from {@link downloadResumable} are
+	 * kept in
+	 *
+	 * @return The directory
+	 */
+	public static File getPartialDownloadDirectory()
+	{
+		File directory = partialDownloadDirectory;
+		if (directory != null)
+		{
+			return directory;
+		}
+
+		HttpCache cache = httpCache;
+		if (cache != null)
+		{
+			return new File(cache.getCacheManager().getCachePath(), "partial");
+		}
+
+		return new File(System.getProperty("java.io.tmpdir"), "partial");
+	}
+
+	/**
+	 * Gets the amount of GET/DOWNLOAD requests that shared the transfer of an
+	 * identical request already in flight instead of making their own. Set
+	 * {@link coalesceRequests} to false to turn sharing off
+	 *
+	 * @return The amount of coalesced requests
+	 */
+	public static long getCoalescedRequestCount()
+	{
+		synchronized (inFlightRequests)
+		{
+			return coalescedRequestCount;
+		}
+	}
+
+	/**
+	 * Sets if POST/PUT bodies of 1KB or more should be sent gzip compressed.
+	 * The server must accept a Content-Encoding of gzip
+	 *
+	 * @param compress
+	 *            True to compress large request bodies
+	 */
+	public void setCompressRequestBody(boolean compress)
+	{
+		mCompressRequestBody = compress;
+	}
+
+	/**
+	 * Gets if large POST/PUT bodies are sent gzip compressed
+	 *
+	 * @return True if large request bodies are compressed
+	 */
+	public boolean isCompressRequestBody()
+	{
+		return mCompressRequestBody;
+	}
+
+	/**
+	 * Sets how POST/PUT bodies are handed to the connection. Defaults to
+	 * {@link StreamingMode.BUFFERED}, which keeps {@link followRedirect}
+	 * working for POSTs. Streaming saves holding the body in memory twice
+	 * but the body can not be replayed for a redirect or 401 challenge
+	 *
+	 * @param mode
+	 *            The streaming mode
+	 */
+	public void setStreamingMode(StreamingMode mode)
+	{
+		mStreamingMode = mode == null ? StreamingMode.BUFFERED : mode;
+	}
+
+	/**
+	 * Gets how POST/PUT bodies are handed to the connection
+	 *
+	 * @return The streaming mode
+	 */
+	public StreamingMode getStreamingMode()
+	{
+		return mStreamingMode;
+	}
+
+	/**
+	 * Sets the amount of bytes written to the connection at a time when
+	 * sending a POST/PUT body. Progress is reported after each slice. In
+	 * {@link StreamingMode.CHUNKED} mode this is also the chunk size
+	 *
+	 * @param size
+	 *            The slice size in bytes, defaults to 1024
+	 */
+	public void setWriteSliceSize(int size)
+	{
+		mWriteSliceSize = Math.max(1, size);
+	}
+
+	/**
+	 * Gets the amount of bytes written to the connection at a time
+	 *
+	 * @return The slice size in bytes
+	 */
+	public int getWriteSliceSize()
+	{
+		return mWriteSliceSize;
+	}
+
+	/**
+	 * Sets the policy used to retry failed requests. Requests are not retried
+	 * by default. The request timeout covers all of the attempts
+	 *
+	 * @param policy
+	 *            The retry policy, or null to not retry
+	 */
+	public void setRetryPolicy(RetryPolicy policy)
+	{
+		mRetryPolicy = policy;
+	}
+
+	/**
+	 * Gets the policy used to retry failed requests
+	 *
+	 * @return The retry policy, or null if requests are not retried
+	 */
+	public RetryPolicy getRetryPolicy()
+	{
+		return mRetryPolicy;
+	}
+
+	/**
+	 * Sets the total time the request can take, including waiting to be
+	 * executed, retries and redirects. When it runs out the connection is
+	 * closed and the request fails with {@link RESPONSE_CODE_TIMEOUT}
+	 *
+	 * @param timeout
+	 *            The timeout in MS, or 0 for no deadline
+	 */
+	public void setTimeout(int timeout)
+	{
+		mHttpLoader.mTimeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Gets the total time the request can take
+	 *
+	 * @return The timeout in MS, or 0 for no deadline
+	 */
+	public int getTimeout()
+	{
+		return mHttpLoader.mTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for a connection to the server to be made.
+	 * Defaults to {@link DEFAULT_CONNECT_TIMEOUT}
+	 *
+	 * @param timeout
+	 *            The timeout in MS, or 0 to wait forever
+	 */
+	public void setConnectTimeout(int timeout)
+	{
+		mConnectTimeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Gets the time to wait for a connection to the server to be made
+	 *
+	 * @return The timeout in MS
+	 */
+	public int getConnectTimeout()
+	{
+		return mConnectTimeout;
+	}
+
+	/**
+	 * Sets the time to wait for data whilst reading the response. Defaults to
+	 * {@link DEFAULT_READ_TIMEOUT}
+	 *
+	 * @param timeout
+	 *            The timeout in MS, or 0 to wait forever
+	 */
+	public void setReadTimeout(int timeout)
+	{
+		mReadTimeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Gets the time to wait for data whilst reading the response
+	 *
+	 * @return The timeout in MS
+	 */
+	public int getReadTimeout()
+	{
+		return mReadTimeout;
+	}
+
+	/**
+	 * Gets the handler for the main thread, which the callbacks of requests
+	 * that fail off the main thread are posted to
+	 *
+	 * @return The handler
+	 */
+	private static synchronized Handler getMainHandler()
+	{
+		if (mainHandler == null)
+		{
+			mainHandler = new Handler(Looper.getMainLooper());
+		}
+
+		return mainHandler;
+	}
+
+	/**
+	 * Gets the shared thread that closes the connections of requests which
+	 * have run out of time
+	 *
+	 * @return The scheduler
+	 */
+	private static synchronized ScheduledThreadPoolExecutor getTimeoutScheduler()
+	{
+		if (timeoutScheduler == null)
+		{
+			timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "XHttp-timeout");
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+		}
+
+		return timeoutScheduler;
+	}
+
+	public void setCookie(HttpParams cookie)
+	{
+		mHeaders.setParam("Cookie", cookie.toString());
+	}
+
+	/**
+	 * @brief This class is the main AsyncTask loader for the requests
+	 */
+	private class HttpLoader extends AsyncTask<String, Object, Object>
+	{
+		public ConnectionInfo mConnectionInfo = new ConnectionInfo();
+
+		// private final int DOWNLOAD = 0x00;
+		// private final int GET = 0x01;
+		// private final int GET_IMAGE = 0x11;
+		// private final int POST = 0x02;
+		// private final int PUT = 0x03;
+		// private final int DELETE = 0x04;
+
+		private long mQueuedTime = 0;
+		private long mConnectedTime = 0;
+		private long mHeadersTime = 0;
+		private boolean mConnected = false;
+		private AsyncHttpResponse mAsyncHttpResponse;
+		private RequestMode type;
+		private int mTimeout = 10000;
+		private long mDeadline = 0;
+		private volatile boolean mTimedOut = false;
+		private Thread mWorker;
+		private Object mSendData;
+		private HttpParams mHttpParams;
+		private String mUrl;
+		private volatile HttpURLConnection mConnection;
+		private ConnectionPool mConnectionPool;
+		private String mPoolHostKey;
+		private boolean mConnectionReusable = false;
+		private boolean mConnectionMultiplexed = false;
+		private File mOutputFile;
+		private ResumableDownload mResumableDownload;
+		private CountingInputStream mReceivedCounter;
+		private CountingInputStream mDecodedCounter;
+		private HttpCache.Entry mCacheEntry;
+		private boolean mStaleDelivered = false;
+		private boolean mNotModified = false;
+		private String mInFlightKey;
+		private FanOutResponse mFanOut;
+		private HttpLoader mLeader;
+		private Throwable mLastError;
+		private HeaderSet mHeaderSet;
+		private boolean mFollowRedirect = followRedirect;
+		private String mBreakerPermit;
+		private int mAttempt = 0;
+		private boolean mRetried = false;
+
+		/**
+		 * Default Constructor
+		 */
+		public HttpLoader()
+		{
+		}
+
+		/**
+		 * Creates the task for the next attempt of a request. The attempts
+		 * share the connection info and response handler
+		 *
+		 * @param previous
+		 *            The task of the failed attempt
+		 */
+		public HttpLoader(HttpLoader previous)
+		{
+			this.mConnectionInfo = previous.mConnectionInfo;
+			this.mAsyncHttpResponse = previous.mAsyncHttpResponse;
+			this.type = previous.type;
+			this.mTimeout = previous.mTimeout;
+			this.mDeadline = previous.mDeadline;
+			this.mQueuedTime = previous.mQueuedTime;
+			this.mSendData = previous.mSendData;
+			this.mHttpParams = previous.mHttpParams;
+			this.mUrl = previous.mUrl;
+			this.mOutputFile = previous.mOutputFile;
+			this.mResumableDownload = previous.mResumableDownload;
+			this.mCacheEntry = previous.mCacheEntry;
+			this.mStaleDelivered = previous.mStaleDelivered;
+			this.mFanOut = previous.mFanOut;
+			this.mHeaderSet = previous.mHeaderSet;
+			this.mFollowRedirect = previous.mFollowRedirect;
+			this.mAttempt = previous.mAttempt;
+		}
+
+		/**
+		 * Default Constructor
+		 *
 		 * @param timeout
 		 *            Sets the timeout for the request
 		 */
-		public HttpLoader(int timeout)
+		public HttpLoader(int timeout)
+		{
+			this.mTimeout = timeout;
+		}
+
+		/**
+		 * Initiates a download request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void download(String urlStr, HttpParams headers, AsyncHttpResponse responseHandler)
+		{
+			this.mAsyncHttpResponse = responseHandler;
+			this.mHttpParams = headers;
+			type = RequestMode.DOWNLOAD;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Initiates a stream request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param file
+		 *            The file to write the body to, or null to pass the body
+		 *            to the response handler
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void stream(String urlStr, HttpParams headers, File file, AsyncHttpResponse responseHandler)
+		{
+			this.mAsyncHttpResponse = responseHandler;
+			this.mHttpParams = headers;
+			this.mOutputFile = file;
+			type = RequestMode.STREAM;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Initiates a resumable download request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param file
+		 *            The file to write the body to
+		 * @param segments
+		 *            The amount of ranges to download in parallel
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void resumable(String urlStr, HttpParams headers, File file, int segments, AsyncHttpResponse responseHandler)
+		{
+			this.mResumableDownload = new ResumableDownload(urlStr, headers, file, getPartialDownloadDirectory(), segments);
+			this.mResumableDownload.setTimeouts(mConnectTimeout, mReadTimeout);
+			stream(urlStr, headers, file, responseHandler);
+		}
+
+		/**
+		 * Initiates a GET request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void get(String urlStr, HttpParams headers, AsyncHttpResponse responseHandler)
+		{
+			this.mAsyncHttpResponse = responseHandler;
+			this.mHttpParams = headers;
+			type = RequestMode.GET;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Initiates a DELETE request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void delete(String urlStr, HttpParams headers, AsyncHttpResponse responseHandler)
+		{
+			this.mAsyncHttpResponse = responseHandler;
+			this.mHttpParams = headers;
+			type = RequestMode.DELETE;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Initiates a GET request on the urlStr for an image
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void getImage(String urlStr, AsyncHttpResponse responseHandler)
+		{
+			this.mAsyncHttpResponse = responseHandler;
+			type = RequestMode.GET;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Initiates a POST request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param data
+		 *            The data to be sent to the server
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void post(String urlStr, Object data, HttpParams headers, AsyncHttpResponse response)
+		{
+			this.mAsyncHttpResponse = response;
+			this.mSendData = data;
+			this.mHttpParams = headers;
+			type = RequestMode.POST;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Initiates a PUT request on the urlStr
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param data
+		 *            The data to be sent to the server
+		 * @param headers
+		 *            The headers to be sent to the server
+		 * @param responseHandler
+		 *            The response handler
+		 */
+		public void put(String urlStr, Object data, HttpParams header, AsyncHttpResponse response)
+		{
+			this.mAsyncHttpResponse = response;
+			this.mSendData = data;
+			this.mHttpParams = header;
+			type = RequestMode.PUT;
+			this.mUrl = urlStr;
+
+			start(urlStr);
+		}
+
+		/**
+		 * Starts the task on the client's executor
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 */
+		private void start(String urlStr)
+		{
+			mQueuedTime = System.currentTimeMillis();
+			mDeadline = mTimeout > 0 ? System.currentTimeMillis() + mTimeout : 0;
+
+			if (coalesceRequests && (type == RequestMode.GET || type == RequestMode.DOWNLOAD) && joinInFlight(urlStr))
+			{
+				return;
+			}
+
+			if (!acquireBreakerPermit(urlStr))
+			{
+				onCircuitOpen(urlStr);
+				return;
+			}
+
+			try
+			{
+				submit(urlStr);
+			}
+			catch (RejectedExecutionException e)
+			{
+				onRejected();
+			}
+			catch (RuntimeException e)
+			{
+				// identical requests must not join a request that never started
+				leaveInFlight();
+				returnBreakerPermit();
+				throw e;
+			}
+		}
+
+		/**
+		 * Starts the next attempt of a request once its retry delay has
+		 * passed. The attempt waits for its host and executor like a new
+		 * request
+		 */
+		private void startRetry()
+		{
+			if (isCancelled())
+			{
+				leaveInFlight();
+				return;
+			}
+
+			try
+			{
+				submit(mUrl);
+			}
+			catch (RejectedExecutionException e)
+			{
+				onRejected();
+			}
+		}
+
+		/**
+		 * Hands the task to the client's executor, through the host gate.
+		 * Before Honeycomb AsyncTask already runs on a thread pool so the
+		 * platform executor is used
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 */
+		private void submit(String urlStr)
+		{
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			{
+				Executor requestExecutor = executor;
+				if (requestExecutor instanceof HttpExecutor)
+				{
+					requestExecutor = ((HttpExecutor)requestExecutor).getLane(getLanePriority());
+				}
+
+				this.executeOnExecutor(getHostGate(urlStr, requestExecutor), urlStr);
+			}
+			else
+			{
+				this.execute(urlStr);
+			}
+		}
+
+		/**
+		 * Wraps the executor so the request is only handed to it once its host
+		 * is under the limits of the concurrency limiter and connection pool.
+		 * Requests over a limit wait in a queue for their host rather than on
+		 * an executor thread
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @param requestExecutor
+		 *            The executor to run the request on
+		 * @return The executor to start the task with
+		 */
+		private Executor getHostGate(String urlStr, final Executor requestExecutor)
+		{
+			final ConcurrencyLimiter limiter = concurrencyLimiter;
+			final ConnectionPool pool = transport.isMultiplexed() ? null : connectionPool;
+			final String hostKey = getHostKey(urlStr);
+			Executor gate = requestExecutor;
+
+			if (hostKey != null && pool != null)
+			{
+				gate = new Executor()
+				{
+					public void execute(Runnable task)
+					{
+						pool.execute(hostKey, task, requestExecutor);
+					}
+				};
+			}
+
+			if (hostKey != null && limiter != null)
+			{
+				final Executor poolGate = gate;
+				gate = new Executor()
+				{
+					public void execute(Runnable task)
+					{
+						limiter.execute(hostKey, task, poolGate);
+					}
+				};
+			}
+
+			final Executor hostGate = gate;
+			return new Executor()
+			{
+				public void execute(final Runnable task)
+				{
+					hostGate.execute(new HostQueue.Rejectable()
+					{
+						public void run()
+						{
+							task.run();
+						}
+
+						public void reject()
+						{
+							// the executor was shut down or full when the request's turn came
+							getMainHandler().post(new Runnable()
+							{
+								public void run()
+								{
+									onRejected();
+								}
+							});
+						}
+					});
+				}
+			};
+		}
+
+		/**
+		 * Gets the lane the request runs in. Downloads and streams go to the
+		 * bulk lane unless a priority was set, so a few large bodies can not
+		 * hold every thread of the interactive lane
+		 *
+		 * @return The priority of the lane
+		 */
+		private HttpExecutor.Priority getLanePriority()
+		{
+			if (mPriority != null)
+			{
+				return mPriority;
+			}
+
+			return type == RequestMode.DOWNLOAD || type == RequestMode.STREAM ? HttpExecutor.Priority.BULK : HttpExecutor.Priority.INTERACTIVE;
+		}
+
+		/**
+		 * Gets the key of the host of a url
+		 *
+		 * @param urlStr
+		 *            The url
+		 * @return The host key from {@link ConnectionPool.getHostKey}, or
+		 *         null if the url is malformed
+		 */
+		private String getHostKey(String urlStr)
+		{
+			try
+			{
+				return ConnectionPool.getHostKey(new URL(urlStr));
+			}
+			catch (MalformedURLException e)
+			{
+				return null;
+			}
+		}
+
+		/**
+		 * Checks the circuit breaker before the request takes a place in any
+		 * queue. Requests the cache may answer are checked when they go to
+		 * the network instead, so a fresh cached response is still served
+		 * whilst the circuit is open
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @return True if the request can be sent
+		 */
+		private boolean acquireBreakerPermit(String urlStr)
+		{
+			CircuitBreaker breaker = circuitBreaker;
+			String hostKey = getHostKey(urlStr);
+
+			if (breaker == null || hostKey == null || (httpCache != null && (type == RequestMode.GET || type == RequestMode.DOWNLOAD)))
+			{
+				return true;
+			}
+
+			if (!breaker.allowRequest(hostKey))
+			{
+				return false;
+			}
+
+			synchronized (this)
+			{
+				mBreakerPermit = hostKey;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Takes the permit given by the circuit breaker in {@link start}, so
+		 * that it is only used once
+		 *
+		 * @return The host the permit is for, or null if there is none
+		 */
+		private synchronized String takeBreakerPermit()
+		{
+			String hostKey = mBreakerPermit;
+			mBreakerPermit = null;
+
+			return hostKey;
+		}
+
+		/**
+		 * Hands the permit of a request that was never sent back to the
+		 * circuit breaker
+		 */
+		private void returnBreakerPermit()
+		{
+			String hostKey = takeBreakerPermit();
+			CircuitBreaker breaker = circuitBreaker;
+
+			if (hostKey != null && breaker != null)
+			{
+				breaker.onCancelled(hostKey);
+			}
+		}
+
+		/**
+		 * Fails a request to a host whose circuit is open without sending it
+		 * or queueing it
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 */
+		private void onCircuitOpen(String urlStr)
+		{
+			leaveInFlight();
+			onPreExecute();
+
+			mConnectionInfo.connectionResponseCode = CircuitBreaker.RESPONSE_CODE_CIRCUIT_OPEN;
+			mConnectionInfo.connectionResponseMessage = "Circuit open for " + getHostKey(urlStr);
+			mConnectionInfo.connectionQueueTime = 0;
+
+			onPostExecute(null);
+		}
+
+		/**
+		 * Fails a request the executor refused to run. onSend has already been
+		 * called by then, so the request is finished through the failure
+		 * callbacks on the calling thread
+		 */
+		private void onRejected()
+		{
+			leaveInFlight();
+			returnBreakerPermit();
+
+			if (isCancelled())
+			{
+				return;
+			}
+
+			mConnectionInfo.connectionResponseCode = RESPONSE_CODE_REJECTED;
+			mConnectionInfo.connectionResponseMessage = "The executor rejected the request";
+			mConnectionInfo.connectionQueueTime = System.currentTimeMillis() - mQueuedTime;
+
+			onPostExecute(null);
+		}
+
+		/**
+		 * Joins an identical request that is already in flight, or registers
+		 * this request so identical requests can join it
+		 *
+		 * @param urlStr
+		 *            The URL for the request
+		 * @return True if the request joined another request and should not
+		 *         be started
+		 */
+		private boolean joinInFlight(String urlStr)
+		{
+			String key = type.getString() + " " + urlStr + (mHttpParams == null ? "" : " " + mHttpParams.toString());
+
+			synchronized (inFlightRequests)
+			{
+				HttpLoader leader = inFlightRequests.get(key);
+
+				if (leader != null && leader.mFanOut.subscribe(AsyncHttpClient.this, mAsyncHttpResponse))
+				{
+					mLeader = leader;
+					coalescedRequestCount++;
+
+					if (mAsyncHttpResponse != null)
+					{
+						mAsyncHttpResponse.setConnectionInfo(leader.mConnectionInfo);
+						mAsyncHttpResponse.onSend();
+					}
+
+					return true;
+				}
+
+				mFanOut = new FanOutResponse();
+				// the client is the key, as its task is replaced when the request is retried
+				mFanOut.subscribe(AsyncHttpClient.this, mAsyncHttpResponse);
+				mAsyncHttpResponse = mFanOut;
+				mInFlightKey = key;
+
+				inFlightRequests.put(key, this);
+			}
+
+			return false;
+		}
+
+		/**
+		 * Stops accepting new subscribers once the response has been received
+		 */
+		private void leaveInFlight()
+		{
+			if (mInFlightKey == null) return;
+
+			synchronized (inFlightRequests)
+			{
+				if (inFlightRequests.get(mInFlightKey) == this)
+				{
+					inFlightRequests.remove(mInFlightKey);
+				}
+
+				mFanOut.close();
+				mInFlightKey = null;
+			}
+		}
+
+		/**
+		 * Cancels the request. A request shared with other clients keeps
+		 * running for them and only stops delivering to this client
+		 */
+		public void cancelRequest()
+		{
+			if (mLeader != null)
+			{
+				mLeader.mFanOut.unsubscribe(AsyncHttpClient.this);
+				return;
+			}
+
+			if (mFanOut != null)
+			{
+				synchronized (inFlightRequests)
+				{
+					mFanOut.unsubscribe(AsyncHttpClient.this);
+
+					if (mFanOut.hasSubscribers())
+					{
+						return;
+					}
+				}
+
+				leaveInFlight();
+			}
+
+			if (mResumableDownload != null)
+			{
+				mResumableDownload.cancel();
+			}
+
+			cancel(true);
+
+			// a read blocked on the socket is not stopped by the interrupt
+			HttpURLConnection conn = mConnection;
+			if (conn != null)
+			{
+				conn.disconnect();
+			}
+		}
+
+		/**
+		 * Called on the timeout thread when the deadline passes. Closes the
+		 * connection so the blocked read on the worker thread fails straight
+		 * away, and the request finishes through onPostExecute as normal
+		 */
+		private Runnable timeoutRunnable = new Runnable()
+		{
+			public void run()
+			{
+				mTimedOut = true;
+
+				if (mResumableDownload != null)
+				{
+					mResumableDownload.cancel();
+				}
+
+				HttpURLConnection conn = mConnection;
+				if (conn != null)
+				{
+					conn.disconnect();
+				}
+
+				synchronized (HttpLoader.this)
+				{
+					if (mWorker != null)
+					{
+						mWorker.interrupt();
+					}
+				}
+			}
+		};
+
+		@Override protected void onPreExecute()
+		{
+			// the request was already announced by its first attempt
+			if (mAttempt > 0)
+			{
+				return;
+			}
+
+			mConnectionInfo.connectionHeaders = mHttpParams;
+			mConnectionInfo.connectionSentData = mSendData;
+			mConnectionInfo.connectionResponseHeaders = new HttpParams();
+			mConnectionInfo.connectionInitiationTime = System.currentTimeMillis();
+			mConnectionInfo.connectionResponseTime = 0;
+			mConnectionInfo.connectionUrl = mUrl;
+			mConnectionInfo.connectionMethod = type.getString();
+
+			if (mAsyncHttpResponse != null)
+			{
+				mAsyncHttpResponse.setConnectionInfo(mConnectionInfo);
+				mAsyncHttpResponse.onSend();
+			}
+		}
+
+		@Override protected Object doInBackground(String... url)
+		{
+			synchronized (this)
+			{
+				mWorker = Thread.currentThread();
+			}
+
+			ScheduledFuture<?> timeout = null;
+			if (mDeadline > 0)
+			{
+				timeout = getTimeoutScheduler().schedule(timeoutRunnable, Math.max(0, mDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+
+			if (mAttempt == 0)
+			{
+				mConnectionInfo.connectionQueueTime = System.currentTimeMillis() - mQueuedTime;
+				compileHeaders();
+			}
+
+			try
+			{
+				long attemptStart = System.currentTimeMillis();
+				Object result;
+
+				mLastError = null;
+				mConnectionInfo.connectionResponseCode = 0;
+				resetTimeline();
+
+				HttpCache cache = httpCache;
+				if (cache != null && (type == RequestMode.GET || type == RequestMode.DOWNLOAD) && HttpCache.isCacheable(mHeaderSet))
+				{
+					result = performCachedRequest(cache, url);
+				}
+				else
+				{
+					result = performGuardedRequest(url);
+				}
+
+				if (mHeadersTime > 0)
+				{
+					mConnectionInfo.connectionTransferTime = System.currentTimeMillis() - mHeadersTime;
+				}
+
+				mAttempt++;
+				mConnectionInfo.connectionAttempts = mAttempt;
+				mConnectionInfo.connectionRetryCount = mAttempt - 1;
+				mConnectionInfo.connectionAttemptDurations.add(System.currentTimeMillis() - attemptStart);
+				mConnectionInfo.connectionAttemptResponseCodes.add(mConnectionInfo.connectionResponseCode);
+
+				long delay = getRetryDelay(mAttempt);
+				if (delay >= 0)
+				{
+					retry(delay);
+				}
+
+				return result;
+			}
+			finally
+			{
+				if (mReceivedCounter != null)
+				{
+					mConnectionInfo.connectionReceivedBytes = mReceivedCounter.count;
+					mConnectionInfo.connectionUncompressedReceivedBytes = mDecodedCounter.count;
+				}
+
+				if (timeout != null)
+				{
+					timeout.cancel(false);
+				}
+
+				synchronized (this)
+				{
+					mWorker = null;
+
+					// don't leave the pool thread interrupted for its next task
+					Thread.interrupted();
+				}
+
+				releaseConnection();
+
+				// the request finishes in the task of its next attempt
+				if (!mRetried)
+				{
+					leaveInFlight();
+
+					mConnectionInfo.connectionTotalTime = System.currentTimeMillis() - mQueuedTime;
+
+					HttpMetrics metrics = httpMetrics;
+					if (metrics != null)
+					{
+						metrics.record(mConnectionInfo);
+					}
+
+					HttpMetricsListener listener = metricsListener;
+					if (listener != null)
+					{
+						listener.onRequestFinished(mConnectionInfo);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Hands the request to a new task that is started once the delay has
+		 * passed. Nothing of the request is held whilst it waits, neither a
+		 * thread nor its place in the limits of its host
+		 *
+		 * @param delay
+		 *            The time to wait in MS before the next attempt
+		 */
+		private void retry(long delay)
 		{
-			this.mTimeout = timeout;
+			final HttpLoader next = new HttpLoader(this);
+
+			synchronized (inFlightRequests)
+			{
+				next.mInFlightKey = mInFlightKey;
+
+				if (mInFlightKey != null && inFlightRequests.get(mInFlightKey) == this)
+				{
+					inFlightRequests.put(mInFlightKey, next);
+				}
+			}
+
+			mHttpLoader = next;
+			mRetried = true;
+
+			// the client was cancelled before it was moved on to the next task
+			if (isCancelled())
+			{
+				next.cancel(false);
+			}
+
+			getTimeoutScheduler().schedule(new Runnable()
+			{
+				public void run()
+				{
+					// tasks are started on the main thread
+					getMainHandler().post(new Runnable()
+					{
+						public void run()
+						{
+							next.startRetry();
+						}
+					});
+				}
+			}, delay, TimeUnit.MILLISECONDS);
 		}
 
 		/**
-		 * Initiates a download request on the urlStr
+		 * Merges the global and request headers once per request, before the
+		 * first attempt. The FollowRedirect header is an option rather than a
+		 * header so it is taken out of the set
+		 */
+		private void compileHeaders()
+		{
+			HeaderSet headers = getGlobalHeaderSet().merge(mHttpParams);
+			String follow = headers.get("FollowRedirect");
+
+			mFollowRedirect = followRedirect;
+			if (follow != null)
+			{
+				mFollowRedirect = Boolean.parseBoolean(follow);
+				headers = headers.without("FollowRedirect");
+			}
+
+			mHeaderSet = headers;
+		}
+
+		/**
+		 * Clears the timings of the previous attempt
+		 */
+		private void resetTimeline()
+		{
+			mConnected = false;
+			mConnectedTime = 0;
+			mHeadersTime = 0;
+			mConnectionInfo.connectionReused = false;
+			mConnectionInfo.connectionDnsTime = -1;
+			mConnectionInfo.connectionConnectTime = -1;
+			mConnectionInfo.connectionTlsTime = -1;
+			mConnectionInfo.connectionSendTime = -1;
+			mConnectionInfo.connectionFirstByteTime = -1;
+			mConnectionInfo.connectionTransferTime = -1;
+		}
+
+		/**
+		 * Connects to the server, timing the DNS lookup, TCP connect and TLS
+		 * handshake
 		 *
-		 * @param urlStr
-		 *            The URL for the request
-		 * @param responseHandler
-		 *            The response handler
+		 * @param conn
+		 *            The connection
+		 * @throws IOException
 		 */
-		public void download(String urlStr, HttpParams headers, AsyncHttpResponse responseHandler)
+		private void connect(HttpURLConnection conn) throws IOException
 		{
-			this.mAsyncHttpResponse = responseHandler;
-			this.mHttpParams = headers;
-			type = RequestMode.DOWNLOAD;
-			this.mUrl = urlStr;
+			if (mConnected)
+			{
+				return;
+			}
+
+			// the lookup is cached, so the connection won't look the host up again
+			// unless the platform's short DNS cache expires in between, so it is
+			// only timed when someone is listening for the timings
+			if (!mConnectionInfo.connectionReused && metricsListener != null)
+			{
+				long dnsStart = System.currentTimeMillis();
+				InetAddress.getByName(conn.getURL().getHost());
+				mConnectionInfo.connectionDnsTime = System.currentTimeMillis() - dnsStart;
+			}
+
+			TimingSocketFactory.reset();
 
-			this.execute(urlStr);
+			long connectStart = System.currentTimeMillis();
+			conn.connect();
+			mConnectedTime = System.currentTimeMillis();
+			mConnected = true;
+
+			long handshakeStart = TimingSocketFactory.getHandshakeStart();
+			if (handshakeStart >= connectStart)
+			{
+				mConnectionInfo.connectionConnectTime = handshakeStart - connectStart;
+				mConnectionInfo.connectionTlsTime = mConnectedTime - handshakeStart;
+			}
+			else
+			{
+				mConnectionInfo.connectionConnectTime = mConnectedTime - connectStart;
+			}
 		}
 
 		/**
-		 * Initiates a GET request on the urlStr
+		 * Connects and gets the stream to write the request body to
 		 *
-		 * @param urlStr
-		 *            The URL for the request
-		 * @param headers
-		 *            The headers to be sent to the server
-		 * @param responseHandler
-		 *            The response handler
+		 * @param conn
+		 *            The connection
+		 * @return The output stream of the connection
+		 * @throws IOException
 		 */
-		public void get(String urlStr, HttpParams headers, AsyncHttpResponse responseHandler)
+		private OutputStream getRequestStream(HttpURLConnection conn) throws IOException
 		{
-			this.mAsyncHttpResponse = responseHandler;
-			this.mHttpParams = headers;
-			type = RequestMode.GET;
-			this.mUrl = urlStr;
+			connect(conn);
+			return conn.getOutputStream();
+		}
+
+		/**
+		 * Sends the request and waits for the response headers, timing the
+		 * upload of the body and the time to the first byte
+		 *
+		 * @param conn
+		 *            The connection
+		 * @return The response code
+		 * @throws IOException
+		 */
+		private int getResponseCode(HttpURLConnection conn) throws IOException
+		{
+			connect(conn);
+
+			long sent = System.currentTimeMillis();
+			mConnectionInfo.connectionSendTime = sent - mConnectedTime;
 
-			this.execute(urlStr);
+			int code = conn.getResponseCode();
+
+			mHeadersTime = System.currentTimeMillis();
+			mConnectionInfo.connectionFirstByteTime = mHeadersTime - sent;
+
+			return code;
 		}
 
 		/**
-		 * Initiates a DELETE request on the urlStr
+		 * Checks the retry policy after an attempt has finished
 		 *
-		 * @param urlStr
-		 *            The URL for the request
-		 * @param headers
-		 *            The headers to be sent to the server
-		 * @param responseHandler
-		 *            The response handler
+		 * @param attempt
+		 *            The amount of attempts made so far
+		 * @return The time to wait in MS before trying again, or -1 if the
+		 *         request should not be retried
 		 */
-		public void delete(String urlStr, HttpParams headers, AsyncHttpResponse responseHandler)
+		private long getRetryDelay(int attempt)
 		{
-			this.mAsyncHttpResponse = responseHandler;
-			this.mHttpParams = headers;
-			type = RequestMode.DELETE;
-			this.mUrl = urlStr;
+			RetryPolicy policy = mRetryPolicy;
+			int code = mConnectionInfo.connectionResponseCode;
+
+			if (policy == null || isCancelled() || mTimedOut || (code / 100) == 2 || code == HttpURLConnection.HTTP_NOT_MODIFIED)
+			{
+				return -1;
+			}
+
+			// streamed bodies can only be sent once
+			if (mSendData instanceof MultipartBody && !((MultipartBody)mSendData).isRepeatable())
+			{
+				return -1;
+			}
+
+			if (!policy.shouldRetry(type, attempt, code, mLastError))
+			{
+				return -1;
+			}
+
+			String retryAfter = null;
+			if (mConnection != null && mLastError == null)
+			{
+				retryAfter = mConnection.getHeaderField("Retry-After");
+			}
+
+			long delay = policy.getDelay(attempt, retryAfter);
+
+			// don't start an attempt that can't finish before the deadline
+			if (delay >= 0 && mDeadline > 0 && System.currentTimeMillis() + delay >= mDeadline)
+			{
+				return -1;
+			}
 
-			this.execute(urlStr);
+			return delay;
 		}
 
 		/**
-		 * Initiates a GET request on the urlStr for an image
+		 * Performs the request through the http cache. Fresh responses are
+		 * returned from disk, stale responses are revalidated with the server
 		 *
-		 * @param urlStr
-		 *            The URL for the request
-		 * @param headers
-		 *            The headers to be sent to the server
-		 * @param responseHandler
-		 *            The response handler
+		 * @param cache
+		 *            The cache to use
+		 * @param url
+		 *            The url of the request
+		 * @return The response body
 		 */
-		public void getImage(String urlStr, AsyncHttpResponse responseHandler)
+		private Object performCachedRequest(HttpCache cache, String... url)
 		{
-			this.mAsyncHttpResponse = responseHandler;
-			type = RequestMode.GET;
-			this.mUrl = urlStr;
+			String key = cache.getKey(url[0], mHeaderSet);
+			HttpCache.Entry entry = cache.get(key);
+
+			// a GET and DOWNLOAD of the same url share a key but not a body type
+			if (entry != null && (entry.body instanceof byte[]) != (type == RequestMode.DOWNLOAD))
+			{
+				entry = null;
+			}
+
+			if (entry != null && entry.isFresh())
+			{
+				mConnectionInfo.connectionResponseCode = 200;
+				mConnectionInfo.connectionResponseMessage = "OK";
+				mConnectionInfo.connectionFromCache = true;
+
+				return entry.body;
+			}
+
+			if (entry != null && entry.canRevalidate())
+			{
+				mCacheEntry = entry;
+
+				if (cache.isStaleWhileRevalidate() && !mStaleDelivered)
+				{
+					mStaleDelivered = true;
+					publishProgress(entry.body);
+				}
+			}
+
+			Object result = performGuardedRequest(url);
+
+			if (mCacheEntry != null && mConnectionInfo.connectionResponseCode == HttpURLConnection.HTTP_NOT_MODIFIED && mConnection != null)
+			{
+				cache.update(key, mCacheEntry, mConnection);
+
+				mConnectionInfo.connectionResponseCode = 200;
+				mConnectionInfo.connectionResponseMessage = "OK";
+				mConnectionInfo.connectionFromCache = true;
+				mNotModified = true;
+
+				return mCacheEntry.body;
+			}
+
+			if (HttpCache.isCacheable(mConnectionInfo.connectionResponseCode) && mConnection != null)
+			{
+				cache.put(key, mConnection, result);
+			}
+
+			return result;
+		}
+
+		/**
+		 * Performs the request through the circuit breaker and concurrency
+		 * limiter for its host
+		 *
+		 * @param url
+		 *            The url of the request
+		 * @return The response body
+		 */
+		private Object performGuardedRequest(String... url)
+		{
+			CircuitBreaker breaker = circuitBreaker;
+			ConcurrencyLimiter limiter = concurrencyLimiter;
+			String hostKey;
+
+			try
+			{
+				hostKey = ConnectionPool.getHostKey(new URL(url[0]));
+			}
+			catch (MalformedURLException e)
+			{
+				hostKey = null;
+			}
+
+			if (hostKey == null || (breaker == null && limiter == null))
+			{
+				return performTimedRequest(url);
+			}
+
+			// the first attempt was let through by the breaker in start
+			if (breaker != null && takeBreakerPermit() == null && !breaker.allowRequest(hostKey))
+			{
+				mConnectionInfo.connectionResponseCode = CircuitBreaker.RESPONSE_CODE_CIRCUIT_OPEN;
+				mConnectionInfo.connectionResponseMessage = "Circuit open for " + hostKey;
+
+				return null;
+			}
+
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				return performTimedRequest(url);
+			}
+			finally
+			{
+				long duration = System.currentTimeMillis() - start;
+				int code = mConnectionInfo.connectionResponseCode;
+				boolean cancelled = isCancelled();
+
+				// a cancelled request says nothing about the health of the host
+				if (limiter != null && !cancelled)
+				{
+					limiter.onResult(hostKey, code, duration);
+				}
+
+				if (breaker != null)
+				{
+					if (cancelled) breaker.onCancelled(hostKey);
+					else breaker.onResult(hostKey, code, duration);
+				}
+			}
+		}
+
+		/**
+		 * Performs the request and reports a timeout if the deadline passed or
+		 * the connection timed out
+		 *
+		 * @param url
+		 *            The url of the request
+		 * @return The response body
+		 */
+		private Object performTimedRequest(String... url)
+		{
+			Object result = mTimedOut ? null : performRequest(url);
+
+			if (mTimedOut || mLastError instanceof SocketTimeoutException)
+			{
+				mConnectionInfo.connectionResponseCode = RESPONSE_CODE_TIMEOUT;
+				mConnectionInfo.connectionResponseMessage = "Timed out";
+
+				return null;
+			}
+
+			return result;
+		}
+
+		/**
+		 * Gets the body stream of the response, decompressing it if the
+		 * server sent it with a gzip or deflate Content-Encoding
+		 *
+		 * @param conn
+		 *            The connection
+		 * @param stream
+		 *            The input or error stream of the connection
+		 * @return The decoded stream
+		 * @throws IOException
+		 */
+		private InputStream getResponseStream(HttpURLConnection conn, InputStream stream) throws IOException
+		{
+			if (stream == null)
+			{
+				stream = new ByteArrayInputStream(new byte[0]);
+			}
+
+			mReceivedCounter = new CountingInputStream(stream);
+			mDecodedCounter = mReceivedCounter;
+
+			String encoding = conn.getContentEncoding();
+			InputStream decoded = null;
+
+			try
+			{
+				if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+				{
+					decoded = new GZIPInputStream(mReceivedCounter, STREAM_BUFFER_SIZE);
+				}
+				else if ("deflate".equalsIgnoreCase(encoding))
+				{
+					decoded = createInflaterStream(mReceivedCounter);
+				}
+			}
+			catch (EOFException e)
+			{
+				// empty body, nothing to decompress
+				decoded = null;
+			}
+
+			if (decoded != null)
+			{
+				mDecodedCounter = new CountingInputStream(decoded);
+			}
+
+			return new PatchInputStream(mDecodedCounter);
+		}
+
+		/**
+		 * Creates the stream for a deflate body. Servers send either zlib
+		 * wrapped or raw deflate data, the zlib header is checked to tell
+		 * them apart
+		 *
+		 * @param in
+		 *            The compressed stream
+		 * @return The inflating stream
+		 * @throws IOException
+		 */
+		private InputStream createInflaterStream(InputStream in) throws IOException
+		{
+			PushbackInputStream pushback = new PushbackInputStream(in, 2);
+			byte[] header = new byte[2];
+
+			int len = pushback.read(header);
+			if (len == -1)
+			{
+				throw new EOFException();
+			}
+
+			if (len == 1)
+			{
+				int second = pushback.read();
+				if (second != -1)
+				{
+					header[1] = (byte)second;
+					len = 2;
+				}
+			}
+
+			pushback.unread(header, 0, len);
+
+			int first = header[0] & 0xff;
+			boolean zlib = len == 2 && (first & 0x0f) == 8 && ((first << 8) | (header[1] & 0xff)) % 31 == 0;
+
+			return new InflaterInputStream(pushback, new Inflater(!zlib), STREAM_BUFFER_SIZE);
+		}
+
+		/**
+		 * Gets the length of the decoded body. The Content-Length of a
+		 * compressed response is the compressed length so -1 is returned
+		 *
+		 * @param conn
+		 *            The connection
+		 * @return The length, -1 if unknown
+		 */
+		private int getDecodedContentLength(HttpURLConnection conn)
+		{
+			String encoding = conn.getContentEncoding();
+			if (encoding != null && !"identity".equalsIgnoreCase(encoding))
+			{
+				return -1;
+			}
 
-			this.execute(urlStr);
+			return conn.getContentLength();
 		}
 
 		/**
-		 * Initiates a POST request on the urlStr
+		 * Opens a connection to the url through the transport and the connection pool. Multiplexed transports skip the pool.
+		 * In legacy mode the server is asked to close the connection after the response
 		 *
-		 * @param urlStr
-		 *            The URL for the request
-		 * @param data
-		 *            The data to be sent to the server
-		 * @param headers
-		 *            The headers to be sent to the server
-		 * @param responseHandler
-		 *            The response handler
+		 * @param url
+		 *            The url to connect to
+		 * @return The opened connection
+		 * @throws IOException
 		 */
-		public void post(String urlStr, Object data, HttpParams headers, AsyncHttpResponse response)
+		private HttpURLConnection openConnection(URL url) throws IOException
 		{
-			this.mAsyncHttpResponse = response;
-			this.mSendData = data;
-			this.mHttpParams = headers;
-			type = RequestMode.POST;
-			this.mUrl = urlStr;
+			HttpTransport connectionTransport = transport;
+			ConnectionPool pool = connectionPool;
+			mConnectionMultiplexed = connectionTransport.isMultiplexed();
+
+			if (!mConnectionMultiplexed)
+			{
+				mPoolHostKey = ConnectionPool.getHostKey(url);
+
+				mConnectionInfo.connectionReused = pool.acquire(mPoolHostKey);
+				mConnectionPool = pool;
+			}
+
+			HttpURLConnection conn = connectionTransport.openConnection(url);
+			applyTimeouts(conn);
+			mConnection = conn;
+
+			if (conn instanceof HttpsURLConnection)
+			{
+				HttpsURLConnection https = (HttpsURLConnection)conn;
+				https.setSSLSocketFactory(TimingSocketFactory.wrap(https.getSSLSocketFactory()));
+			}
+
+			if (mTimedOut)
+			{
+				// the deadline passed whilst waiting for the pool
+				throw new SocketTimeoutException("Deadline exceeded");
+			}
+
+			if (!mConnectionMultiplexed && pool.isLegacyMode())
+			{
+				mConnection.setRequestProperty("Connection", "close");
+			}
+
+			if (acceptCompression)
+			{
+				mConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+			}
+
+			if (mCacheEntry != null)
+			{
+				HttpCache.addConditionalHeaders(mConnection, mCacheEntry);
+			}
 
-			this.execute(urlStr);
+			return mConnection;
 		}
 
 		/**
-		 * Initiates a PUT request on the urlStr
+		 * Sets the connect and read timeouts of a connection, shortened to
+		 * the time left before the deadline
 		 *
-		 * @param urlStr
-		 *            The URL for the request
-		 * @param data
-		 *            The data to be sent to the server
-		 * @param headers
-		 *            The headers to be sent to the server
-		 * @param responseHandler
-		 *            The response handler
+		 * @param conn
+		 *            The connection
+		 * @throws SocketTimeoutException
+		 *             If the deadline has already passed
 		 */
-		public void put(String urlStr, Object data, HttpParams header, AsyncHttpResponse response)
+		private void applyTimeouts(HttpURLConnection conn) throws SocketTimeoutException
 		{
-			this.mAsyncHttpResponse = response;
-			this.mSendData = data;
-			this.mHttpParams = header;
-			type = RequestMode.PUT;
-			this.mUrl = urlStr;
+			int connectTimeout = mConnectTimeout;
+			int readTimeout = mReadTimeout;
+
+			if (mDeadline > 0)
+			{
+				long remaining = mDeadline - System.currentTimeMillis();
+				if (remaining <= 0)
+				{
+					throw new SocketTimeoutException("Deadline exceeded");
+				}
+
+				connectTimeout = connectTimeout == 0 ? (int)remaining : (int)Math.min(connectTimeout, remaining);
+				readTimeout = readTimeout == 0 ? (int)remaining : (int)Math.min(readTimeout, remaining);
+			}
 
-			this.execute(urlStr);
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(readTimeout);
 		}
 
 		/**
-		 * The timeout runnable for the request
+		 * Returns the connection to the pool. Connections that were not fully read, or when the pool is in legacy mode, are disconnected
 		 */
-		private Runnable timeoutRunnable = new Runnable()
+		private void releaseConnection()
 		{
-			public void run()
+			boolean reusable = mConnectionReusable && (mConnectionMultiplexed || (mConnectionPool != null && !mConnectionPool.isLegacyMode()));
+
+			if (mConnection != null && !reusable)
 			{
-				cancel(true);
+				mConnection.disconnect();
+			}
 
-				if (mAsyncHttpResponse != null)
-				{
-					mAsyncHttpResponse.onFailure();
-					mAsyncHttpResponse.beforeFinish();
-					mAsyncHttpResponse.onFinish();
-				}
+			if (mConnectionPool != null)
+			{
+				mConnectionPool.release(mPoolHostKey, reusable);
 			}
-		};
 
-		@Override protected void onPreExecute()
+			mConnection = null;
+			mConnectionPool = null;
+			mPoolHostKey = null;
+			mConnectionMultiplexed = false;
+		}
+
+		/**
+		 * Writes the response body to the output file through a file channel
+		 * using a single reusable buffer
+		 *
+		 * @param is
+		 *            The response stream
+		 * @param contentLength
+		 *            The length of the body, -1 if unknown
+		 * @throws IOException
+		 */
+		private void writeToFile(InputStream is, int contentLength) throws IOException
 		{
-			mConnectionInfo.connectionHeaders = mHttpParams;
-			mConnectionInfo.connectionSentData = mSendData;
-			mConnectionInfo.connectionResponseHeaders = new HttpParams();
-			mConnectionInfo.connectionInitiationTime = System.currentTimeMillis();
-			mConnectionInfo.connectionResponseTime = mLoadTime;
-			mConnectionInfo.connectionUrl = mUrl;
-			mConnectionInfo.connectionMethod = type.getString();
+			FileOutputStream fos = new FileOutputStream(mOutputFile);
+			FileChannel channel = fos.getChannel();
 
-			if (mAsyncHttpResponse != null)
+			try
 			{
-				mAsyncHttpResponse.setConnectionInfo(mConnectionInfo);
-				mAsyncHttpResponse.onSend();
-			}
+				byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+				int len = 0;
+				int readCount = 0;
+				while ((len = is.read(buffer)) != -1)
+				{
+					byteBuffer.clear();
+					byteBuffer.limit(len);
 
-			mTimeoutHandler = new Handler(Looper.getMainLooper());
+					while (byteBuffer.hasRemaining())
+					{
+						channel.write(byteBuffer);
+					}
 
-			if (this.mTimeout > 0)
+					readCount += len;
+
+					if (mAsyncHttpResponse != null)
+					{
+						mAsyncHttpResponse.onBytesProcessed(readCount, contentLength);
+					}
+				}
+			}
+			finally
 			{
-				mTimeoutHandler.postDelayed(timeoutRunnable, this.mTimeout);
+				channel.close();
+				fos.close();
 			}
 		}
 
-		@Override protected Object doInBackground(String... url)
+		private Object performRequest(String... url)
 		{
-			mLoadTime = System.currentTimeMillis();
-
 			switch (type)
 			{
 				case DOWNLOAD:
@@ -1145,42 +3269,28 @@ public class AsyncHttpClient
 					{
 						// Send data
 						URL murl = new URL(url[0]);
-						System.setProperty("http.keepAlive", "false");
-
-						HttpURLConnection conn;
 
-						if (murl.getHost().equals("https"))
-						{
-							conn = (HttpsURLConnection)murl.openConnection();
-						}
-						else
-						{
-							conn = (HttpURLConnection)murl.openConnection();
-						}
+						HttpURLConnection conn = openConnection(murl);
 
 						conn.setDoInput(true);
 						conn.setUseCaches(false);
 
-						for (String[] s : globalHeaders.getHeaders())
-						{
-							conn.setRequestProperty(s[0], s[1]);
-						}
+						mHeaderSet.applyTo(conn);
 
-						conn.setRequestProperty("Connection", "close");
 						conn.setRequestMethod("GET");
 
-						mConnectionInfo.connectionResponseCode = conn.getResponseCode();
+						mConnectionInfo.connectionResponseCode = getResponseCode(conn);
 						mConnectionInfo.connectionResponseMessage = conn.getResponseMessage();
 
 						// Get the response
-						PatchInputStream i = new PatchInputStream(conn.getInputStream());
+						InputStream i;
 						if ((mConnectionInfo.connectionResponseCode / 100) != 2)
 						{
-							i = new PatchInputStream(conn.getErrorStream());
+							i = getResponseStream(conn, conn.getErrorStream());
 						}
 						else
 						{
-							i = new PatchInputStream(conn.getInputStream());
+							i = getResponseStream(conn, conn.getInputStream());
 						}
 
 						String loc;
@@ -1201,30 +3311,35 @@ public class AsyncHttpClient
 						{
 							if (mAsyncHttpResponse != null)
 							{
-								mAsyncHttpResponse.onBytesProcessed(buffer, readCount, conn.getContentLength());
-								mAsyncHttpResponse.onBytesProcessed(readCount, conn.getContentLength());
+								mAsyncHttpResponse.onBytesProcessed(buffer, readCount, getDecodedContentLength(conn));
+								mAsyncHttpResponse.onBytesProcessed(readCount, getDecodedContentLength(conn));
 							}
 
 							byteBuffer.write(buffer, 0, len);
 							readCount += len;
 						}
 
+						byte[] result = byteBuffer.toByteArray();
+						byteBuffer = null;
+
 						if (mAsyncHttpResponse != null)
 						{
 							// we fake the content length, because it can be -1
-							mAsyncHttpResponse.onBytesProcessed(byteBuffer.toByteArray(), readCount, readCount);
+							mAsyncHttpResponse.onBytesProcessed(result, readCount, readCount);
 							mAsyncHttpResponse.onBytesProcessed(readCount, readCount);
 						}
 
 						is.close();
 						i.close();
-						conn.disconnect();
+						mConnectionReusable = true;
 
-						return byteBuffer.toByteArray();
+						return result;
 					}
 					catch (IOException e)
 					{
-						if (e.getMessage().contains("Received authentication challenge is null"))
+						mLastError = e;
+
+						if (e.getMessage() != null && e.getMessage().contains("Received authentication challenge is null"))
 						{
 							mConnectionInfo.connectionResponseCode = 401;
 							mConnectionInfo.connectionResponseMessage = "Received authentication challenge is null";
@@ -1240,48 +3355,109 @@ public class AsyncHttpClient
 					}
 					catch (Exception e)
 					{
+						mLastError = e;
 						e.printStackTrace();
 						return null;
 					}
 				}
 
-				case DELETE:
-				case GET:
+				case STREAM:
 				{
-					String result = null;
 					try
 					{
-						StringBuffer data = new StringBuffer();
+						if (mResumableDownload != null)
+						{
+							return mResumableDownload.download(mConnectionInfo, mAsyncHttpResponse);
+						}
 
 						// Send data
 						URL murl = new URL(url[0]);
-						System.setProperty("http.keepAlive", "false");
 
-						HttpURLConnection conn;
+						HttpURLConnection conn = openConnection(murl);
+
+						conn.setDoInput(true);
+						conn.setUseCaches(false);
+
+						mHeaderSet.applyTo(conn);
+
+						conn.setRequestMethod("GET");
+
+						mConnectionInfo.connectionResponseCode = getResponseCode(conn);
+						mConnectionInfo.connectionResponseMessage = conn.getResponseMessage();
+
+						String loc;
+						if ((loc = conn.getHeaderField("Location")) != null)
+						{
+							mConnectionInfo.connectionResponseHeaders.addParam("Location", loc);
+						}
 
-						if (murl.getHost().equals("https"))
+						if ((mConnectionInfo.connectionResponseCode / 100) != 2)
 						{
-							conn = (HttpsURLConnection)murl.openConnection();
+							return null;
 						}
-						else
+
+						InputStream is = getResponseStream(conn, conn.getInputStream());
+						int contentLength = getDecodedContentLength(conn);
+
+						if (mOutputFile != null)
 						{
-							conn = (HttpURLConnection)murl.openConnection();
+							writeToFile(is, contentLength);
 						}
+						else if (mAsyncHttpResponse != null)
+						{
+							mAsyncHttpResponse.onStream(is, contentLength);
+						}
+
+						// the connection can only be reused if the whole body was read
+						mConnectionReusable = is.read() == -1;
+						is.close();
+
+						return mOutputFile != null ? mOutputFile : new byte[]{};
+					}
+					catch (IOException e)
+					{
+						mLastError = e;
 
-						for (String[] s : globalHeaders.getHeaders())
+						if (e.getMessage() != null && e.getMessage().contains("Received authentication challenge is null"))
 						{
-							conn.setRequestProperty(s[0], s[1]);
+							mConnectionInfo.connectionResponseCode = 401;
+							mConnectionInfo.connectionResponseMessage = "Received authentication challenge is null";
 						}
 
-						conn.setInstanceFollowRedirects(followRedirect);
-						if (mHttpParams != null && mHttpParams.getParam("FollowRedirect") != null)
+						if (e instanceof FileNotFoundException)
 						{
-							conn.setInstanceFollowRedirects(Boolean.parseBoolean(mHeaders.getParam("FollowRedirect")));
+							mConnectionInfo.connectionResponseCode = 404;
+							mConnectionInfo.connectionResponseMessage = "File not Found";
 						}
 
+						return null;
+					}
+					catch (Exception e)
+					{
+						mLastError = e;
+						e.printStackTrace();
+						return null;
+					}
+				}
+
+				case DELETE:
+				case GET:
+				{
+					String result = null;
+					try
+					{
+						StringBuffer data = new StringBuffer();
+
+						// Send data
+						URL murl = new URL(url[0]);
+
+						HttpURLConnection conn = openConnection(murl);
+
+						mHeaderSet.applyTo(conn);
+						conn.setInstanceFollowRedirects(mFollowRedirect);
+
 						conn.setDoInput(true);
 						conn.setUseCaches(false);
-						conn.setRequestProperty("Connection", "close");
 
 						if (type == RequestMode.DELETE)
 						{
@@ -1292,27 +3468,16 @@ public class AsyncHttpClient
 							conn.setRequestMethod("GET");
 						}
 
-						if (mHttpParams != null)
-						{
-							ArrayList<String[]> mHeaders = mHttpParams.getHeaders();
-							int headerSize = mHeaders.size();
-
-							for (int headerIndex = 0; headerIndex < headerSize; headerIndex++)
-							{
-								conn.setRequestProperty(mHeaders.get(headerIndex)[0], mHeaders.get(headerIndex)[1]);
-							}
-						}
-
-						mConnectionInfo.connectionResponseCode = conn.getResponseCode();
+						mConnectionInfo.connectionResponseCode = getResponseCode(conn);
 
-						PatchInputStream i;
+						InputStream i;
 						if (mConnectionInfo.connectionResponseCode < 100 || (mConnectionInfo.connectionResponseCode / 100) != 2)
 						{
-							i = new PatchInputStream(conn.getErrorStream());
+							i = getResponseStream(conn, conn.getErrorStream());
 						}
 						else
 						{
-							i = new PatchInputStream(conn.getInputStream());
+							i = getResponseStream(conn, conn.getInputStream());
 						}
 
 						String loc;
@@ -1322,32 +3487,20 @@ public class AsyncHttpClient
 						}
 
 						// Get the response
-						InputStream is = new BufferedInputStream(i);
-
-						InputStreamReader reader = new InputStreamReader(is);
-						BufferedReader rd = new BufferedReader(reader);
-						String line;
-						StringBuilder sb = new StringBuilder();
-
-						while ((line = rd.readLine()) != null)
-						{
-							sb.append(line);
-						}
+						result = ResponseDecoder.readString(i, getDecodedContentLength(conn), conn.getContentType());
 
-						mConnectionInfo.connectionResponseMessage = sb.toString();
+						mConnectionInfo.connectionResponseMessage = result;
 
-						reader.close();
-						is.close();
 						i.close();
-						rd.close();
-						conn.disconnect();
-						result = sb.toString();
+						mConnectionReusable = true;
 
 						return result;
 					}
 					catch (IOException e)
 					{
-						if (e.getMessage().contains("Received authentication challenge is null"))
+						mLastError = e;
+
+						if (e.getMessage() != null && e.getMessage().contains("Received authentication challenge is null"))
 						{
 							mConnectionInfo.connectionResponseCode = 401;
 							mConnectionInfo.connectionResponseMessage = "Received authentication challenge is null";
@@ -1363,6 +3516,7 @@ public class AsyncHttpClient
 					}
 					catch (Exception e)
 					{
+						mLastError = e;
 						e.printStackTrace();
 						return null;
 					}
@@ -1376,27 +3530,13 @@ public class AsyncHttpClient
 						// Send data
 						URL murl = new URL(url[0]);
 
-						System.setProperty("http.keepAlive", "false");
-
-						HttpURLConnection conn;
-
-						if (murl.getHost().equals("https"))
-						{
-							conn = (HttpsURLConnection)murl.openConnection();
-						}
-						else
-						{
-							conn = (HttpURLConnection)murl.openConnection();
-						}
+						HttpURLConnection conn = openConnection(murl);
 
 						conn.setDoInput(true);
 						conn.setDoOutput(true);
 						conn.setUseCaches(false);
 
-						for (String[] s : globalHeaders.getHeaders())
-						{
-							conn.setRequestProperty(s[0], s[1]);
-						}
+						mHeaderSet.applyTo(conn);
 
 						if (type == RequestMode.PUT)
 						{
@@ -1407,34 +3547,91 @@ public class AsyncHttpClient
 							conn.setRequestMethod("POST");
 						}
 
-						conn.setInstanceFollowRedirects(followRedirect);
-						if (mHttpParams != null && mHttpParams.getParam("FollowRedirect") != null)
-						{
-							conn.setInstanceFollowRedirects(Boolean.parseBoolean(mHttpParams.getParam("FollowRedirect")));
-						}
+						conn.setInstanceFollowRedirects(mFollowRedirect);
 
-						if (mHttpParams != null)
+						// Send as binary if its a byte array
+						if (mSendData != null)
 						{
-							ArrayList<String[]> mHeaders = mHttpParams.getHeaders();
-							int headerSize = mHeaders.size();
+							Object sendData = mSendData;
+
+							if (mCompressRequestBody && !(mSendData instanceof MultipartBody))
+							{
+								byte[] uncompressed = mSendData.getClass().equals(byte[].class) ? (byte[])mSendData : mSendData.toString().getBytes();
+
+								if (uncompressed.length >= REQUEST_COMPRESSION_THRESHOLD)
+								{
+									sendData = gzip(uncompressed);
+									conn.setRequestProperty("Content-Encoding", "gzip");
+								}
+
+								mConnectionInfo.connectionUncompressedSentBytes = uncompressed.length;
+							}
 
-							for (int headerIndex = 0; headerIndex < headerSize; headerIndex++)
+							// the length has to be known up front to stream the body
+							if (mStreamingMode != StreamingMode.BUFFERED && !(sendData instanceof MultipartBody) && !sendData.getClass().equals(byte[].class))
 							{
-								conn.setRequestProperty(mHeaders.get(headerIndex)[0], mHeaders.get(headerIndex)[1]);
+								sendData = sendData.toString().getBytes();
 							}
-						}
 
-						// Send as binary if its a byte array
-						if (mSendData != null)
-						{
-							if (mSendData.getClass().equals(byte[].class))
+							if (mSendData instanceof MultipartBody)
+							{
+								MultipartBody body = (MultipartBody)mSendData;
+								long length = body.getContentLength();
+
+								if (conn.getRequestProperty("Content-Type") == null)
+								{
+									String[] contentType = body.getContentTypeHeader();
+									conn.setRequestProperty(contentType[0], contentType[1]);
+								}
+
+								// large or unknown length bodies are streamed even when buffering
+								boolean stream = mStreamingMode != StreamingMode.BUFFERED || length < 0 || length >= BUFFERED_BODY_LIMIT;
+
+								if (stream && mStreamingMode != StreamingMode.CHUNKED && length >= 0 && length <= Integer.MAX_VALUE)
+								{
+									conn.setFixedLengthStreamingMode((int)length);
+								}
+								else if (stream)
+								{
+									conn.setChunkedStreamingMode(Math.max(1, mWriteSliceSize));
+								}
+
+								CountingOutputStream wr = new CountingOutputStream(getRequestStream(conn));
+								body.writeTo(wr, mAsyncHttpResponse);
+								wr.close();
+
+								mConnectionInfo.connectionSentBytes = wr.count;
+								mConnectionInfo.connectionUncompressedSentBytes = wr.count;
+							}
+							else if (sendData.getClass().equals(byte[].class))
 							{
-								byte[] yourBytes = (byte[])mSendData;
+								byte[] yourBytes = (byte[])sendData;
+
+								if (!mCompressRequestBody)
+								{
+									mConnectionInfo.connectionUncompressedSentBytes = yourBytes.length;
+								}
 
-								OutputStream wr = conn.getOutputStream();
+								mConnectionInfo.connectionSentBytes = yourBytes.length;
 
 								int index = 0;
-								int size = 1024;
+								int size = Math.max(1, mWriteSliceSize);
+
+								if (mStreamingMode == StreamingMode.FIXED_LENGTH || (mStreamingMode == StreamingMode.BUFFERED && yourBytes.length >= BUFFERED_BODY_LIMIT))
+								{
+									conn.setFixedLengthStreamingMode(yourBytes.length);
+								}
+								else if (mStreamingMode == StreamingMode.CHUNKED)
+								{
+									conn.setChunkedStreamingMode(size);
+								}
+
+								OutputStream wr = getRequestStream(conn);
+
+								if (mAsyncHttpResponse != null)
+								{
+									mAsyncHttpResponse.onBytesProcessed(0, yourBytes.length);
+								}
 
 								while (index < yourBytes.length)
 								{
@@ -1443,41 +3640,66 @@ public class AsyncHttpClient
 										size = yourBytes.length - index;
 									}
 
+									wr.write(yourBytes, index, size);
+									index += size;
+
+									// in a streaming mode the slice has been handed to the socket
 									if (mAsyncHttpResponse != null)
 									{
 										mAsyncHttpResponse.onBytesProcessed(index, yourBytes.length);
 									}
-
-									wr.write(yourBytes, index, size);
-									index += size;
 								}
 
 								wr.flush();
 								wr.close();
-
-								if (mAsyncHttpResponse != null)
-								{
-									mAsyncHttpResponse.onBytesProcessed(index, yourBytes.length);
-								}
 							}
 							else
 							{
-								OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-								wr.write(mSendData.toString());
+								String body = mSendData.toString();
+								CountingOutputStream counter = new CountingOutputStream(getRequestStream(conn));
+								OutputStreamWriter wr = new OutputStreamWriter(counter);
 
+								// the encoded length is only known once the whole body is written
 								if (mAsyncHttpResponse != null)
 								{
-									mAsyncHttpResponse.onBytesProcessed(mSendData.toString().length(), mSendData.toString().length());
+									mAsyncHttpResponse.onBytesProcessed(0, body.length() == 0 ? 0 : -1);
+								}
+
+								int index = 0;
+								int size = Math.max(1, mWriteSliceSize);
+
+								while (index < body.length())
+								{
+									int end = Math.min(body.length(), index + size);
+
+									// don't split a surrogate pair between slices
+									if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1)))
+									{
+										end++;
+									}
+
+									wr.write(body, index, end - index);
+									wr.flush();
+									index = end;
+
+									if (mAsyncHttpResponse != null)
+									{
+										int sent = (int)Math.min(counter.count, Integer.MAX_VALUE);
+										mAsyncHttpResponse.onBytesProcessed(sent, index == body.length() ? sent : -1);
+									}
 								}
 
 								wr.flush();
 								wr.close();
+
+								mConnectionInfo.connectionSentBytes = counter.count;
+								mConnectionInfo.connectionUncompressedSentBytes = counter.count;
 							}
 
 							mConnectionInfo.connectionSentData = mSendData.toString();
 						}
 
-						mConnectionInfo.connectionResponseCode = conn.getResponseCode();
+						mConnectionInfo.connectionResponseCode = getResponseCode(conn);
 
 						String loc;
 						if ((loc = conn.getHeaderField("Location")) != null)
@@ -1485,42 +3707,31 @@ public class AsyncHttpClient
 							mConnectionInfo.connectionResponseHeaders.addParam("Location", loc);
 						}
 
-						PatchInputStream i;
+						InputStream i;
 						if ((mConnectionInfo.connectionResponseCode / 100) != 2)
 						{
-							i = new PatchInputStream(conn.getErrorStream());
+							i = getResponseStream(conn, conn.getErrorStream());
 						}
 						else
 						{
-							i = new PatchInputStream(conn.getInputStream());
+							i = getResponseStream(conn, conn.getInputStream());
 						}
 
 						// Get the response
-						InputStream is = new BufferedInputStream(i);
-
-						InputStreamReader reader = new InputStreamReader(is);
-						BufferedReader rd = new BufferedReader(reader);
-						String line;
-						StringBuilder sb = new StringBuilder();
-
-						while ((line = rd.readLine()) != null)
-						{
-							sb.append(line);
-						}
+						String result = ResponseDecoder.readString(i, getDecodedContentLength(conn), conn.getContentType());
 
-						mConnectionInfo.connectionResponseMessage = sb.toString();
+						mConnectionInfo.connectionResponseMessage = result;
 
-						rd.close();
-						is.close();
 						i.close();
-						reader.close();
-						conn.disconnect();
+						mConnectionReusable = true;
 
-						return sb.toString();
+						return result;
 					}
 					catch (IOException e)
 					{
-						if (e.getMessage().contains("Received authentication challenge is null"))
+						mLastError = e;
+
+						if (e.getMessage() != null && e.getMessage().contains("Received authentication challenge is null"))
 						{
 							mConnectionInfo.connectionResponseCode = 401;
 							mConnectionInfo.connectionResponseMessage = "Received authentication challenge is null";
@@ -1536,6 +3747,7 @@ public class AsyncHttpClient
 					}
 					catch (Exception e)
 					{
+						mLastError = e;
 						e.printStackTrace();
 
 						return null;
@@ -1549,10 +3761,33 @@ public class AsyncHttpClient
 			}
 		}
 
+		/**
+		 * Called with a stale cached response whilst it is being revalidated
+		 */
+		@Override protected void onProgressUpdate(Object... cachedResult)
+		{
+			if (mAsyncHttpResponse != null)
+			{
+				mAsyncHttpResponse.setConnectionInfo(mConnectionInfo);
+				deliverSuccess(cachedResult[0]);
+			}
+		}
+
+		@Override protected void onCancelled()
+		{
+			// a request cancelled before it ran never used its permit
+			returnBreakerPermit();
+		}
+
 		@Override protected void onPostExecute(Object result)
 		{
 			super.onPostExecute(result);
-			mTimeoutHandler.removeCallbacks(timeoutRunnable);
+
+			// the next attempt delivers the result
+			if (mRetried)
+			{
+				return;
+			}
 
 			mConnectionInfo.connectionResponseTime = System.currentTimeMillis();
 
@@ -1562,14 +3797,10 @@ public class AsyncHttpClient
 
 				if (((mConnectionInfo.connectionResponseCode / 100) == 2))
 				{
-					if (type == RequestMode.DOWNLOAD)
+					// the stale response that was already delivered is still valid
+					if (!(mStaleDelivered && mNotModified))
 					{
-						mAsyncHttpResponse.onSuccess(result == null ? new byte[]
-						{} : (byte[])result);
-					}
-					else
-					{
-						mAsyncHttpResponse.onSuccess(result == null ? "" : result);
+						deliverSuccess(result);
 					}
 				}
 				else
@@ -1587,6 +3818,434 @@ public class AsyncHttpClient
 				mAsyncHttpResponse.onFinish();
 			}
 		}
+
+		/**
+		 * Passes a successful result to the correct onSuccess method
+		 *
+		 * @param result
+		 *            The result of the request
+		 */
+		private void deliverSuccess(Object result)
+		{
+			if (result instanceof File)
+			{
+				mAsyncHttpResponse.onSuccess(result);
+			}
+			else if (type == RequestMode.DOWNLOAD || type == RequestMode.STREAM)
+			{
+				mAsyncHttpResponse.onSuccess(result == null ? new byte[]
+				{} : (byte[])result);
+			}
+			else
+			{
+				mAsyncHttpResponse.onSuccess(result == null ? "" : result);
+			}
+		}
+	}
+
+	/**
+	 * @brief Completes a {@link HttpFuture} with the result of a request
+	 */
+	private static class FutureResponse extends AsyncHttpResponse
+	{
+		private final HttpFuture<HttpResult> mFuture;
+		private Object mBody;
+
+		public FutureResponse(HttpFuture<HttpResult> future)
+		{
+			mFuture = future;
+		}
+
+		@Override public void onSuccess(Object response)
+		{
+			mBody = response;
+		}
+
+		@Override public void onSuccess(byte[] response)
+		{
+			mBody = response;
+		}
+
+		@Override public void onFailure(Object response)
+		{
+			mBody = response;
+		}
+
+		@Override public void onFinish()
+		{
+			HttpResult result = new HttpResult(getConnectionInfo(), mBody);
+
+			if (result.isSuccessful())
+			{
+				mFuture.complete(result);
+			}
+			else
+			{
+				mFuture.fail(new HttpResponseException(result));
+			}
+		}
+	}
+
+	/**
+	 * @brief Passes the callbacks of one request on to every client sharing it
+	 */
+	private static class FanOutResponse extends AsyncHttpResponse
+	{
+		private final CopyOnWriteArrayList<AsyncHttpResponse> mSubscribers = new CopyOnWriteArrayList<AsyncHttpResponse>();
+		private final IdentityHashMap<Object, AsyncHttpResponse> mClients = new IdentityHashMap<Object, AsyncHttpResponse>();
+		private boolean mClosed = false;
+
+		/**
+		 * Adds a client to the request
+		 *
+		 * @param client
+		 *            The client sharing the request
+		 * @param response
+		 *            The response of the client, can be null
+		 * @return False if the request has already received its response
+		 */
+		public synchronized boolean subscribe(Object client, AsyncHttpResponse response)
+		{
+			if (mClosed || mClients.containsKey(client)) return false;
+
+			mClients.put(client, response);
+
+			if (response != null)
+			{
+				mSubscribers.add(response);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Removes a client from the request. Removing a client that was
+		 * already removed has no effect
+		 *
+		 * @param client
+		 *            The client given to {@link subscribe}
+		 * @return True if the client was removed
+		 */
+		public synchronized boolean unsubscribe(Object client)
+		{
+			if (!mClients.containsKey(client)) return false;
+
+			AsyncHttpResponse response = mClients.remove(client);
+			if (response != null)
+			{
+				mSubscribers.remove(response);
+			}
+
+			return true;
+		}
+
+		public synchronized boolean hasSubscribers()
+		{
+			return !mClients.isEmpty();
+		}
+
+		public synchronized void close()
+		{
+			mClosed = true;
+		}
+
+		@Override public void setConnectionInfo(ConnectionInfo connectionInfo)
+		{
+			super.setConnectionInfo(connectionInfo);
+
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.setConnectionInfo(connectionInfo);
+			}
+		}
+
+		@Override public void onBytesProcessed(int amountProcessed, int totalSize)
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onBytesProcessed(amountProcessed, totalSize);
+			}
+		}
+
+		@Override public void onBytesProcessed(byte[] chunk, int amountProcessed, int totalSize)
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onBytesProcessed(chunk, amountProcessed, totalSize);
+			}
+		}
+
+		@Override public void onSend()
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onSend();
+			}
+		}
+
+		@Override public void onSuccess(Object result)
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onSuccess(result);
+			}
+		}
+
+		@Override public void onSuccess(byte[] result)
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onSuccess(result);
+			}
+		}
+
+		@Override public void onFailure()
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onFailure();
+			}
+		}
+
+		@Override public void onFailure(Object result)
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onFailure(result);
+			}
+		}
+
+		@Override public void onFailure(int responseCode, String responseMessage)
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onFailure(responseCode, responseMessage);
+			}
+		}
+
+		@Override public void beforeFinish()
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.beforeFinish();
+			}
+		}
+
+		@Override public void onFinish()
+		{
+			for (AsyncHttpResponse response : mSubscribers)
+			{
+				response.onFinish();
+			}
+		}
+	}
+
+	/**
+	 * Compresses data with gzip
+	 *
+	 * @param data
+	 *            The data to compress
+	 * @return The compressed data
+	 * @throws IOException
+	 */
+	private static byte[] gzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+		GZIPOutputStream gzip = new GZIPOutputStream(bos);
+		gzip.write(data);
+		gzip.close();
+
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @brief The compiled global headers and the params they were compiled
+	 *        from
+	 */
+	private static class CompiledHeaders
+	{
+		public HttpParams source;
+		public int modCount;
+		public HeaderSet headers;
+	}
+
+	/**
+	 * @brief Wraps the SSL socket factory of a connection to record when the
+	 *        TCP connection was made and the TLS handshake started
+	 */
+	private static class TimingSocketFactory extends SSLSocketFactory
+	{
+		// the wrapper references its factory, so it is held weakly or the entry would never be collected
+		private static final WeakHashMap<SSLSocketFactory, WeakReference<TimingSocketFactory>> sFactories = new WeakHashMap<SSLSocketFactory, WeakReference<TimingSocketFactory>>();
+		private static final ThreadLocal<long[]> sHandshakeStart = new ThreadLocal<long[]>()
+		{
+			@Override protected long[] initialValue()
+			{
+				return new long[1];
+			}
+		};
+
+		private final SSLSocketFactory mDelegate;
+
+		private TimingSocketFactory(SSLSocketFactory delegate)
+		{
+			mDelegate = delegate;
+		}
+
+		/**
+		 * Gets the wrapper for a factory. The same wrapper is returned for
+		 * the same factory so connections can still be pooled by factory
+		 */
+		public static SSLSocketFactory wrap(SSLSocketFactory factory)
+		{
+			if (factory == null || factory instanceof TimingSocketFactory)
+			{
+				return factory;
+			}
+
+			synchronized (sFactories)
+			{
+				WeakReference<TimingSocketFactory> reference = sFactories.get(factory);
+				TimingSocketFactory wrapper = reference == null ? null : reference.get();
+				if (wrapper == null)
+				{
+					wrapper = new TimingSocketFactory(factory);
+					sFactories.put(factory, new WeakReference<TimingSocketFactory>(wrapper));
+				}
+
+				return wrapper;
+			}
+		}
+
+		public static void reset()
+		{
+			sHandshakeStart.get()[0] = 0;
+		}
+
+		/**
+		 * Gets the time the handshake started on this thread, the time the
+		 * connected TCP socket was handed over to be wrapped with TLS
+		 *
+		 * @return The time in MS, or 0 if there was no handshake
+		 */
+		public static long getHandshakeStart()
+		{
+			return sHandshakeStart.get()[0];
+		}
+
+		@Override public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+		{
+			sHandshakeStart.get()[0] = System.currentTimeMillis();
+			return mDelegate.createSocket(s, host, port, autoClose);
+		}
+
+		@Override public Socket createSocket() throws IOException
+		{
+			return mDelegate.createSocket();
+		}
+
+		@Override public Socket createSocket(String host, int port) throws IOException
+		{
+			return mDelegate.createSocket(host, port);
+		}
+
+		@Override public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+		{
+			return mDelegate.createSocket(host, port, localHost, localPort);
+		}
+
+		@Override public Socket createSocket(InetAddress host, int port) throws IOException
+		{
+			return mDelegate.createSocket(host, port);
+		}
+
+		@Override public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+		{
+			return mDelegate.createSocket(address, port, localAddress, localPort);
+		}
+
+		@Override public String[] getDefaultCipherSuites()
+		{
+			return mDelegate.getDefaultCipherSuites();
+		}
+
+		@Override public String[] getSupportedCipherSuites()
+		{
+			return mDelegate.getSupportedCipherSuites();
+		}
+	}
+
+	/**
+	 * @brief Counts the bytes read through a stream
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		public long count = 0;
+
+		public CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override public int read() throws IOException
+		{
+			int b = in.read();
+			if (b != -1)
+			{
+				count++;
+			}
+
+			return b;
+		}
+
+		@Override public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int len = in.read(buffer, offset, length);
+			if (len > 0)
+			{
+				count += len;
+			}
+
+			return len;
+		}
+
+		@Override public long skip(long amount) throws IOException
+		{
+			long skipped = in.skip(amount);
+			count += skipped;
+
+			return skipped;
+		}
+
+		@Override public boolean markSupported()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @brief Counts the bytes written through a stream
+	 */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		public long count = 0;
+
+		public CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override public void write(byte[] buffer, int offset, int length) throws IOException
+		{
+			out.write(buffer, offset, length);
+			count += length;
+		}
 	}
 
 	private class PatchInputStream extends FilterInputStream
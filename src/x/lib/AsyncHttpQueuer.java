@@ -5,17 +5,46 @@
 **/
 package x.lib;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import x.type.ConnectionInfo;
 import x.type.ItemList;
-import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 
 /**
  * @brief The helper class for queueing AsyncHttpClient requests
  * 
+ * The queue is bounded and can be added to from any thread. Requests are started on a shared background thread,
+ * up to {@link setMaxProcess} at once, so a queue of thousands of requests never blocks the UI thread. The callbacks
+ * of each request are still called on the main thread.
+ * 
+ * Requests are ordered by {@link Priority}, so a request the user is waiting on does not wait behind queued
+ * prefetches. To stop low priority requests from starving, a request is ordered as if it had been queued
+ * {@link setAgingInterval} later for each priority class below {@link Priority.INTERACTIVE}, so once it has waited
+ * that long it goes ahead of newer requests of the class above. Requests can be given a deadline, and are failed
+ * with {@link AsyncHttpClient.RESPONSE_CODE_TIMEOUT} instead of being sent if it passes whilst they are queued.
+ * 
+ * Example:
+ * @code
+ * AsyncHttpQueuer.QueuedRequest prefetch = queuer.add(c2, AsyncHttpQueuer.Priority.PREFETCH, 0);
+ * queuer.add(c1, AsyncHttpQueuer.Priority.INTERACTIVE, 5000);
+ * 
+ * // the user scrolled to the prefetched item
+ * prefetch.setPriority(AsyncHttpQueuer.Priority.INTERACTIVE);
+ * @endcode
+ * 
  * <b>Depends on</b>
  * <ul>
  * 	<li>{@link AsyncHttpClient}</li>
@@ -65,32 +94,103 @@ public class AsyncHttpQueuer
 	 * The key for if the request is the last request being sent
 	 */
 	public static final String IS_LAST = "is_last";
-	
-	private Queue<AsyncHttpClient> requestQueue = new LinkedList<AsyncHttpClient>();
-	private AsyncHttpResponse mResponse;
-	private int mMaxProcess = 1;
-	private int currentQueuePos = 0;	
-	private int totalPos = 0, queuePos = 0;
-	private int totalQueueCount = 0;
-	private long queueTimeout = 0;
-	
-	private Handler processer = new Handler()
-	{ 
-		public void handleMessage(android.os.Message msg) 
-		{				
-			if (msg.what == 1)
-			{
-				return;
-			}					
-			
-			int count = mMaxProcess > totalQueueCount ? totalQueueCount : mMaxProcess;					
-			while (currentQueuePos < count)
-			{				
-				executeRequest(requestQueue.poll());
-			}
-		};
+	/**
+	 * The default maximum amount of requests that can be waiting in a queue
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+	/**
+	 * The default time in MS a request waits before it is ordered with the priority class above it
+	 */
+	public static final long DEFAULT_AGING_INTERVAL = 5000;
+	/**
+	 * The default maximum amount of progress callbacks per second for each request
+	 */
+	public static final int DEFAULT_PROGRESS_RATE = 10;
+
+	/**
+	 * @brief The priority class of a queued request
+	 */
+	public enum Priority
+	{
+		/**
+		 * Requests the user is waiting on
+		 */
+		INTERACTIVE,
+		/**
+		 * Requests that are neither
+		 */
+		NORMAL,
+		/**
+		 * Background requests such as prefetching that can wait. They are executed in the
+		 * {@link HttpExecutor.Priority.PREFETCH} lane
+		 */
+		PREFETCH;
+	}
+
+	private static ScheduledThreadPoolExecutor scheduler;
+
+	private final PriorityBlockingQueue<QueuedRequest> requestQueue = new PriorityBlockingQueue<QueuedRequest>();
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final HttpMetrics.Histogram[] mWaitTimes = new HttpMetrics.Histogram[Priority.values().length];
+	private final AtomicInteger[] mExpiredCounts = new AtomicInteger[Priority.values().length];
+	private final HashMap<String, PriorityQueue<QueuedRequest>> mThrottled = new HashMap<String, PriorityQueue<QueuedRequest>>();
+	private final AtomicInteger mQueuedCount = new AtomicInteger(0);
+	private final AtomicLong mQueuedSequence = new AtomicLong(0);
+	private final int mCapacity;
+	private volatile long mAgingInterval = DEFAULT_AGING_INTERVAL;
+	private volatile int mProgressRate = DEFAULT_PROGRESS_RATE;
+	private volatile RateLimiter mRateLimiter;
+	private final AtomicInteger mActiveCount = new AtomicInteger(0);
+	private final AtomicInteger mStartedCount = new AtomicInteger(0);
+	private final AtomicInteger mFinishedCount = new AtomicInteger(0);
+	private final AtomicInteger mTotalCount = new AtomicInteger(0);
+	private final AtomicBoolean mDelayedDispatch = new AtomicBoolean(false);
+	private volatile AsyncHttpResponse mResponse;
+	private volatile int mMaxProcess = 1;
+	private volatile long queueTimeout = 0;
+	private volatile boolean mRunning = false;
+	private long mNextStartTime = 0;
+
+	private final Runnable mDispatchRunnable = new Runnable()
+	{
+		public void run()
+		{
+			dispatch();
+		}
 	};
-	
+
+	private final Runnable mDelayedDispatchRunnable = new Runnable()
+	{
+		public void run()
+		{
+			mDelayedDispatch.set(false);
+			dispatch();
+		}
+	};
+
+	/**
+	 * Default constructor
+	 */
+	public AsyncHttpQueuer()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Default constructor
+	 * @param capacity The maximum amount of requests that can be waiting in the queue
+	 */
+	public AsyncHttpQueuer(int capacity)
+	{
+		mCapacity = Math.max(1, capacity);
+
+		for (int index = 0; index < mWaitTimes.length; index++)
+		{
+			mWaitTimes[index] = new HttpMetrics.Histogram();
+			mExpiredCounts[index] = new AtomicInteger(0);
+		}
+	}
+
 	/**
 	 * Starts the queue 
 	 */
@@ -98,206 +198,260 @@ public class AsyncHttpQueuer
 	{
 		start(0);
 	}
-	
+
 	/**
-	 * Starts the queue
-	 * @param timeout The timeout between each request in MS
+	 * Starts the queue. Requests added after the queue has started are sent as soon as there is room for them
+	 * @param timeout The minimum time in MS between the start of each request
 	 */
 	public void start(long timeout)
 	{
-		queueTimeout = timeout;
-		
-		if (requestQueue.size() > 0)
-		{		
-			totalQueueCount = requestQueue.size();
-			processer.sendEmptyMessage(0);			
-		}
-	} 
-	
+		queueTimeout = Math.max(0, timeout);
+		mRunning = true;
+		getScheduler().execute(mDispatchRunnable);
+	}
+
 	/**
-	 * Executes the request given from the handler
-	 * @param client The client to execute
-	 */
-	private void executeRequest(AsyncHttpClient client)
-	{		
-		if (client == null) return;			
-		 
-		queuePos++;
-		currentQueuePos++;	 		
-								
-		Bundle b = new Bundle();
-		b.putInt(BUNDLE_POSITION, queuePos - 1);
-		{
-			final AsyncHttpResponse originalResponse = client.getResponse();			
-						
-			client.execute(new AsyncHttpResponse(b)
-			{
-				@Override public void beforeFinish()
-				{					
-					totalPos++;
-					currentQueuePos--;
-					
-					if (originalResponse != null)
-					{
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						originalResponse.getExtras().putBoolean(IS_LAST, totalPos >= totalQueueCount);
-						originalResponse.beforeFinish();
-					}
-					
-					if (mResponse != null)
-					{
-						mResponse.setConnectionInfo(getConnectionInfo());
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.getExtras().putBoolean(IS_LAST, totalPos >= totalQueueCount);
-						mResponse.beforeFinish();
-					}
+	 * Starts as many queued requests as {@link setMaxProcess} allows. Only ever runs on the scheduler thread, so
+	 * mNextStartTime and mThrottled need no locking
+	 */
+	private void dispatch()
+	{
+		while (mRunning && mActiveCount.get() < mMaxProcess)
+		{
+			long now = System.currentTimeMillis();
+			if (queueTimeout > 0 && mNextStartTime > now)
+			{
+				if (mDelayedDispatch.compareAndSet(false, true))
+				{
+					getScheduler().schedule(mDelayedDispatchRunnable, mNextStartTime - now, TimeUnit.MILLISECONDS);
 				}
-				
-				@Override public void onFailure(Object response)
+
+				return;
+			}
+
+			QueuedRequest request = requestQueue.poll();
+			if (request == null)
+			{
+				return;
+			}
+
+			if (request.mDeadline > 0 && request.mDeadline <= now)
+			{
+				if (request.mState.compareAndSet(QueuedRequest.STATE_QUEUED, QueuedRequest.STATE_FINISHED))
 				{
-					if (originalResponse != null)
-					{
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						originalResponse.onFailure(response);
-					}
-					
-					if (mResponse != null)
-					{
-						mResponse.setConnectionInfo(getConnectionInfo());
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.onFailure(response);
-					}				
+					mQueuedCount.decrementAndGet();
+					expire(request);
 				}
-				
-				@Override public void onFailure(int responseCode, String responseMessage)
+
+				continue;
+			}
+
+			if (throttle(request, now))
+			{
+				continue;
+			}
+
+			if (!request.mState.compareAndSet(QueuedRequest.STATE_QUEUED, QueuedRequest.STATE_STARTED))
+			{
+				// cancelled whilst it was being moved
+				continue;
+			}
+
+			mQueuedCount.decrementAndGet();
+			mWaitTimes[request.mPriority.ordinal()].record(now - request.mQueuedTime);
+
+			if (request.mPriority == Priority.PREFETCH)
+			{
+				request.mClient.setPriority(HttpExecutor.Priority.PREFETCH);
+			}
+
+			mActiveCount.incrementAndGet();
+			mNextStartTime = now + queueTimeout;
+			executeRequest(request);
+		}
+	}
+
+	/**
+	 * Holds back a request to a host that has run out of tokens. Requests to a host that is already being held back
+	 * are held back with it without taking a token, and all of them go back in the queue when the next token is due
+	 * @param request The request
+	 * @param now The current time in MS
+	 * @return True if the request was held back
+	 */
+	private boolean throttle(QueuedRequest request, long now)
+	{
+		RateLimiter limiter = mRateLimiter;
+		String hostKey = request.getHostKey();
+
+		if (limiter == null || hostKey == null || request.mState.get() != QueuedRequest.STATE_QUEUED)
+		{
+			return false;
+		}
+
+		PriorityQueue<QueuedRequest> held = mThrottled.get(hostKey);
+		long wait = held == null ? limiter.tryAcquire(hostKey) : 1;
+
+		if (wait <= 0)
+		{
+			if (request.mThrottledTime > 0)
+			{
+				limiter.recordThrottledWait(hostKey, now - request.mThrottledTime);
+			}
+
+			return false;
+		}
+
+		if (request.mThrottledTime == 0)
+		{
+			request.mThrottledTime = now;
+		}
+
+		if (held == null)
+		{
+			held = new PriorityQueue<QueuedRequest>();
+			mThrottled.put(hostKey, held);
+
+			final String releaseKey = hostKey;
+			getScheduler().schedule(new Runnable()
+			{
+				public void run()
 				{
-					if (originalResponse != null)
-					{
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						originalResponse.onFailure(responseCode, responseMessage);
-					}
-					
-					if (mResponse != null)
+					PriorityQueue<QueuedRequest> released = mThrottled.remove(releaseKey);
+					if (released != null)
 					{
-						mResponse.setConnectionInfo(getConnectionInfo());
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.onFailure(responseCode, responseMessage);
+						requestQueue.addAll(released);
 					}
+
+					dispatch();
 				}
-				
-				@Override public void onFinish()
-				{					
-					if (requestQueue.size() < 1)
-					{
-						processer.sendEmptyMessageAtTime(1, queueTimeout);	
-					}
-					else
-					{
-						processer.sendEmptyMessageAtTime(0, queueTimeout);
-					}
-	
-					if (originalResponse != null)
-					{
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						originalResponse.onFinish();
-					}
-					
-					if (mResponse != null)
+			}, wait, TimeUnit.MILLISECONDS);
+		}
+
+		held.add(request);
+		return true;
+	}
+
+	/**
+	 * Fails a request whose deadline passed before it could be sent. The callbacks are made on the main thread
+	 * like those of a sent request
+	 * @param request The request
+	 */
+	private void expire(QueuedRequest request)
+	{
+		mExpiredCounts[request.mPriority.ordinal()].incrementAndGet();
+
+		final AsyncHttpResponse originalResponse = request.mClient.getResponse();
+		final AsyncHttpResponse queueResponse = mResponse;
+		final boolean last = mFinishedCount.incrementAndGet() >= mTotalCount.get();
+
+		final ConnectionInfo info = new ConnectionInfo();
+		info.connectionUrl = request.mClient.getUrl() == null ? "" : request.mClient.getUrl();
+		info.connectionMethod = request.mClient.getRequestMode() == null ? "" : request.mClient.getRequestMode().getString();
+		info.connectionResponseCode = AsyncHttpClient.RESPONSE_CODE_TIMEOUT;
+		info.connectionResponseMessage = "The deadline passed before the request was sent";
+		info.connectionQueueTime = System.currentTimeMillis() - request.mQueuedTime;
+
+		mMainHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				for (AsyncHttpResponse response : new AsyncHttpResponse[]{originalResponse, queueResponse})
+				{
+					if (response == null) continue;
+
+					response.setConnectionInfo(info);
+					if (response.getExtras() != null)
 					{
-						mResponse.setConnectionInfo(getConnectionInfo());
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.onFinish();
+						response.getExtras().putBoolean(IS_LAST, last);
 					}
+
+					response.beforeFinish();
+					response.onFailure();
+					response.onFailure(info.connectionResponseCode, info.connectionResponseMessage);
+					response.onFinish();
 				}
-				 
-				@Override public void onSend()
-				{											
-					if (originalResponse != null)
-					{
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));						
-						originalResponse.onSend();
-					}
-					
-					if (mResponse != null)
-					{
-						mResponse.setConnectionInfo(getConnectionInfo());
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));						
-						mResponse.onSend();
-					}					
+			}
+		});
+	}
+
+	/**
+	 * Frees the slot of a finished request and starts the next one
+	 */
+	private void onRequestFinished()
+	{
+		mActiveCount.decrementAndGet();
+		getScheduler().execute(mDispatchRunnable);
+	}
+
+	/**
+	 * Gets the shared thread the queues start their requests on
+	 * @return The scheduler
+	 */
+	private static synchronized ScheduledThreadPoolExecutor getScheduler()
+	{
+		if (scheduler == null)
+		{
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "XHttp-queuer");
+					thread.setDaemon(true);
+
+					return thread;
 				}
-				
-				@Override public void onSuccess(byte[] response)
+			});
+		}
+
+		return scheduler;
+	}
+
+	/**
+	 * Executes the request given from the scheduler. The order and the slot are decided on the scheduler, but the
+	 * request is started on the main thread so that onPreExecute and onSend are called there
+	 * @param request The request to execute
+	 */
+	private void executeRequest(final QueuedRequest request)
+	{
+		final AsyncHttpClient client = request.mClient;
+
+		if (client.getUrl() == null)
+		{
+			// nothing would be sent, so no callback would free the slot
+			request.mState.set(QueuedRequest.STATE_FINISHED);
+			mFinishedCount.incrementAndGet();
+			mActiveCount.decrementAndGet();
+			return;
+		}
+
+		final int position = mStartedCount.getAndIncrement();
+
+		mMainHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				if (request.mState.get() != QueuedRequest.STATE_STARTED)
 				{
-					if (originalResponse != null)
-					{
-						originalResponse.setConnectionInfo(getConnectionInfo());				
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						originalResponse.onSuccess(response);						
-					}
-										
-					if (mResponse != null) 						
-					{						
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.setConnectionInfo(getConnectionInfo());
-						mResponse.onSuccess(response);
-					}
+					// cancelled whilst waiting for the main thread, which already freed the slot
+					return;
 				}
-				
-				@Override public void onBytesProcessed(int amountProcessed, int totalSize)
+
+				try
 				{
-					if (originalResponse != null)
-					{
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						originalResponse.onBytesProcessed(amountProcessed, totalSize);
-					}
-										
-					if (mResponse != null) 						
-					{						
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.setConnectionInfo(getConnectionInfo());						
-						mResponse.onBytesProcessed(amountProcessed, totalSize);
-					}
+					client.execute(new QueueResponse(request, position, client.getResponse()));
 				}
-				
-				@Override public void onSuccess(Object response)
-				{									
-					if (originalResponse != null)
+				catch (RuntimeException e)
+				{
+					// the request could not be started
+					Debug.out(e);
+					if (request.mState.compareAndSet(QueuedRequest.STATE_STARTED, QueuedRequest.STATE_FINISHED))
 					{
-						originalResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						originalResponse.setConnectionInfo(getConnectionInfo());
-						
-						if (response.getClass().equals(byte[].class))
-						{						
-							originalResponse.onSuccess((byte[])response);
-						}
-						else
-						{
-							originalResponse.onSuccess(response);
-						}
-					}
-										
-					if (mResponse != null) 						
-					{						
-						mResponse.getExtras().putInt(BUNDLE_POSITION, getExtras().getInt(BUNDLE_POSITION));
-						mResponse.setConnectionInfo(getConnectionInfo());
-						
-						if (response.getClass().equals(byte[].class))
-						{						
-							mResponse.onSuccess((byte[])response);
-						}
-						else
-						{
-							mResponse.onSuccess(response);
-						}
+						mFinishedCount.incrementAndGet();
+						onRequestFinished();
 					}
 				}
-			});		
-		}
+			}
+		});
 	}
 	
 	/**
@@ -346,21 +500,62 @@ public class AsyncHttpQueuer
 	}
 	
 	/**
-	 * Adds a client to the queue
+	 * Adds a client to the queue. Can be called from any thread. Clients set to the
+	 * {@link HttpExecutor.Priority.PREFETCH} lane are queued as {@link Priority.PREFETCH}, the rest as {@link Priority.NORMAL}
 	 * @param clients The client to add
+	 * @return False if the queue is full and the client was not added
+	 */
+	public boolean addToQueue(AsyncHttpClient clients)
+	{
+		if (clients == null)
+		{
+			return false;
+		}
+
+		return add(clients, clients.getPriority() == HttpExecutor.Priority.PREFETCH ? Priority.PREFETCH : Priority.NORMAL, 0) != null;
+	}
+
+	/**
+	 * Adds a client to the queue. Can be called from any thread
+	 * @param client The client to add
+	 * @param priority The priority class of the request
+	 * @param deadline The time in MS from now the request must be sent within, or 0 for no deadline
+	 * @return The queued request, which can be cancelled or reprioritized, or null if the queue is full
 	 */
-	public void addToQueue(AsyncHttpClient clients)
+	public QueuedRequest add(AsyncHttpClient client, Priority priority, long deadline)
 	{
-		requestQueue.add(clients);
+		if (mQueuedCount.incrementAndGet() > mCapacity)
+		{
+			mQueuedCount.decrementAndGet();
+			return null;
+		}
+
+		QueuedRequest request = new QueuedRequest(client, priority, deadline > 0 ? System.currentTimeMillis() + deadline : 0);
+		mTotalCount.incrementAndGet();
+		requestQueue.add(request);
+
+		if (mRunning)
+		{
+			getScheduler().execute(mDispatchRunnable);
+		}
+
+		return request;
 	}
 	
 	/**
-	 * Adds a collection of clients to the queue
+	 * Adds a collection of clients to the queue. Can be called from any thread
 	 * @param clients The clients to add
+	 * @return False if the queue filled up and some of the clients were not added
 	 */
-	public void addToQueue(Collection<AsyncHttpClient> clients)
-	{			
-		requestQueue.addAll(clients);
+	public boolean addToQueue(Collection<AsyncHttpClient> clients)
+	{
+		boolean added = true;
+		for (AsyncHttpClient client : clients)
+		{
+			added &= addToQueue(client);
+		}
+
+		return added;
 	}
 	
 	/**
@@ -373,11 +568,11 @@ public class AsyncHttpQueuer
 	}
 	
 	/**
-	 * Stops the queuer
+	 * Stops the queuer. Requests that have already started carry on, the rest stay queued until {@link start} is called again
 	 */
 	public void stop()
 	{
-		processer.sendEmptyMessage(1);
+		mRunning = false;
 	}
 	
 	/**
@@ -386,6 +581,538 @@ public class AsyncHttpQueuer
 	 */
 	public void setMaxProcess(int max)
 	{
-		mMaxProcess = max;
+		mMaxProcess = Math.max(1, max);
+
+		if (mRunning)
+		{
+			getScheduler().execute(mDispatchRunnable);
+		}
+	}
+
+	/**
+	 * Sets how long a request waits before it is ordered with the priority class above it
+	 * @param interval The time in MS, or 0 to never let lower priority requests go first
+	 */
+	public void setAgingInterval(long interval)
+	{
+		mAgingInterval = Math.max(0, interval);
+	}
+
+	/**
+	 * Gets how long a request waits before it is ordered with the priority class above it
+	 * @return The time in MS
+	 */
+	public long getAgingInterval()
+	{
+		return mAgingInterval;
+	}
+
+	/**
+	 * Sets how often {@link AsyncHttpResponse.onBytesProcessed(int, int)} is called for each request. Progress in
+	 * between is coalesced into the next callback, and the callback for the last byte is always made. Chunks passed
+	 * to {@link AsyncHttpResponse.onChunk} are never coalesced
+	 * @param perSecond The maximum amount of progress callbacks per second, or 0 to call it for every chunk
+	 */
+	public void setProgressRate(int perSecond)
+	{
+		mProgressRate = Math.max(0, perSecond);
+	}
+
+	/**
+	 * Gets how often {@link AsyncHttpResponse.onBytesProcessed(int, int)} is called for each request
+	 * @return The maximum amount of progress callbacks per second, or 0 if every chunk is passed on
+	 */
+	public int getProgressRate()
+	{
+		return mProgressRate;
+	}
+
+	/**
+	 * Sets the rate limiter consulted before each request is sent. Requests to a host that has run out of tokens are
+	 * held back, whilst requests to other hosts carry on being sent
+	 * @param limiter The limiter, or null to not limit the rate
+	 */
+	public void setRateLimiter(RateLimiter limiter)
+	{
+		mRateLimiter = limiter;
+	}
+
+	/**
+	 * Gets the rate limiter consulted before each request is sent
+	 * @return The limiter, or null if the rate is not limited
+	 */
+	public RateLimiter getRateLimiter()
+	{
+		return mRateLimiter;
+	}
+
+	/**
+	 * Gets the times requests of a priority class waited in the queue before they were sent
+	 * @param priority The priority class
+	 * @return The histogram of wait times in MS
+	 */
+	public HttpMetrics.Histogram getWaitTimes(Priority priority)
+	{
+		return mWaitTimes[priority.ordinal()];
+	}
+
+	/**
+	 * Gets the amount of requests of a priority class that were dropped because their deadline passed
+	 * @param priority The priority class
+	 * @return The amount of requests
+	 */
+	public int getExpiredCount(Priority priority)
+	{
+		return mExpiredCounts[priority.ordinal()].get();
+	}
+
+	/**
+	 * Gets the amount of requests waiting to be sent
+	 * @return The amount of requests
+	 */
+	public int getQueuedCount()
+	{
+		return mQueuedCount.get();
+	}
+
+	/**
+	 * Gets the amount of requests currently being sent
+	 * @return The amount of requests
+	 */
+	public int getActiveCount()
+	{
+		return mActiveCount.get();
+	}
+
+	/**
+	 * Gets the amount of requests that have finished
+	 * @return The amount of requests
+	 */
+	public int getFinishedCount()
+	{
+		return mFinishedCount.get();
+	}
+
+	/**
+	 * @brief A request waiting in the queue
+	 */
+	public class QueuedRequest implements Comparable<QueuedRequest>
+	{
+		private static final int STATE_QUEUED = 0;
+		private static final int STATE_STARTED = 1;
+		private static final int STATE_CANCELLED = 2;
+		private static final int STATE_FINISHED = 3;
+
+		private final AsyncHttpClient mClient;
+		private final AtomicInteger mState = new AtomicInteger(STATE_QUEUED);
+		private final long mQueuedTime = System.currentTimeMillis();
+		private final long mDeadline;
+		private volatile Priority mPriority;
+		private long mOrder;
+		private long mSequence;
+		private long mThrottledTime = 0;
+		private String mHostKey;
+
+		private QueuedRequest(AsyncHttpClient client, Priority priority, long deadline)
+		{
+			mClient = client;
+			mDeadline = deadline;
+			order(priority);
+		}
+
+		/**
+		 * Sets the order of the request in the heap. Lower priority classes are ordered as if they were queued later
+		 * @param priority The priority class
+		 */
+		private void order(Priority priority)
+		{
+			mPriority = priority;
+			mOrder = mQueuedTime + priority.ordinal() * mAgingInterval;
+			mSequence = mQueuedSequence.incrementAndGet();
+		}
+
+		/**
+		 * Moves the request to another priority class, keeping the time it has already waited
+		 * @param priority The new priority class
+		 * @return False if the request has already been sent or cancelled, or is being held back by the rate limiter
+		 */
+		public boolean setPriority(Priority priority)
+		{
+			synchronized (this)
+			{
+				if (!requestQueue.remove(this))
+				{
+					return false;
+				}
+
+				order(priority);
+				requestQueue.add(this);
+			}
+
+			if (mRunning)
+			{
+				getScheduler().execute(mDispatchRunnable);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Gets the priority class of the request
+		 * @return The priority class
+		 */
+		public Priority getPriority()
+		{
+			return mPriority;
+		}
+
+		/**
+		 * Gets the host the request is sent to
+		 * @return The host key from {@link ConnectionPool.getHostKey}, or null if the url is not valid
+		 */
+		private String getHostKey()
+		{
+			if (mHostKey == null && mClient.getUrl() != null)
+			{
+				try
+				{
+					mHostKey = ConnectionPool.getHostKey(new URL(mClient.getUrl()));
+				}
+				catch (MalformedURLException e)
+				{
+					return null;
+				}
+			}
+
+			return mHostKey;
+		}
+
+		/**
+		 * Gets the client of the request
+		 * @return The client
+		 */
+		public AsyncHttpClient getClient()
+		{
+			return mClient;
+		}
+
+		/**
+		 * Removes the request from the queue, or cancels it if it has already been sent
+		 * @return False if the request had already finished or been cancelled
+		 */
+		public boolean cancel()
+		{
+			if (mState.compareAndSet(STATE_QUEUED, STATE_CANCELLED))
+			{
+				// a request held back by the rate limiter is skipped when it is released
+				requestQueue.remove(this);
+				mQueuedCount.decrementAndGet();
+				mFinishedCount.incrementAndGet();
+				return true;
+			}
+
+			if (mState.compareAndSet(STATE_STARTED, STATE_CANCELLED))
+			{
+				// a cancelled request gets no more callbacks, so its slot is freed here
+				mClient.cancel();
+				mFinishedCount.incrementAndGet();
+				onRequestFinished();
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Checks if the request is still waiting in the queue
+		 * @return True if it has not been sent or cancelled
+		 */
+		public boolean isQueued()
+		{
+			return mState.get() == STATE_QUEUED;
+		}
+
+		public int compareTo(QueuedRequest another)
+		{
+			if (mOrder != another.mOrder)
+			{
+				return mOrder < another.mOrder ? -1 : 1;
+			}
+
+			return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * @brief Passes the callbacks of a sent request on to its own response and the response of the queue.
+	 *
+	 * The position of the request is kept in a field and set on both responses with
+	 * {@link AsyncHttpResponse.setQueuePosition}, so progress callbacks allocate nothing. The extras are only
+	 * written for the lifecycle callbacks, which happen a handful of times a request.
+	 */
+	private class QueueResponse extends AsyncHttpResponse
+	{
+		private final QueuedRequest mRequest;
+		private final int mPosition;
+		private final AsyncHttpResponse mOriginalResponse;
+		private final long mProgressInterval;
+		private long mLastProgressTime = 0;
+		private int mPendingAmount = -1;
+		private int mPendingTotal = 0;
+
+		public QueueResponse(QueuedRequest request, int position, AsyncHttpResponse originalResponse)
+		{
+			super(null);
+
+			int rate = mProgressRate;
+
+			mRequest = request;
+			mPosition = position;
+			mOriginalResponse = originalResponse;
+			mProgressInterval = rate > 0 ? 1000000000L / rate : 0;
+		}
+
+		/**
+		 * Sets the connection info and position on a response before a callback
+		 * @param response The response, may be null
+		 * @param lifecycle If the position should also be written to the extras of the response
+		 * @return The response
+		 */
+		private AsyncHttpResponse prepare(AsyncHttpResponse response, boolean lifecycle)
+		{
+			if (response != null)
+			{
+				response.setConnectionInfo(getConnectionInfo());
+				response.setQueuePosition(mPosition);
+
+				if (lifecycle && response.getExtras() != null)
+				{
+					response.getExtras().putInt(BUNDLE_POSITION, mPosition);
+				}
+			}
+
+			return response;
+		}
+
+		/**
+		 * Calls the progress callback of both responses
+		 */
+		private void dispatchProgress(int amountProcessed, int totalSize)
+		{
+			mPendingAmount = -1;
+
+			AsyncHttpResponse response = prepare(mOriginalResponse, false);
+			if (response != null)
+			{
+				response.onBytesProcessed(amountProcessed, totalSize);
+			}
+
+			response = prepare(mResponse, false);
+			if (response != null)
+			{
+				response.onBytesProcessed(amountProcessed, totalSize);
+			}
+		}
+
+		@Override public void onSend()
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				response.onSend();
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				response.onSend();
+			}
+		}
+
+		@Override public void onBytesProcessed(int amountProcessed, int totalSize)
+		{
+			long now = System.nanoTime();
+
+			if (mProgressInterval == 0 || amountProcessed == totalSize || now - mLastProgressTime >= mProgressInterval)
+			{
+				mLastProgressTime = now;
+				dispatchProgress(amountProcessed, totalSize);
+			}
+			else
+			{
+				mPendingAmount = amountProcessed;
+				mPendingTotal = totalSize;
+			}
+		}
+
+		@Override public void onBytesProcessed(byte[] chunk, int amountProcessed, int totalSize)
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, false);
+			if (response != null)
+			{
+				response.onBytesProcessed(chunk, amountProcessed, totalSize);
+			}
+
+			response = prepare(mResponse, false);
+			if (response != null)
+			{
+				response.onBytesProcessed(chunk, amountProcessed, totalSize);
+			}
+		}
+
+		@Override public void onChunk(byte[] buffer, int length, int amountProcessed, int totalSize)
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, false);
+			if (response != null)
+			{
+				response.onChunk(buffer, length, amountProcessed, totalSize);
+			}
+
+			response = prepare(mResponse, false);
+			if (response != null)
+			{
+				response.onChunk(buffer, length, amountProcessed, totalSize);
+			}
+		}
+
+		@Override public void beforeFinish()
+		{
+			// progress coalesced after the last callback is passed on before the request finishes
+			if (mPendingAmount > -1)
+			{
+				dispatchProgress(mPendingAmount, mPendingTotal);
+			}
+
+			boolean last = mFinishedCount.incrementAndGet() >= mTotalCount.get();
+
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				if (response.getExtras() != null)
+				{
+					response.getExtras().putBoolean(IS_LAST, last);
+				}
+
+				response.beforeFinish();
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				if (response.getExtras() != null)
+				{
+					response.getExtras().putBoolean(IS_LAST, last);
+				}
+
+				response.beforeFinish();
+			}
+		}
+
+		@Override public void onSuccess(Object result)
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				deliverSuccess(response, result);
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				deliverSuccess(response, result);
+			}
+		}
+
+		@Override public void onSuccess(byte[] result)
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				response.onSuccess(result);
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				response.onSuccess(result);
+			}
+		}
+
+		private void deliverSuccess(AsyncHttpResponse response, Object result)
+		{
+			if (result != null && result.getClass().equals(byte[].class))
+			{
+				response.onSuccess((byte[])result);
+			}
+			else
+			{
+				response.onSuccess(result);
+			}
+		}
+
+		@Override public void onFailure()
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				response.onFailure();
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				response.onFailure();
+			}
+		}
+
+		@Override public void onFailure(Object result)
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				response.onFailure(result);
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				response.onFailure(result);
+			}
+		}
+
+		@Override public void onFailure(int responseCode, String responseMessage)
+		{
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				response.onFailure(responseCode, responseMessage);
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				response.onFailure(responseCode, responseMessage);
+			}
+		}
+
+		@Override public void onFinish()
+		{
+			if (mRequest.mState.compareAndSet(QueuedRequest.STATE_STARTED, QueuedRequest.STATE_FINISHED))
+			{
+				onRequestFinished();
+			}
+
+			AsyncHttpResponse response = prepare(mOriginalResponse, true);
+			if (response != null)
+			{
+				response.onFinish();
+			}
+
+			response = prepare(mResponse, true);
+			if (response != null)
+			{
+				response.onFinish();
+			}
+		}
 	}
 }
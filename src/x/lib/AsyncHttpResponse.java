@@ -1,5 +1,8 @@
 package x.lib;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import x.type.ConnectionInfo;
 import android.os.Bundle;
 
@@ -10,6 +13,7 @@ public abstract class AsyncHttpResponse
 {
 	private Bundle mExtras = null;
 	private ConnectionInfo mConnectionInfo = new ConnectionInfo();
+	private int mQueuePosition = -1;
 
 	/**
 	 * Default constructor
@@ -46,6 +50,25 @@ public abstract class AsyncHttpResponse
 		return this.mConnectionInfo;
 	}
 
+	/**
+	 * Sets the position of the request in its {@link AsyncHttpQueuer}
+	 * @param position The position
+	 */
+	void setQueuePosition(int position)
+	{
+		mQueuePosition = position;
+	}
+
+	/**
+	 * Gets the position of the request being called back in its {@link AsyncHttpQueuer}. Unlike
+	 * {@link AsyncHttpQueuer.BUNDLE_POSITION} in the extras, this is also set for progress callbacks
+	 * @return The position, or -1 if the request was not sent by a queue
+	 */
+	public int getQueuePosition()
+	{
+		return mQueuePosition;
+	}
+
 	/**
 	 * Gets the extras from the class
 	 * @return The extras
@@ -70,6 +93,38 @@ public abstract class AsyncHttpResponse
 	 */
 	public void onBytesProcessed(byte[] chunk, int amountProcessed, int totalSize){};
 
+	/**
+	 * Called on the request thread with the body of a {@link AsyncHttpClient.RequestMode.STREAM} request.
+	 * The stream is closed once this returns. By default the stream is read into a single reusable buffer which is passed to {@link onChunk}
+	 * @param stream The response body
+	 * @param totalSize The total size of the data to be downloaded, -1 if unknown
+	 * @throws IOException
+	 */
+	public void onStream(InputStream stream, int totalSize) throws IOException
+	{
+		byte[] buffer = new byte[8192];
+
+		int len = 0;
+		int amountProcessed = 0;
+		while ((len = stream.read(buffer)) != -1)
+		{
+			amountProcessed += len;
+
+			onChunk(buffer, len, amountProcessed, totalSize);
+			onBytesProcessed(amountProcessed, totalSize);
+		}
+	}
+
+	/**
+	 * Called on the request thread for each chunk of a {@link AsyncHttpClient.RequestMode.STREAM} request.
+	 * The buffer is reused for the next chunk so it must be copied if it is needed after this returns
+	 * @param buffer The buffer containing the chunk
+	 * @param length The amount of bytes in the buffer that belong to the chunk
+	 * @param amountProcessed The amount of bytes that have been processed (0 to totalSize)
+	 * @param totalSize The total size of the data to be downloaded, -1 if unknown
+	 */
+	public void onChunk(byte[] buffer, int length, int amountProcessed, int totalSize){};
+
 	/**
 	 * The function that gets called when the request is sent
 	 */
@@ -0,0 +1,41 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @brief The envelope a {@link HttpBatcher} wraps its requests in, and unwraps the responses from.
+ *
+ * Implement this to match the batch endpoint of a server. {@link JsonBatchFormat} is used by default. Bodies are text
+ * both ways, so {@link HttpBatcher} does not batch downloads or byte[] bodies.
+ */
+public interface BatchFormat
+{
+	/**
+	 * Gets the content type of the encoded batch
+	 * @return The value of the Content-Type header
+	 */
+	public String getContentType();
+
+	/**
+	 * Encodes requests into the body of a batch request
+	 * @param items The requests, each with an id that is unique in the batch
+	 * @return The body to post to the batch url
+	 * @throws IOException If the requests could not be encoded
+	 */
+	public byte[] encode(List<HttpBatcher.Item> items) throws IOException;
+
+	/**
+	 * Decodes the body of a batch response into the responses of each request
+	 * @param body The body of the batch response
+	 * @param items The requests that were sent in the batch
+	 * @return The responses, in any order. Requests without a response are failed
+	 * @throws IOException If the body could not be decoded, which fails every request
+	 */
+	public List<HttpBatcher.Result> decode(String body, List<HttpBatcher.Item> items) throws IOException;
+}
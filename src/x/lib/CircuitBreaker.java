@@ -0,0 +1,390 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @brief Stops requests being sent to a host that is failing.
+ *
+ * The outcome of the last requests to each host is kept in a sliding window. When the rate of failed
+ * (no response or a 5xx) or slow requests in the window passes a threshold the circuit for the host opens, and
+ * requests to it fail straight away with {@link RESPONSE_CODE_CIRCUIT_OPEN} instead of waiting for a timeout.
+ * After the open duration a few trial requests are let through (half open). If they succeed the circuit closes
+ * again, otherwise it opens for another open duration.
+ *
+ * Example:
+ * @code
+ * AsyncHttpClient.setCircuitBreaker(new CircuitBreaker());
+ *
+ * public void onFailure(int responseCode, String responseMessage)
+ * {
+ * 	if (responseCode == CircuitBreaker.RESPONSE_CODE_CIRCUIT_OPEN)
+ * 	{
+ * 		// show offline message
+ * 	}
+ * }
+ * @endcode
+ */
+public class CircuitBreaker
+{
+	/**
+	 * The response code given to requests that were not sent because the circuit for their host is open
+	 */
+	public static final int RESPONSE_CODE_CIRCUIT_OPEN = -2;
+
+	/**
+	 * @brief The state of the circuit for a host
+	 */
+	public enum State
+	{
+		/**
+		 * Requests are sent as normal
+		 */
+		CLOSED,
+		/**
+		 * Requests fail straight away
+		 */
+		OPEN,
+		/**
+		 * A limited amount of trial requests are sent to see if the host has recovered
+		 */
+		HALF_OPEN;
+	}
+
+	private final HashMap<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+	private int mWindowSize = 20;
+	private int mMinimumCalls = 10;
+	private float mFailureRateThreshold = 0.5f;
+	private float mSlowCallRateThreshold = 0.8f;
+	private long mSlowCallDuration = 5000;
+	private long mOpenDuration = 30000;
+	private int mHalfOpenCalls = 3;
+	private long mRejectedCount = 0;
+
+	/**
+	 * Default constructor
+	 */
+	public CircuitBreaker()
+	{
+	}
+
+	/**
+	 * Sets the amount of recent requests the failure rate is worked out from. Defaults to 20
+	 * @param size The window size
+	 */
+	public synchronized void setWindowSize(int size)
+	{
+		mWindowSize = Math.max(1, size);
+		mCircuits.clear();
+	}
+
+	/**
+	 * Sets the amount of requests needed in the window before the circuit can open. Defaults to 10
+	 * @param calls The minimum amount of requests
+	 */
+	public synchronized void setMinimumCalls(int calls)
+	{
+		mMinimumCalls = Math.max(1, calls);
+	}
+
+	/**
+	 * Sets the rate of failed requests that opens the circuit. Defaults to 0.5
+	 * @param rate The rate between 0 and 1
+	 */
+	public synchronized void setFailureRateThreshold(float rate)
+	{
+		mFailureRateThreshold = rate;
+	}
+
+	/**
+	 * Sets the rate of slow requests that opens the circuit. Defaults to 0.8
+	 * @param rate The rate between 0 and 1, or above 1 to disable
+	 */
+	public synchronized void setSlowCallRateThreshold(float rate)
+	{
+		mSlowCallRateThreshold = rate;
+	}
+
+	/**
+	 * Sets how long a request has to take to count as slow. Defaults to 5000
+	 * @param duration The duration in MS
+	 */
+	public synchronized void setSlowCallDuration(long duration)
+	{
+		mSlowCallDuration = duration;
+	}
+
+	/**
+	 * Sets how long the circuit stays open before trial requests are let through. Defaults to 30000
+	 * @param duration The duration in MS
+	 */
+	public synchronized void setOpenDuration(long duration)
+	{
+		mOpenDuration = Math.max(0, duration);
+	}
+
+	/**
+	 * Sets the amount of trial requests let through when half open. Defaults to 3
+	 * @param calls The amount of trial requests
+	 */
+	public synchronized void setHalfOpenCalls(int calls)
+	{
+		mHalfOpenCalls = Math.max(1, calls);
+	}
+
+	/**
+	 * Checks if a request to a host can be sent
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return True if the request can be sent, false if it should fail straight away
+	 */
+	public synchronized boolean allowRequest(String hostKey)
+	{
+		Circuit circuit = getCircuit(hostKey);
+
+		if (circuit.state == State.OPEN && System.currentTimeMillis() - circuit.openedTime >= mOpenDuration)
+		{
+			circuit.state = State.HALF_OPEN;
+			circuit.halfOpenPermits = mHalfOpenCalls;
+			circuit.halfOpenSuccesses = 0;
+		}
+
+		if (circuit.state == State.OPEN || (circuit.state == State.HALF_OPEN && circuit.halfOpenPermits <= 0))
+		{
+			mRejectedCount++;
+			return false;
+		}
+
+		if (circuit.state == State.HALF_OPEN)
+		{
+			circuit.halfOpenPermits--;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records the outcome of a request that was let through by {@link allowRequest}
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @param responseCode The response code of the request, 0 if no response was received
+	 * @param duration The time the request took in MS
+	 */
+	public synchronized void onResult(String hostKey, int responseCode, long duration)
+	{
+		Circuit circuit = getCircuit(hostKey);
+		boolean failure = isFailure(responseCode);
+		boolean slow = duration >= mSlowCallDuration;
+
+		if (circuit.state == State.HALF_OPEN)
+		{
+			if (failure || slow)
+			{
+				open(circuit);
+			}
+			else if (++circuit.halfOpenSuccesses >= mHalfOpenCalls)
+			{
+				circuit.state = State.CLOSED;
+				circuit.clear();
+			}
+
+			return;
+		}
+
+		if (circuit.state == State.OPEN)
+		{
+			return;
+		}
+
+		circuit.record(failure, slow);
+
+		if (circuit.count >= mMinimumCalls && (circuit.getFailureRate() >= mFailureRateThreshold || circuit.getSlowCallRate() >= mSlowCallRateThreshold))
+		{
+			open(circuit);
+		}
+	}
+
+	/**
+	 * Returns the trial request of a half open circuit when a request let through by {@link allowRequest} was
+	 * cancelled before it finished
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 */
+	public synchronized void onCancelled(String hostKey)
+	{
+		Circuit circuit = getCircuit(hostKey);
+
+		if (circuit.state == State.HALF_OPEN)
+		{
+			circuit.halfOpenPermits++;
+		}
+	}
+
+	/**
+	 * Gets the state of the circuit for a host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The state
+	 */
+	public synchronized State getState(String hostKey)
+	{
+		Circuit circuit = mCircuits.get(hostKey);
+		return circuit == null ? State.CLOSED : circuit.state;
+	}
+
+	/**
+	 * Gets the state of the circuit of every host that has been used
+	 * @return A map of host to state
+	 */
+	public synchronized Map<String, State> getStates()
+	{
+		HashMap<String, State> states = new HashMap<String, State>();
+
+		for (Map.Entry<String, Circuit> entry : mCircuits.entrySet())
+		{
+			states.put(entry.getKey(), entry.getValue().state);
+		}
+
+		return states;
+	}
+
+	/**
+	 * Gets the rate of failed requests in the window for a host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The rate between 0 and 1
+	 */
+	public synchronized float getFailureRate(String hostKey)
+	{
+		Circuit circuit = mCircuits.get(hostKey);
+		return circuit == null ? 0 : circuit.getFailureRate();
+	}
+
+	/**
+	 * Gets the rate of slow requests in the window for a host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The rate between 0 and 1
+	 */
+	public synchronized float getSlowCallRate(String hostKey)
+	{
+		Circuit circuit = mCircuits.get(hostKey);
+		return circuit == null ? 0 : circuit.getSlowCallRate();
+	}
+
+	/**
+	 * Gets the amount of requests that failed straight away because their circuit was open
+	 * @return The amount of rejected requests
+	 */
+	public synchronized long getRejectedCount()
+	{
+		return mRejectedCount;
+	}
+
+	/**
+	 * Closes the circuit for a host and clears its window
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 */
+	public synchronized void reset(String hostKey)
+	{
+		mCircuits.remove(hostKey);
+	}
+
+	/**
+	 * Closes the circuits for every host
+	 */
+	public synchronized void resetAll()
+	{
+		mCircuits.clear();
+		mRejectedCount = 0;
+	}
+
+	/**
+	 * Checks if a response code counts as a failure of the host. Client errors (4xx) do not count
+	 * @param responseCode The response code, 0 if no response was received
+	 * @return True if the host failed
+	 */
+	public static boolean isFailure(int responseCode)
+	{
+		return responseCode <= 0 || responseCode >= 500;
+	}
+
+	private void open(Circuit circuit)
+	{
+		circuit.state = State.OPEN;
+		circuit.openedTime = System.currentTimeMillis();
+		circuit.clear();
+	}
+
+	private Circuit getCircuit(String hostKey)
+	{
+		Circuit circuit = mCircuits.get(hostKey);
+		if (circuit == null)
+		{
+			circuit = new Circuit(mWindowSize);
+			mCircuits.put(hostKey, circuit);
+		}
+
+		return circuit;
+	}
+
+	/**
+	 * @brief The circuit and sliding window of outcomes for a host
+	 */
+	private static class Circuit
+	{
+		public State state = State.CLOSED;
+		public long openedTime;
+		public int halfOpenPermits;
+		public int halfOpenSuccesses;
+		public int count;
+		private final boolean[] mFailures;
+		private final boolean[] mSlow;
+		private int mIndex;
+		private int mFailureCount;
+		private int mSlowCount;
+
+		public Circuit(int size)
+		{
+			mFailures = new boolean[size];
+			mSlow = new boolean[size];
+		}
+
+		public void record(boolean failure, boolean slow)
+		{
+			if (count == mFailures.length)
+			{
+				if (mFailures[mIndex]) mFailureCount--;
+				if (mSlow[mIndex]) mSlowCount--;
+			}
+			else
+			{
+				count++;
+			}
+
+			mFailures[mIndex] = failure;
+			mSlow[mIndex] = slow;
+			if (failure) mFailureCount++;
+			if (slow) mSlowCount++;
+
+			mIndex = (mIndex + 1) % mFailures.length;
+		}
+
+		public void clear()
+		{
+			count = 0;
+			mIndex = 0;
+			mFailureCount = 0;
+			mSlowCount = 0;
+		}
+
+		public float getFailureRate()
+		{
+			return count == 0 ? 0 : (float)mFailureCount / count;
+		}
+
+		public float getSlowCallRate()
+		{
+			return count == 0 ? 0 : (float)mSlowCount / count;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * @brief Adapts the amount of requests sent to each host at once to how well the host is coping.
+ *
+ * Uses additive increase, multiplicative decrease (AIMD). Each successful request raises the limit for its
+ * host so that it grows by about 1 for every full limit of requests. A failed request (no response, a 5xx or
+ * a 429) or one slower than the latency threshold cuts the limit by the backoff ratio. Requests over the limit
+ * are held in a queue for their host and handed to the executor when a request to the same host finishes, so
+ * they never block an executor thread that requests to other hosts could use.
+ *
+ * Example:
+ * @code
+ * AsyncHttpClient.setConcurrencyLimiter(new ConcurrencyLimiter());
+ * @endcode
+ */
+public class ConcurrencyLimiter
+{
+	private final HashMap<String, Limit> mLimits = new HashMap<String, Limit>();
+	private int mInitialLimit = 4;
+	private int mMinLimit = 1;
+	private int mMaxLimit = 32;
+	private double mBackoffRatio = 0.7;
+	private long mLatencyThreshold = 5000;
+	private final HostQueue mQueue = new HostQueue(this)
+	{
+		@Override protected int getLimit(String hostKey)
+		{
+			return (int)getHostLimit(hostKey).limit;
+		}
+	};
+
+	/**
+	 * Default constructor
+	 */
+	public ConcurrencyLimiter()
+	{
+	}
+
+	/**
+	 * Default constructor
+	 * @param initialLimit The limit each host starts with
+	 * @param minLimit The lowest the limit can be cut to
+	 * @param maxLimit The highest the limit can grow to
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit)
+	{
+		mMinLimit = Math.max(1, minLimit);
+		mMaxLimit = Math.max(mMinLimit, maxLimit);
+		mInitialLimit = Math.min(mMaxLimit, Math.max(mMinLimit, initialLimit));
+	}
+
+	/**
+	 * Sets the ratio the limit is multiplied by when a request fails. Defaults to 0.7
+	 * @param ratio The ratio between 0 and 1
+	 */
+	public synchronized void setBackoffRatio(double ratio)
+	{
+		mBackoffRatio = ratio;
+	}
+
+	/**
+	 * Sets how long a request can take before it lowers the limit. Defaults to 5000
+	 * @param threshold The time in MS
+	 */
+	public synchronized void setLatencyThreshold(long threshold)
+	{
+		mLatencyThreshold = threshold;
+	}
+
+	/**
+	 * Runs a request on an executor once the host is under its limit. Over the limit the task is held and handed
+	 * to the executor when a request to the host finishes. The request counts against the limit until the task
+	 * has run
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @param task The request to run
+	 * @param executor The executor to run the request on
+	 * @throws java.util.concurrent.RejectedExecutionException If the host is under its limit and the executor
+	 * rejected the task
+	 */
+	public void execute(String hostKey, Runnable task, Executor executor)
+	{
+		mQueue.execute(hostKey, task, executor);
+	}
+
+	/**
+	 * Records the outcome of a request to adjust the limit of its host. Cancelled requests should not be recorded,
+	 * as they say nothing about the health of the host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @param responseCode The response code of the request, 0 if no response was received
+	 * @param duration The time the request took in MS
+	 */
+	public void onResult(String hostKey, int responseCode, long duration)
+	{
+		synchronized (this)
+		{
+			Limit limit = getHostLimit(hostKey);
+
+			if (CircuitBreaker.isFailure(responseCode) || responseCode == 429 || duration >= mLatencyThreshold)
+			{
+				limit.limit = Math.max(mMinLimit, limit.limit * mBackoffRatio);
+			}
+			else
+			{
+				limit.limit = Math.min(mMaxLimit, limit.limit + (1.0 / limit.limit));
+			}
+		}
+
+		// the limit may have grown
+		mQueue.drain(hostKey);
+	}
+
+	/**
+	 * Gets the current limit for a host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The amount of requests that can be sent at once
+	 */
+	public synchronized int getLimit(String hostKey)
+	{
+		Limit limit = mLimits.get(hostKey);
+		return limit == null ? mInitialLimit : (int)limit.limit;
+	}
+
+	/**
+	 * Gets the amount of requests being sent to a host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The amount of requests in flight
+	 */
+	public int getInFlight(String hostKey)
+	{
+		return mQueue.getInFlight(hostKey);
+	}
+
+	/**
+	 * Gets the amount of requests to a host waiting for the host to go under its limit
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The amount of waiting requests
+	 */
+	public int getPendingCount(String hostKey)
+	{
+		return mQueue.getPendingCount(hostKey);
+	}
+
+	/**
+	 * Gets the current limit of every host that has been used
+	 * @return A map of host to limit
+	 */
+	public synchronized Map<String, Integer> getLimits()
+	{
+		HashMap<String, Integer> limits = new HashMap<String, Integer>();
+
+		for (Map.Entry<String, Limit> entry : mLimits.entrySet())
+		{
+			limits.put(entry.getKey(), (int)entry.getValue().limit);
+		}
+
+		return limits;
+	}
+
+	private Limit getHostLimit(String hostKey)
+	{
+		Limit limit = mLimits.get(hostKey);
+		if (limit == null)
+		{
+			limit = new Limit();
+			limit.limit = mInitialLimit;
+			mLimits.put(hostKey, limit);
+		}
+
+		return limit;
+	}
+
+	/**
+	 * @brief The limit for a host
+	 */
+	private static class Limit
+	{
+		public double limit;
+	}
+}
@@ -0,0 +1,383 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * @brief Keeps track of the keep-alive connections used by {@link AsyncHttpClient}.
+ *
+ * The sockets themselves are pooled by the platform's HttpURLConnection implementation, which does not
+ * expose them. This class limits the number of requests sent to a single host at once and keeps
+ * a mirror of the connections it expects the platform to keep idle, so the hit and miss counts (and
+ * {@link ConnectionInfo.connectionReused}) are estimates rather than a record of actual socket reuse.
+ *
+ * The idle connection limit and keep alive duration are pushed to the platform as the
+ * <code>http.maxConnections</code> and <code>http.keepAliveDuration</code> system properties before the
+ * first request. The platform reads them once, so they are constructor arguments only and have no
+ * effect if another HttpURLConnection was opened first.
+ *
+ * Requests over the per host limit are held in a queue for their host by {@link execute} and handed to the
+ * executor when a request to the same host finishes, so they never block an executor thread.
+ *
+ * Setting the pool to legacy mode restores the old behaviour of sending <code>Connection: close</code>
+ * and disconnecting after every request. This is sent with each request, so it can be switched at any time.
+ *
+ * Example:
+ * @code
+ * ConnectionPool pool = new ConnectionPool(10, 60 * 1000, 4);
+ * AsyncHttpClient.setConnectionPool(pool);
+ *
+ * Debug.out("hits: " + pool.getHitCount() + " misses: " + pool.getMissCount());
+ * @endcode
+ */
+public class ConnectionPool
+{
+	/**
+	 * The default amount of idle connections kept alive
+	 */
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+	/**
+	 * The default time in MS an idle connection is kept alive for
+	 */
+	public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+	/**
+	 * The default amount of concurrent connections to a single host
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+	private final int mMaxIdleConnections;
+	private final long mKeepAliveDuration;
+	private int mMaxConnectionsPerHost;
+	private boolean mLegacyMode = false;
+	private boolean mApplied = false;
+
+	private final HashMap<String, HostEntry> mHosts = new HashMap<String, HostEntry>();
+	private int mIdleCount = 0;
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+	private final HostQueue mQueue = new HostQueue(this)
+	{
+		@Override protected int getLimit(String hostKey)
+		{
+			return mMaxConnectionsPerHost;
+		}
+	};
+
+	/**
+	 * Default constructor
+	 */
+	public ConnectionPool()
+	{
+		this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * Default constructor
+	 * @param maxIdleConnections The maximum amount of idle connections to keep alive across all hosts
+	 * @param keepAliveDuration The time in MS an idle connection is kept before it is evicted
+	 * @param maxConnectionsPerHost The maximum amount of connections open to a single host at once, 0 for no limit
+	 */
+	public ConnectionPool(int maxIdleConnections, long keepAliveDuration, int maxConnectionsPerHost)
+	{
+		mMaxIdleConnections = maxIdleConnections;
+		mKeepAliveDuration = keepAliveDuration;
+		mMaxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	/**
+	 * Creates a pool which closes the connection after every request
+	 * @return The new legacy pool
+	 */
+	public static ConnectionPool createLegacyPool()
+	{
+		ConnectionPool pool = new ConnectionPool();
+		pool.setLegacyMode(true);
+
+		return pool;
+	}
+
+	/**
+	 * Sets if the pool should close every connection after use (the behaviour before pooling was added)
+	 * @param legacy True to close each connection, false to keep them alive
+	 */
+	public synchronized void setLegacyMode(boolean legacy)
+	{
+		mLegacyMode = legacy;
+
+		if (legacy)
+		{
+			evictAll();
+		}
+	}
+
+	/**
+	 * Checks if the pool is in legacy mode
+	 * @return True if connections are closed after every request
+	 */
+	public synchronized boolean isLegacyMode()
+	{
+		return mLegacyMode;
+	}
+
+	/**
+	 * Gets the maximum amount of idle connections kept alive across all hosts
+	 * @return The maximum amount
+	 */
+	public synchronized int getMaxIdleConnections()
+	{
+		return mMaxIdleConnections;
+	}
+
+	/**
+	 * Gets the time an idle connection is kept alive before it is evicted
+	 * @return The time in MS
+	 */
+	public synchronized long getKeepAliveDuration()
+	{
+		return mKeepAliveDuration;
+	}
+
+	/**
+	 * Sets the maximum amount of requests that can be sent to a single host at once. Requests over this limit are held until a request to the host finishes
+	 * @param max The maximum amount, 0 for no limit
+	 */
+	public void setMaxConnectionsPerHost(int max)
+	{
+		synchronized (this)
+		{
+			mMaxConnectionsPerHost = max;
+		}
+
+		mQueue.drainAll();
+	}
+
+	/**
+	 * Gets the maximum amount of requests that can be sent to a single host at once
+	 * @return The maximum amount, 0 for no limit
+	 */
+	public synchronized int getMaxConnectionsPerHost()
+	{
+		return mMaxConnectionsPerHost;
+	}
+
+	/**
+	 * Gets the amount of requests expected to have been sent on a connection that was already open.
+	 * This is an estimate, the platform does not report which sockets it reused
+	 * @return The hit count
+	 */
+	public synchronized long getHitCount()
+	{
+		return mHitCount;
+	}
+
+	/**
+	 * Gets the amount of requests expected to have opened a new connection. This is an estimate
+	 * @return The miss count
+	 */
+	public synchronized long getMissCount()
+	{
+		return mMissCount;
+	}
+
+	/**
+	 * Gets the amount of idle connections the pool expects the platform to be keeping alive
+	 * @return The idle connection count
+	 */
+	public synchronized int getIdleConnectionCount()
+	{
+		evictExpired(System.currentTimeMillis());
+		return mIdleCount;
+	}
+
+	/**
+	 * Resets the hit and miss counters
+	 */
+	public synchronized void resetCounters()
+	{
+		mHitCount = 0;
+		mMissCount = 0;
+	}
+
+	/**
+	 * Forgets all of the idle connections counted by the pool, so the next request to each host is counted as a miss.
+	 * This does not close the platform's sockets, use {@link setLegacyMode} to stop connections being reused
+	 */
+	public synchronized void evictAll()
+	{
+		for (HostEntry entry : mHosts.values())
+		{
+			entry.idle.clear();
+		}
+
+		mIdleCount = 0;
+	}
+
+	/**
+	 * Gets the key used to group connections, in the format scheme://host:port
+	 * @param url The url of the request
+	 * @return The key for the host
+	 */
+	public static String getHostKey(URL url)
+	{
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+
+	/**
+	 * Runs a request on an executor once the host is under its limit. Over the limit the task is held and handed
+	 * to the executor when a request to the host finishes. The request counts against the limit until the task
+	 * has run
+	 * @param hostKey The host key from {@link getHostKey}
+	 * @param task The request to run
+	 * @param executor The executor to run the request on
+	 * @throws java.util.concurrent.RejectedExecutionException If the host is under its limit and the executor
+	 * rejected the task
+	 */
+	public void execute(String hostKey, Runnable task, Executor executor)
+	{
+		mQueue.execute(hostKey, task, executor);
+	}
+
+	/**
+	 * Gets the amount of requests to a host waiting for the host to go under its limit
+	 * @param hostKey The host key from {@link getHostKey}
+	 * @return The amount of waiting requests
+	 */
+	public int getPendingCount(String hostKey)
+	{
+		return mQueue.getPendingCount(hostKey);
+	}
+
+	/**
+	 * Marks a connection to a host as in use. Never blocks, the per host limit is applied by {@link execute}.
+	 * Every call must be matched with a call to {@link release}
+	 * @param hostKey The host key from {@link getHostKey}
+	 * @return True if the request is expected to reuse an idle connection
+	 */
+	public synchronized boolean acquire(String hostKey)
+	{
+		applySystemProperties();
+
+		HostEntry entry = getHostEntry(hostKey);
+		entry.active++;
+		evictExpired(System.currentTimeMillis());
+
+		if (!mLegacyMode && entry.idle.size() > 0)
+		{
+			entry.idle.removeLast();
+			mIdleCount--;
+			mHitCount++;
+
+			return true;
+		}
+
+		mMissCount++;
+		return false;
+	}
+
+	/**
+	 * Releases a connection reserved with {@link acquire}
+	 * @param hostKey The host key from {@link getHostKey}
+	 * @param reusable True if the response was fully read and the connection can be used again
+	 */
+	public synchronized void release(String hostKey, boolean reusable)
+	{
+		HostEntry entry = mHosts.get(hostKey);
+		if (entry == null) return;
+
+		entry.active = Math.max(0, entry.active - 1);
+
+		if (reusable && !mLegacyMode && mMaxIdleConnections > 0)
+		{
+			long now = System.currentTimeMillis();
+			evictExpired(now);
+
+			if (mIdleCount >= mMaxIdleConnections)
+			{
+				evictOldest();
+			}
+
+			entry.idle.addLast(now);
+			mIdleCount++;
+		}
+	}
+
+	private HostEntry getHostEntry(String hostKey)
+	{
+		HostEntry entry = mHosts.get(hostKey);
+		if (entry == null)
+		{
+			entry = new HostEntry();
+			mHosts.put(hostKey, entry);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Pushes the pool settings to the platform HttpURLConnection implementation. Keep alive itself is left
+	 * on, legacy mode closes connections with a <code>Connection: close</code> header on each request instead
+	 */
+	private void applySystemProperties()
+	{
+		if (mApplied) return;
+
+		System.setProperty("http.maxConnections", String.valueOf(Math.max(1, mMaxIdleConnections)));
+		System.setProperty("http.keepAliveDuration", String.valueOf(mKeepAliveDuration));
+
+		mApplied = true;
+	}
+
+	/**
+	 * Removes the idle connections that have been idle for longer than the keep alive duration
+	 * @param now The current time in MS
+	 */
+	private void evictExpired(long now)
+	{
+		for (HostEntry entry : mHosts.values())
+		{
+			while (entry.idle.size() > 0 && now - entry.idle.getFirst() > mKeepAliveDuration)
+			{
+				entry.idle.removeFirst();
+				mIdleCount--;
+			}
+		}
+	}
+
+	/**
+	 * Removes the connection that has been idle the longest across all hosts
+	 */
+	private void evictOldest()
+	{
+		HostEntry oldest = null;
+		for (HostEntry entry : mHosts.values())
+		{
+			if (entry.idle.size() > 0 && (oldest == null || entry.idle.getFirst() < oldest.idle.getFirst()))
+			{
+				oldest = entry;
+			}
+		}
+
+		if (oldest != null)
+		{
+			oldest.idle.removeFirst();
+			mIdleCount--;
+		}
+	}
+
+	/**
+	 * @brief The connection state for a single host
+	 */
+	private static class HostEntry
+	{
+		public int active = 0;
+		public LinkedList<Long> idle = new LinkedList<Long>();
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @brief Limits the amount of requests run for each host at once.
+ *
+ * Requests over the limit of their host are held in a queue and handed to their executor when a request to the
+ * same host finishes, so they never block an executor thread that requests to other hosts could use. Used by
+ * {@link ConcurrencyLimiter} and {@link ConnectionPool}, which decide the limit of each host.
+ *
+ * A request the executor refuses once it has left the queue, for example because the executor was shut down
+ * whilst it waited, is never run. If the request is a {@link Rejectable} it is told so through
+ * {@link Rejectable#reject}, which frees its place in every queue it went through.
+ */
+abstract class HostQueue
+{
+	private final Object mLock;
+	private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+
+	/**
+	 * Default constructor
+	 * @param lock The lock {@link getLimit} is called with, so the owner can read its limits without locking twice
+	 */
+	public HostQueue(Object lock)
+	{
+		mLock = lock;
+	}
+
+	/**
+	 * Gets the amount of requests that can be run for a host at once. Called whilst holding the lock
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The limit, 0 for no limit
+	 */
+	protected abstract int getLimit(String hostKey);
+
+	/**
+	 * Runs a request on an executor once the host is under its limit. Over the limit the task is held and handed
+	 * to the executor when a request to the host finishes. The request counts against the limit until the task
+	 * has run
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @param task The request to run
+	 * @param executor The executor to run the request on
+	 * @throws java.util.concurrent.RejectedExecutionException If the host is under its limit and the executor
+	 * rejected the task. The task is not told through {@link Rejectable#reject} in this case
+	 */
+	public void execute(String hostKey, Runnable task, Executor executor)
+	{
+		synchronized (mLock)
+		{
+			Host host = getHost(hostKey);
+			int limit = getLimit(hostKey);
+
+			if (limit > 0 && host.inFlight >= limit)
+			{
+				host.pending.addLast(new Pending(task, executor));
+				return;
+			}
+
+			host.inFlight++;
+		}
+
+		submit(hostKey, task, executor);
+	}
+
+	/**
+	 * Hands the waiting requests of a host to their executors whilst it is under its limit
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 */
+	public void drain(String hostKey)
+	{
+		ArrayList<Pending> ready = new ArrayList<Pending>();
+
+		synchronized (mLock)
+		{
+			Host host = getHost(hostKey);
+			int limit = getLimit(hostKey);
+
+			while (host.pending.size() > 0 && (limit <= 0 || host.inFlight < limit))
+			{
+				host.inFlight++;
+				ready.add(host.pending.removeFirst());
+			}
+		}
+
+		for (Pending pending : ready)
+		{
+			try
+			{
+				submit(hostKey, pending.task, pending.executor);
+			}
+			catch (RuntimeException e)
+			{
+				// the executor was shut down or full when the request's turn came
+				Debug.out(e);
+				reject(pending.task);
+			}
+		}
+	}
+
+	/**
+	 * Hands the waiting requests of every host to their executors whilst they are under their limits
+	 */
+	public void drainAll()
+	{
+		ArrayList<String> hosts;
+
+		synchronized (mLock)
+		{
+			hosts = new ArrayList<String>(mHosts.keySet());
+		}
+
+		for (String hostKey : hosts)
+		{
+			drain(hostKey);
+		}
+	}
+
+	/**
+	 * Gets the amount of requests that have been handed to their executors and not finished
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The amount of requests in flight
+	 */
+	public int getInFlight(String hostKey)
+	{
+		synchronized (mLock)
+		{
+			Host host = mHosts.get(hostKey);
+			return host == null ? 0 : host.inFlight;
+		}
+	}
+
+	/**
+	 * Gets the amount of requests to a host waiting for the host to go under its limit
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The amount of waiting requests
+	 */
+	public int getPendingCount(String hostKey)
+	{
+		synchronized (mLock)
+		{
+			Host host = mHosts.get(hostKey);
+			return host == null ? 0 : host.pending.size();
+		}
+	}
+
+	/**
+	 * Tells a task that it will never run. A {@link Rejectable} is rejected, a {@link Future} is cancelled and
+	 * anything else is dropped
+	 * @param task The task
+	 */
+	public static void reject(Runnable task)
+	{
+		if (task instanceof Rejectable)
+		{
+			((Rejectable)task).reject();
+		}
+		else if (task instanceof Future)
+		{
+			((Future<?>)task).cancel(false);
+		}
+	}
+
+	/**
+	 * Hands a task to its executor, freeing its place in the limit once it has run or been rejected
+	 */
+	private void submit(String hostKey, Runnable task, Executor executor)
+	{
+		try
+		{
+			executor.execute(new QueuedTask(hostKey, task));
+		}
+		catch (RuntimeException e)
+		{
+			release(hostKey);
+			throw e;
+		}
+	}
+
+	/**
+	 * Frees a place in the limit of a host and lets the next waiting request through
+	 */
+	private void release(String hostKey)
+	{
+		synchronized (mLock)
+		{
+			Host host = getHost(hostKey);
+			host.inFlight = Math.max(0, host.inFlight - 1);
+		}
+
+		drain(hostKey);
+	}
+
+	private Host getHost(String hostKey)
+	{
+		Host host = mHosts.get(hostKey);
+		if (host == null)
+		{
+			host = new Host();
+			mHosts.put(hostKey, host);
+		}
+
+		return host;
+	}
+
+	/**
+	 * @brief A task that needs to know if it is never going to be run
+	 */
+	interface Rejectable extends Runnable
+	{
+		/**
+		 * Called instead of {@link run} when the task is never going to be run
+		 */
+		public void reject();
+	}
+
+	/**
+	 * @brief Frees the place of a request in the limit of its host once it has run or been rejected
+	 */
+	private class QueuedTask implements Rejectable
+	{
+		private final String mHostKey;
+		private final Runnable mTask;
+		private final AtomicBoolean mDone = new AtomicBoolean(false);
+
+		public QueuedTask(String hostKey, Runnable task)
+		{
+			mHostKey = hostKey;
+			mTask = task;
+		}
+
+		public void run()
+		{
+			if (!mDone.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			try
+			{
+				mTask.run();
+			}
+			finally
+			{
+				release(mHostKey);
+			}
+		}
+
+		public void reject()
+		{
+			if (!mDone.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			release(mHostKey);
+			HostQueue.reject(mTask);
+		}
+	}
+
+	/**
+	 * @brief The requests in flight and waiting for a host
+	 */
+	private static class Host
+	{
+		public int inFlight = 0;
+		public LinkedList<Pending> pending = new LinkedList<Pending>();
+	}
+
+	/**
+	 * @brief A request waiting for its host to go under its limit
+	 */
+	private static class Pending
+	{
+		public final Runnable task;
+		public final Executor executor;
+
+		public Pending(Runnable task, Executor executor)
+		{
+			this.task = task;
+			this.executor = executor;
+		}
+	}
+}
@@ -0,0 +1,581 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import x.lib.AsyncHttpClient.RequestMode;
+import x.type.ConnectionInfo;
+import x.type.HeaderSet;
+import x.type.HttpParams;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * @brief Collects small requests to the same API and sends them to the server as one batch request.
+ *
+ * Requests added within the batch window of each other are wrapped in a single request to the batch url by a
+ * {@link BatchFormat}, which saves a connection and a radio wake up for each of them. The sub responses are
+ * unwrapped and passed to the {@link AsyncHttpResponse} of each request as if it had been sent on its own, with
+ * its own response code, so one request can fail whilst the others succeed. If the batch request itself fails,
+ * every request in it fails with its response code.
+ *
+ * Requests can also be grouped by hand with a window of 0 and a call to {@link flush}. A batch with a single
+ * request in it is sent as a normal request.
+ *
+ * Example:
+ * @code
+ * HttpBatcher batcher = new HttpBatcher("http://example.com/batch");
+ * batcher.get("http://example.com/user", null, userResponse);
+ * batcher.get("http://example.com/feed", null, feedResponse);
+ * // both are sent in one request once the window has passed
+ * @endcode
+ */
+public class HttpBatcher
+{
+	/**
+	 * The default time in MS to collect requests for
+	 */
+	public static final long DEFAULT_WINDOW = 50;
+	/**
+	 * The default maximum amount of requests in a batch
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+	private final String mBatchUrl;
+	private final BatchFormat mFormat;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private HttpParams mHeaders;
+	private long mWindow = DEFAULT_WINDOW;
+	private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private ArrayList<Item> mPending = new ArrayList<Item>();
+	private boolean mFlushScheduled = false;
+	private long mBatchCount = 0;
+	private long mBatchedRequestCount = 0;
+
+	private final Runnable mFlushRunnable = new Runnable()
+	{
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	/**
+	 * Default constructor, uses the {@link JsonBatchFormat}
+	 * @param batchUrl The url of the batch endpoint
+	 */
+	public HttpBatcher(String batchUrl)
+	{
+		this(batchUrl, new JsonBatchFormat());
+	}
+
+	/**
+	 * Default constructor
+	 * @param batchUrl The url of the batch endpoint
+	 * @param format The envelope format the endpoint uses
+	 */
+	public HttpBatcher(String batchUrl, BatchFormat format)
+	{
+		mBatchUrl = batchUrl;
+		mFormat = format;
+	}
+
+	/**
+	 * Sets the time to collect requests for before they are sent. The window starts when the first request is added
+	 * @param window The time in MS, or 0 to only send when {@link flush} is called or the batch is full
+	 */
+	public synchronized void setWindow(long window)
+	{
+		mWindow = Math.max(0, window);
+	}
+
+	/**
+	 * Gets the time requests are collected for
+	 * @return The time in MS
+	 */
+	public synchronized long getWindow()
+	{
+		return mWindow;
+	}
+
+	/**
+	 * Sets the maximum amount of requests in a batch. A batch is sent straight away once it is full
+	 * @param size The amount of requests
+	 */
+	public synchronized void setMaxBatchSize(int size)
+	{
+		mMaxBatchSize = Math.max(1, size);
+	}
+
+	/**
+	 * Gets the maximum amount of requests in a batch
+	 * @return The amount of requests
+	 */
+	public synchronized int getMaxBatchSize()
+	{
+		return mMaxBatchSize;
+	}
+
+	/**
+	 * Sets the headers sent with the batch request itself, for example authentication for the batch endpoint
+	 * @param headers The headers, can be null
+	 */
+	public synchronized void setHeaders(HttpParams headers)
+	{
+		mHeaders = headers;
+	}
+
+	/**
+	 * Gets the amount of batch requests that have been sent
+	 * @return The amount of batches
+	 */
+	public synchronized long getBatchCount()
+	{
+		return mBatchCount;
+	}
+
+	/**
+	 * Gets the amount of requests that have been sent inside a batch rather than on their own
+	 * @return The amount of requests
+	 */
+	public synchronized long getBatchedRequestCount()
+	{
+		return mBatchedRequestCount;
+	}
+
+	/**
+	 * Adds a GET request to the batch
+	 * @param url The url of the request
+	 * @param headers The headers of the request, can be null
+	 * @param response The response interface for the request call back
+	 */
+	public void get(String url, HttpParams headers, AsyncHttpResponse response)
+	{
+		add(RequestMode.GET, url, null, null, headers, response);
+	}
+
+	/**
+	 * Adds a DELETE request to the batch
+	 * @param url The url of the request
+	 * @param headers The headers of the request, can be null
+	 * @param response The response interface for the request call back
+	 */
+	public void delete(String url, HttpParams headers, AsyncHttpResponse response)
+	{
+		add(RequestMode.DELETE, url, null, null, headers, response);
+	}
+
+	/**
+	 * Adds a POST request to the batch
+	 * @param url The url of the request
+	 * @param postData The body, a String or {@link HttpParams} of form values
+	 * @param headers The headers of the request, can be null
+	 * @param response The response interface for the request call back
+	 */
+	public void post(String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+	{
+		add(RequestMode.POST, url, postData, null, headers, response);
+	}
+
+	/**
+	 * Adds a PUT request to the batch
+	 * @param url The url of the request
+	 * @param postData The body, a String or {@link HttpParams} of form values
+	 * @param headers The headers of the request, can be null
+	 * @param response The response interface for the request call back
+	 */
+	public void put(String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+	{
+		add(RequestMode.PUT, url, postData, null, headers, response);
+	}
+
+	/**
+	 * Adds a request pre-created with {@link AsyncHttpClient.createClient} to the batch. The client itself is not used
+	 * @param client The client
+	 */
+	public void add(AsyncHttpClient client)
+	{
+		add(client.getRequestMode(), client.getUrl(), client.getPostData(), client.getRequestParameters(), client.getHeaders(), client.getResponse());
+	}
+
+	/**
+	 * Adds a request to the batch
+	 * @param requestMode The request mode, {@link RequestMode.GET}, {@link RequestMode.DELETE}, {@link RequestMode.POST} or {@link RequestMode.PUT}
+	 * @param url The url of the request
+	 * @param postData The body, a String or {@link HttpParams} of form values. Can be null
+	 * @param requestParameters The request parameters for the url, can be null
+	 * @param headers The headers of the request, can be null
+	 * @param response The response interface for the request call back, can be null
+	 * @throws IllegalArgumentException If the request can not be batched
+	 */
+	public void add(RequestMode requestMode, String url, Object postData, HttpParams requestParameters, HttpParams headers, AsyncHttpResponse response)
+	{
+		// a BatchFormat carries the bodies as text both ways, so binary bodies and downloads would be corrupted
+		if (requestMode == RequestMode.STREAM || requestMode == RequestMode.DOWNLOAD)
+		{
+			throw new IllegalArgumentException("Streamed and download requests can not be batched");
+		}
+
+		if (postData != null && !(postData instanceof String) && !(postData instanceof HttpParams))
+		{
+			throw new IllegalArgumentException("Only String and HttpParams bodies can be batched");
+		}
+
+		String urlStr = url;
+		if (requestParameters != null)
+		{
+			requestParameters.URLEncode();
+			urlStr += requestParameters.toString();
+		}
+
+		Item item = new Item(requestMode, urlStr, postData, headers, response);
+		ArrayList<Item> full = null;
+
+		synchronized (this)
+		{
+			mPending.add(item);
+
+			if (mPending.size() >= mMaxBatchSize)
+			{
+				full = takePending();
+			}
+			else if (!mFlushScheduled && mWindow > 0)
+			{
+				mFlushScheduled = true;
+				mHandler.postDelayed(mFlushRunnable, mWindow);
+			}
+		}
+
+		if (full != null)
+		{
+			send(full);
+		}
+	}
+
+	/**
+	 * Sends the requests that have been collected straight away
+	 */
+	public void flush()
+	{
+		ArrayList<Item> items;
+
+		synchronized (this)
+		{
+			items = takePending();
+		}
+
+		if (!items.isEmpty())
+		{
+			send(items);
+		}
+	}
+
+	private ArrayList<Item> takePending()
+	{
+		ArrayList<Item> items = mPending;
+		mPending = new ArrayList<Item>();
+
+		if (mFlushScheduled)
+		{
+			mFlushScheduled = false;
+			mHandler.removeCallbacks(mFlushRunnable);
+		}
+
+		return items;
+	}
+
+	/**
+	 * Sends a batch, or a single request on its own
+	 * @param items The requests to send
+	 */
+	private void send(final List<Item> items)
+	{
+		if (items.size() == 1)
+		{
+			Item item = items.get(0);
+			new AsyncHttpClient().request(item.mode, item.url, item.postData, null, item.headerParams, item.response);
+			return;
+		}
+
+		for (int index = 0; index < items.size(); index++)
+		{
+			items.get(index).id = Integer.toString(index);
+		}
+
+		byte[] envelope;
+		try
+		{
+			envelope = mFormat.encode(items);
+		}
+		catch (IOException e)
+		{
+			Debug.out(e);
+
+			ConnectionInfo info = new ConnectionInfo();
+			info.connectionResponseMessage = "The batch could not be encoded: " + e.getMessage();
+			failAll(items, info, null);
+			return;
+		}
+
+		HttpParams headers = new HttpParams();
+		synchronized (this)
+		{
+			if (mHeaders != null)
+			{
+				headers.addParams(mHeaders);
+			}
+
+			mBatchCount++;
+			mBatchedRequestCount += items.size();
+		}
+
+		headers.setParam("Content-Type", mFormat.getContentType());
+
+		new AsyncHttpClient().post(mBatchUrl, envelope, headers, new AsyncHttpResponse()
+		{
+			private Object mBody;
+
+			@Override public void onSend()
+			{
+				for (Item item : items)
+				{
+					if (item.response != null)
+					{
+						item.response.onSend();
+					}
+				}
+			}
+
+			@Override public void onSuccess(Object response)
+			{
+				mBody = response;
+			}
+
+			@Override public void onFailure(Object response)
+			{
+				mBody = response;
+			}
+
+			@Override public void onFinish()
+			{
+				ConnectionInfo info = getConnectionInfo();
+
+				if ((info.connectionResponseCode / 100) != 2)
+				{
+					failAll(items, info, mBody == null ? null : mBody.toString());
+					return;
+				}
+
+				List<Result> results;
+				try
+				{
+					results = mFormat.decode(mBody == null ? "" : mBody.toString(), items);
+				}
+				catch (IOException e)
+				{
+					Debug.out(e);
+
+					ConnectionInfo failed = new ConnectionInfo();
+					failed.connectionResponseMessage = e.getMessage();
+					failAll(items, failed, null);
+					return;
+				}
+
+				HashMap<String, Result> byId = new HashMap<String, Result>();
+				for (Result result : results)
+				{
+					byId.put(result.id, result);
+				}
+
+				for (Item item : items)
+				{
+					Result result = byId.get(item.id);
+					if (result == null)
+					{
+						result = new Result(item.id, 0, "Missing from the batch response", new HttpParams(), null);
+					}
+
+					deliver(item, result, info);
+				}
+			}
+		});
+	}
+
+	private void failAll(List<Item> items, ConnectionInfo info, String body)
+	{
+		for (Item item : items)
+		{
+			deliver(item, new Result(item.id, info.connectionResponseCode, info.connectionResponseMessage, info.connectionResponseHeaders, body), info);
+		}
+	}
+
+	/**
+	 * Passes a sub response to the response of its request, in the same order the client calls it
+	 * @param item The request
+	 * @param result The sub response
+	 * @param batchInfo The connection info of the batch request
+	 */
+	private void deliver(Item item, Result result, ConnectionInfo batchInfo)
+	{
+		AsyncHttpResponse response = item.response;
+		if (response == null)
+		{
+			return;
+		}
+
+		ConnectionInfo info = new ConnectionInfo();
+		info.connectionUrl = item.url;
+		info.connectionMethod = item.method;
+		info.connectionHeaders = item.headerParams == null ? new HttpParams() : item.headerParams;
+		info.connectionSentData = item.postData;
+		info.connectionInitiationTime = batchInfo.connectionInitiationTime;
+		info.connectionResponseTime = System.currentTimeMillis();
+		info.connectionResponseCode = result.code;
+		info.connectionResponseMessage = result.message;
+		info.connectionResponseHeaders = result.headers;
+		info.connectionQueueTime = batchInfo.connectionQueueTime;
+		info.connectionTotalTime = batchInfo.connectionTotalTime;
+		info.connectionReused = batchInfo.connectionReused;
+
+		response.setConnectionInfo(info);
+		response.beforeFinish();
+
+		if ((result.code / 100) == 2)
+		{
+			response.onSuccess(result.body == null ? "" : result.body);
+		}
+		else
+		{
+			response.onFailure();
+
+			if (result.body != null)
+			{
+				response.onFailure(result.body);
+			}
+
+			response.onFailure(result.code, result.message);
+		}
+
+		response.onFinish();
+	}
+
+	/**
+	 * @brief A request in a batch
+	 */
+	public static class Item
+	{
+		/**
+		 * The id of the request, unique within its batch
+		 */
+		public String id;
+		/**
+		 * The HTTP method
+		 */
+		public final String method;
+		/**
+		 * The url, including the request parameters
+		 */
+		public final String url;
+		/**
+		 * The request headers
+		 */
+		public final HeaderSet headers;
+		/**
+		 * The body as UTF-8 text, or null if there is none
+		 */
+		public final byte[] body;
+
+		private final RequestMode mode;
+		private final Object postData;
+		private final HttpParams headerParams;
+		private final AsyncHttpResponse response;
+
+		private Item(RequestMode mode, String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+		{
+			this.mode = mode;
+			this.method = mode.getString();
+			this.url = url;
+			this.postData = postData;
+			this.headerParams = headers;
+			this.headers = HeaderSet.compile(headers);
+			this.response = response;
+
+			if (postData instanceof HttpParams)
+			{
+				this.body = AsyncHttpClient.getFormPostData((HttpParams)postData);
+			}
+			else if (postData != null)
+			{
+				this.body = Result.toBytes(postData.toString());
+			}
+			else
+			{
+				this.body = null;
+			}
+		}
+	}
+
+	/**
+	 * @brief The response to a request in a batch
+	 */
+	public static class Result
+	{
+		/**
+		 * The id of the request the response is for
+		 */
+		public final String id;
+		/**
+		 * The response code
+		 */
+		public final int code;
+		/**
+		 * The response message
+		 */
+		public final String message;
+		/**
+		 * The response headers
+		 */
+		public final HttpParams headers;
+		/**
+		 * The body, or null if there is none
+		 */
+		public final String body;
+
+		/**
+		 * Default constructor
+		 * @param id The id of the request the response is for
+		 * @param code The response code
+		 * @param message The response message, can be null
+		 * @param headers The response headers, can be null
+		 * @param body The body, can be null
+		 */
+		public Result(String id, int code, String message, HttpParams headers, String body)
+		{
+			this.id = id;
+			this.code = code;
+			this.message = message == null ? "" : message;
+			this.headers = headers == null ? new HttpParams() : headers;
+			this.body = body;
+		}
+
+		private static byte[] toBytes(String value)
+		{
+			try
+			{
+				return value.getBytes("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				return value.getBytes();
+			}
+		}
+	}
+}
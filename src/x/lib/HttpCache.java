@@ -0,0 +1,435 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+
+import x.type.HeaderSet;
+import x.type.HttpParams;
+
+/**
+ * @brief Stores GET and DOWNLOAD responses on disk through {@link CacheManager} so that repeat requests can be answered
+ * without downloading the body again.
+ *
+ * Fresh responses (from <code>Cache-Control: max-age</code> or <code>Expires</code>) are returned without contacting
+ * the server. Stale responses are revalidated with <code>If-None-Match</code>/<code>If-Modified-Since</code>, and a
+ * <code>304 Not Modified</code> is answered from disk.
+ *
+ * In stale-while-revalidate mode a stale response is passed to {@link AsyncHttpResponse.onSuccess} straight away
+ * and the revalidation runs in the background. If the server sends a new body, onSuccess is called a second time
+ * with it.
+ *
+ * Only 200 and 203 responses are stored. Requests with a <code>Range</code> or <code>Authorization</code> header
+ * are always sent to the server, as their responses are partial or belong to a single user.
+ *
+ * Entries are written synchronously on the request thread, so a response is on disk before the request finishes
+ * and the next request for it can be answered from the cache.
+ *
+ * Example:
+ * @code
+ * HttpCache cache = new HttpCache(new CacheManager(context, "com.example"));
+ * cache.setStaleWhileRevalidate(true);
+ * AsyncHttpClient.setHttpCache(cache);
+ * @endcode
+ */
+public class HttpCache
+{
+	/**
+	 * The cache folder the responses are stored in
+	 */
+	public static final String CACHE_FOLDER = "http";
+
+	private CacheManager mCacheManager;
+	private boolean mStaleWhileRevalidate = false;
+	private String[] mVaryHeaders = {"Accept", "Accept-Language"};
+
+	/**
+	 * Default constructor
+	 * @param cacheManager The cache manager to store the responses with
+	 */
+	public HttpCache(CacheManager cacheManager)
+	{
+		mCacheManager = cacheManager;
+	}
+
+	/**
+	 * Gets the cache manager the responses are stored with
+	 * @return The cache manager
+	 */
+	public CacheManager getCacheManager()
+	{
+		return mCacheManager;
+	}
+
+	/**
+	 * Sets if stale responses should be passed to the response straight away whilst they are revalidated
+	 * @param enabled True to enable stale-while-revalidate
+	 */
+	public void setStaleWhileRevalidate(boolean enabled)
+	{
+		mStaleWhileRevalidate = enabled;
+	}
+
+	/**
+	 * Gets if stale responses are passed to the response straight away whilst they are revalidated
+	 * @return True if stale-while-revalidate is enabled
+	 */
+	public boolean isStaleWhileRevalidate()
+	{
+		return mStaleWhileRevalidate;
+	}
+
+	/**
+	 * Sets the request headers which are part of the cache key. Defaults to Accept and Accept-Language
+	 * @param headers The header names
+	 */
+	public void setVaryHeaders(String... headers)
+	{
+		mVaryHeaders = headers == null ? new String[0] : headers;
+	}
+
+	/**
+	 * Gets the cache key for a request
+	 * @param url The full url of the request
+	 * @param headers The headers of the request, can be null
+	 * @return The key from {@link CacheManager.getHash}
+	 */
+	public String getKey(String url, HttpParams headers)
+	{
+		return getKey(url, AsyncHttpClient.getGlobalHeaderSet().merge(headers));
+	}
+
+	/**
+	 * Gets the cache key for a request
+	 * @param url The full url of the request
+	 * @param headers The compiled global and request headers of the request
+	 * @return The key from {@link CacheManager.getHash}
+	 */
+	public String getKey(String url, HeaderSet headers)
+	{
+		StringBuilder key = new StringBuilder(url);
+
+		for (String name : mVaryHeaders)
+		{
+			String value = headers.get(name);
+
+			if (value != null)
+			{
+				key.append('\n').append(name).append(':').append(value);
+			}
+		}
+
+		return CacheManager.getHash(key.toString());
+	}
+
+	/**
+	 * Gets a cached response
+	 * @param key The key from {@link getKey}
+	 * @return The cached response or null if there is none
+	 */
+	public Entry get(String key)
+	{
+		if (!mCacheManager.fileExists(CACHE_FOLDER, key))
+		{
+			return null;
+		}
+
+		Object entry = mCacheManager.readFile(CACHE_FOLDER, key);
+		if (entry instanceof Entry)
+		{
+			return (Entry)entry;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Checks if a request can be answered from the cache and its response stored
+	 * @param headers The headers of the request, can be null
+	 * @return False if the request asks for a range or sends credentials
+	 */
+	public static boolean isCacheable(HeaderSet headers)
+	{
+		return headers == null || (!headers.contains("Range") && !headers.contains("Authorization"));
+	}
+
+	/**
+	 * Checks if a response can be stored
+	 * @param responseCode The status code of the response
+	 * @return True for 200 OK and 203 Non-Authoritative Information
+	 */
+	public static boolean isCacheable(int responseCode)
+	{
+		return responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_NOT_AUTHORITATIVE;
+	}
+
+	/**
+	 * Stores a response if its headers allow it
+	 * @param key The key from {@link getKey}
+	 * @param conn The connection the response was received on
+	 * @param body The body of the response, either a String or byte[]
+	 * @return True if the response was stored
+	 */
+	public boolean put(String key, HttpURLConnection conn, Object body)
+	{
+		if (body == null || !(body instanceof String || body instanceof byte[]))
+		{
+			return false;
+		}
+
+		String vary = conn.getHeaderField("Vary");
+		if (vary != null && vary.trim().equals("*"))
+		{
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		long expires = getExpiry(conn, now);
+		String etag = conn.getHeaderField("ETag");
+		String lastModified = conn.getHeaderField("Last-Modified");
+
+		if (expires < 0 || (expires <= now && etag == null && lastModified == null))
+		{
+			return false;
+		}
+
+		Entry entry = new Entry();
+		entry.body = body;
+		entry.etag = etag;
+		entry.lastModified = lastModified;
+		entry.storedTime = now;
+		entry.expires = expires;
+
+		return write(key, entry);
+	}
+
+	/**
+	 * Updates the freshness of a cached response after the server replied with 304 Not Modified
+	 * @param key The key from {@link getKey}
+	 * @param entry The cached response
+	 * @param conn The connection the 304 was received on
+	 */
+	public void update(String key, Entry entry, HttpURLConnection conn)
+	{
+		long now = System.currentTimeMillis();
+		long expires = getExpiry(conn, now);
+
+		if (expires < 0)
+		{
+			mCacheManager.removeFile(CACHE_FOLDER, key);
+			return;
+		}
+
+		String etag = conn.getHeaderField("ETag");
+		if (etag != null)
+		{
+			entry.etag = etag;
+		}
+
+		entry.storedTime = now;
+		entry.expires = expires;
+
+		write(key, entry);
+	}
+
+	/**
+	 * Writes an entry to the cache folder on the calling thread. {@link CacheManager.addFile} is not used as it writes
+	 * on the UI thread or a new thread, after the request has finished. The entry is written to a temporary file and
+	 * renamed so a concurrent {@link get} never reads a partly written entry
+	 * @param key The key from {@link getKey}
+	 * @param entry The entry to write
+	 * @return True if the entry was written
+	 */
+	private boolean write(String key, Entry entry)
+	{
+		File file = new File(mCacheManager.getFilePath(CACHE_FOLDER, key));
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		file.getParentFile().mkdirs();
+
+		ObjectOutputStream stream = null;
+		try
+		{
+			stream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			stream.writeObject(entry);
+			stream.close();
+			stream = null;
+
+			if (!temp.renameTo(file))
+			{
+				file.delete();
+
+				if (!temp.renameTo(file))
+				{
+					throw new IOException("Could not move the entry into the cache");
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Debug.out(e);
+			temp.delete();
+
+			return false;
+		}
+		finally
+		{
+			if (stream != null)
+			{
+				try
+				{
+					stream.close();
+				}
+				catch (IOException e)
+				{
+					// already failed
+				}
+			}
+		}
+
+		mCacheManager.checkCacheLimit();
+
+		return true;
+	}
+
+	/**
+	 * Adds the revalidation headers for a cached response to a connection
+	 * @param conn The connection
+	 * @param entry The cached response
+	 */
+	public static void addConditionalHeaders(HttpURLConnection conn, Entry entry)
+	{
+		if (entry.etag != null)
+		{
+			conn.setRequestProperty("If-None-Match", entry.etag);
+		}
+
+		if (entry.lastModified != null)
+		{
+			conn.setRequestProperty("If-Modified-Since", entry.lastModified);
+		}
+	}
+
+	/**
+	 * Gets the time the response stops being fresh
+	 * @param conn The connection the response was received on
+	 * @param now The current time in MS
+	 * @return The expiry time in MS, or -1 if the response must not be stored
+	 */
+	private static long getExpiry(HttpURLConnection conn, long now)
+	{
+		String cacheControl = conn.getHeaderField("Cache-Control");
+		if (cacheControl != null)
+		{
+			String[] directives = cacheControl.toLowerCase().split(",");
+			long maxAge = -1;
+			boolean noCache = false;
+
+			for (String directive : directives)
+			{
+				directive = directive.trim();
+
+				if (directive.equals("no-store"))
+				{
+					return -1;
+				}
+				else if (directive.equals("no-cache"))
+				{
+					noCache = true;
+				}
+				else if (directive.startsWith("max-age="))
+				{
+					try
+					{
+						maxAge = Long.parseLong(directive.substring(8).trim());
+					}
+					catch (NumberFormatException e)
+					{
+						maxAge = 0;
+					}
+				}
+			}
+
+			if (noCache)
+			{
+				return now;
+			}
+
+			if (maxAge >= 0)
+			{
+				return now + (maxAge * 1000);
+			}
+		}
+
+		long expires = conn.getExpiration();
+		if (expires > 0)
+		{
+			return expires;
+		}
+
+		// heuristic freshness of 10% of the time since the last modification
+		long lastModified = conn.getLastModified();
+		long date = conn.getDate() > 0 ? conn.getDate() : now;
+		if (lastModified > 0 && lastModified < date)
+		{
+			return now + ((date - lastModified) / 10);
+		}
+
+		return now;
+	}
+
+	/**
+	 * @brief A cached response
+	 */
+	public static class Entry implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The response body, a String for GET requests or byte[] for DOWNLOAD requests
+		 */
+		public Object body;
+		/**
+		 * The ETag of the response
+		 */
+		public String etag;
+		/**
+		 * The Last-Modified header of the response
+		 */
+		public String lastModified;
+		/**
+		 * The time the response was stored or last revalidated
+		 */
+		public long storedTime;
+		/**
+		 * The time the response stops being fresh
+		 */
+		public long expires;
+
+		/**
+		 * Checks if the response can be used without revalidating it
+		 * @return True if the response is fresh
+		 */
+		public boolean isFresh()
+		{
+			return System.currentTimeMillis() < expires;
+		}
+
+		/**
+		 * Checks if the response can be revalidated with the server
+		 * @return True if the response has an ETag or Last-Modified header
+		 */
+		public boolean canRevalidate()
+		{
+			return etag != null || lastModified != null;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @brief The default executor used to run {@link AsyncHttpClient} requests.
+ *
+ * Requests are split into three lanes, each with its own bounded thread pool, so that a queue of
+ * prefetches or a few slow downloads can never stall requests the user is waiting on. Downloads and streams
+ * go to the bulk lane unless the client is given a priority. The lane queues are unbounded by default. If a
+ * capacity is given, requests over it are failed with {@link AsyncHttpClient.RESPONSE_CODE_REJECTED} rather
+ * than thrown to the caller.
+ *
+ * Example:
+ * @code
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.setPriority(HttpExecutor.Priority.PREFETCH);
+ * client.download("http://url.com/image.png", response);
+ *
+ * Debug.out("queued: " + HttpExecutor.getDefault().getQueueDepth(HttpExecutor.Priority.INTERACTIVE));
+ * @endcode
+ */
+public class HttpExecutor implements Executor
+{
+	/**
+	 * The default amount of threads in the interactive lane
+	 */
+	public static final int DEFAULT_INTERACTIVE_THREADS = 4;
+	/**
+	 * The default amount of threads in the prefetch lane
+	 */
+	public static final int DEFAULT_PREFETCH_THREADS = 2;
+	/**
+	 * The default amount of threads in the bulk lane
+	 */
+	public static final int DEFAULT_BULK_THREADS = 4;
+	/**
+	 * The default amount of requests that can wait in a lane before new requests are rejected
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = Integer.MAX_VALUE;
+
+	private static HttpExecutor sDefault;
+
+	/**
+	 * @brief The lane a request is executed in
+	 */
+	public enum Priority
+	{
+		/**
+		 * Requests the user is waiting on
+		 */
+		INTERACTIVE,
+		/**
+		 * Background requests such as prefetching that can wait
+		 */
+		PREFETCH,
+		/**
+		 * Downloads and streams, whose large bodies would otherwise hold the threads of interactive requests
+		 */
+		BULK;
+	}
+
+	private final Lane mInteractive;
+	private final Lane mPrefetch;
+	private final Lane mBulk;
+
+	/**
+	 * Default constructor
+	 */
+	public HttpExecutor()
+	{
+		this(DEFAULT_INTERACTIVE_THREADS, DEFAULT_PREFETCH_THREADS, DEFAULT_BULK_THREADS, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Default constructor
+	 * @param interactiveThreads The amount of threads for interactive requests
+	 * @param prefetchThreads The amount of threads for prefetch requests
+	 * @param queueCapacity The amount of requests that can wait in each lane before new requests are rejected
+	 */
+	public HttpExecutor(int interactiveThreads, int prefetchThreads, int queueCapacity)
+	{
+		this(interactiveThreads, prefetchThreads, DEFAULT_BULK_THREADS, queueCapacity);
+	}
+
+	/**
+	 * Default constructor
+	 * @param interactiveThreads The amount of threads for interactive requests
+	 * @param prefetchThreads The amount of threads for prefetch requests
+	 * @param bulkThreads The amount of threads for downloads and streams
+	 * @param queueCapacity The amount of requests that can wait in each lane before new requests are rejected
+	 */
+	public HttpExecutor(int interactiveThreads, int prefetchThreads, int bulkThreads, int queueCapacity)
+	{
+		mInteractive = new Lane("interactive", interactiveThreads, queueCapacity);
+		mPrefetch = new Lane("prefetch", prefetchThreads, queueCapacity);
+		mBulk = new Lane("bulk", bulkThreads, queueCapacity);
+	}
+
+	/**
+	 * Gets the shared executor instance
+	 * @return The shared executor
+	 */
+	public static synchronized HttpExecutor getDefault()
+	{
+		if (sDefault == null)
+		{
+			sDefault = new HttpExecutor();
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 * Executes a task in the interactive lane
+	 * @param command The task to execute
+	 */
+	public void execute(Runnable command)
+	{
+		mInteractive.execute(command);
+	}
+
+	/**
+	 * Gets the executor for a lane
+	 * @param priority The priority of the lane
+	 * @return The executor for the lane
+	 */
+	public Executor getLane(Priority priority)
+	{
+		return getLaneInternal(priority);
+	}
+
+	/**
+	 * Gets the amount of requests waiting to be executed in a lane
+	 * @param priority The priority of the lane
+	 * @return The amount of waiting requests
+	 */
+	public int getQueueDepth(Priority priority)
+	{
+		return getLaneInternal(priority).getQueue().size();
+	}
+
+	/**
+	 * Gets the largest amount of requests that have been waiting in a lane at once
+	 * @param priority The priority of the lane
+	 * @return The peak queue depth
+	 */
+	public int getPeakQueueDepth(Priority priority)
+	{
+		return getLaneInternal(priority).mPeakQueueDepth.get();
+	}
+
+	/**
+	 * Gets the amount of requests currently being executed in a lane
+	 * @param priority The priority of the lane
+	 * @return The amount of running requests
+	 */
+	public int getActiveCount(Priority priority)
+	{
+		return getLaneInternal(priority).getActiveCount();
+	}
+
+	/**
+	 * Gets the amount of requests that have finished executing in a lane
+	 * @param priority The priority of the lane
+	 * @return The amount of completed requests
+	 */
+	public long getCompletedCount(Priority priority)
+	{
+		return getLaneInternal(priority).getCompletedTaskCount();
+	}
+
+	/**
+	 * Gets the amount of requests that were rejected because the lane's queue was full
+	 * @param priority The priority of the lane
+	 * @return The amount of rejected requests
+	 */
+	public long getRejectedCount(Priority priority)
+	{
+		return getLaneInternal(priority).mRejectedCount.get();
+	}
+
+	/**
+	 * Gets the average time in MS requests waited in a lane before being executed
+	 * @param priority The priority of the lane
+	 * @return The average wait time in MS
+	 */
+	public long getAverageQueueWaitTime(Priority priority)
+	{
+		Lane lane = getLaneInternal(priority);
+		long count = lane.mWaitCount.get();
+
+		return count == 0 ? 0 : lane.mTotalWaitTime.get() / count;
+	}
+
+	/**
+	 * Stops the executor. Running requests are interrupted, and queued requests are not run but failed with
+	 * {@link AsyncHttpClient.RESPONSE_CODE_REJECTED}
+	 */
+	public void shutdown()
+	{
+		reject(mInteractive.shutdownNow());
+		reject(mPrefetch.shutdownNow());
+		reject(mBulk.shutdownNow());
+	}
+
+	private static void reject(List<Runnable> tasks)
+	{
+		for (Runnable task : tasks)
+		{
+			HostQueue.reject(task instanceof QueuedCommand ? ((QueuedCommand)task).command : task);
+		}
+	}
+
+	private Lane getLaneInternal(Priority priority)
+	{
+		if (priority == Priority.PREFETCH)
+		{
+			return mPrefetch;
+		}
+
+		return priority == Priority.BULK ? mBulk : mInteractive;
+	}
+
+	/**
+	 * @brief A bounded thread pool which records its queue metrics
+	 */
+	private static class Lane extends ThreadPoolExecutor
+	{
+		private final AtomicInteger mPeakQueueDepth = new AtomicInteger(0);
+		private final AtomicLong mRejectedCount = new AtomicLong(0);
+		private final AtomicLong mTotalWaitTime = new AtomicLong(0);
+		private final AtomicLong mWaitCount = new AtomicLong(0);
+
+		public Lane(final String name, int threads, int queueCapacity)
+		{
+			super(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactory()
+			{
+				private final AtomicInteger mCount = new AtomicInteger(1);
+
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "XHttp-" + name + "-" + mCount.getAndIncrement());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+
+			allowCoreThreadTimeOut(true);
+		}
+
+		@Override public void execute(Runnable command)
+		{
+			try
+			{
+				super.execute(new QueuedCommand(this, command));
+			}
+			catch (RuntimeException e)
+			{
+				mRejectedCount.incrementAndGet();
+				throw e;
+			}
+
+			int depth = getQueue().size();
+			int peak;
+			while (depth > (peak = mPeakQueueDepth.get()) && !mPeakQueueDepth.compareAndSet(peak, depth));
+		}
+	}
+
+	/**
+	 * @brief A task waiting in a lane, which records how long it waited
+	 */
+	private static class QueuedCommand implements Runnable
+	{
+		public final Runnable command;
+		private final Lane mLane;
+		private final long mQueuedTime = System.currentTimeMillis();
+
+		public QueuedCommand(Lane lane, Runnable command)
+		{
+			this.command = command;
+			mLane = lane;
+		}
+
+		public void run()
+		{
+			mLane.mTotalWaitTime.addAndGet(System.currentTimeMillis() - mQueuedTime);
+			mLane.mWaitCount.incrementAndGet();
+
+			command.run();
+		}
+	}
+}
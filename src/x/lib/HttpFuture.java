@@ -0,0 +1,548 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @brief The pending result of a request, which can be listened to, transformed and joined with other requests.
+ *
+ * Returned by {@link AsyncHttpClient.submit}. It succeeds with the response when the server responds with a 2xx,
+ * and fails with a {@link HttpResponseException} otherwise. Cancelling the future cancels the request and closes its
+ * connection, and cancelling a future made with {@link map}, {@link then} or {@link all} cancels the requests it
+ * depends on.
+ *
+ * Listeners are called on the thread that completes the future, which for requests is the main thread, unless an
+ * executor is given. Because of that {@link get} must not be called on the main thread whilst a request is running.
+ *
+ * Example:
+ * @code
+ * HttpFuture<HttpResult> user = new AsyncHttpClient().submit(RequestMode.GET, "http://example.com/user");
+ * HttpFuture<HttpResult> feed = new AsyncHttpClient().submit(RequestMode.GET, "http://example.com/feed");
+ *
+ * HttpFuture.all(Arrays.asList(user, feed)).addListener(new HttpFuture.Listener<List<HttpResult>>()
+ * {
+ * 	public void onComplete(HttpFuture<List<HttpResult>> future)
+ * 	{
+ * 		if (future.isSuccessful())
+ * 		{
+ * 			// both requests ran in parallel
+ * 		}
+ * 	}
+ * });
+ * @endcode
+ */
+public class HttpFuture<T> implements Future<T>
+{
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_SUCCEEDED = 1;
+	private static final int STATE_FAILED = 2;
+	private static final int STATE_CANCELLED = 3;
+
+	private int mState = STATE_PENDING;
+	private T mValue;
+	private Throwable mError;
+	private ArrayList<Runnable> mListeners = new ArrayList<Runnable>();
+	private Runnable mOnCancel;
+
+	// get() waits on this rather than the monitor, which would pin a virtual thread to its carrier
+	private final CountDownLatch mCompleted = new CountDownLatch(1);
+
+	/**
+	 * @brief Called when a future completes
+	 */
+	public interface Listener<T>
+	{
+		/**
+		 * Called once when the future has succeeded, failed or been cancelled
+		 * @param future The completed future
+		 */
+		public void onComplete(HttpFuture<T> future);
+	}
+
+	/**
+	 * @brief Turns the value of one future into the value of another
+	 */
+	public interface Transform<A, B>
+	{
+		/**
+		 * Transforms a value
+		 * @param value The value of the completed future
+		 * @return The new value
+		 * @throws Exception To fail the new future
+		 */
+		public B apply(A value) throws Exception;
+	}
+
+	/**
+	 * Creates a future that has already succeeded
+	 * @param value The value
+	 * @return The future
+	 */
+	public static <T> HttpFuture<T> succeeded(T value)
+	{
+		HttpFuture<T> future = new HttpFuture<T>();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Creates a future that has already failed
+	 * @param error The error
+	 * @return The future
+	 */
+	public static <T> HttpFuture<T> failed(Throwable error)
+	{
+		HttpFuture<T> future = new HttpFuture<T>();
+		future.fail(error);
+		return future;
+	}
+
+	/**
+	 * Completes the future with a value
+	 * @param value The value
+	 * @return True if the future was completed, false if it had already completed
+	 */
+	public boolean complete(T value)
+	{
+		return finish(STATE_SUCCEEDED, value, null);
+	}
+
+	/**
+	 * Completes the future with an error
+	 * @param error The error
+	 * @return True if the future was completed, false if it had already completed
+	 */
+	public boolean fail(Throwable error)
+	{
+		return finish(STATE_FAILED, null, error);
+	}
+
+	/**
+	 * Sets what to run when the future is cancelled, for example cancelling the request behind it. Runs straight
+	 * away if the future has already been cancelled
+	 * @param onCancel The runnable
+	 */
+	public void setOnCancel(Runnable onCancel)
+	{
+		synchronized (this)
+		{
+			if (mState != STATE_CANCELLED)
+			{
+				mOnCancel = onCancel;
+				return;
+			}
+		}
+
+		onCancel.run();
+	}
+
+	/**
+	 * Cancels the future and whatever it is waiting on
+	 * @param mayInterruptIfRunning Ignored, a running request is always stopped
+	 * @return True if the future was cancelled, false if it had already completed
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		if (!finish(STATE_CANCELLED, null, new CancellationException()))
+		{
+			return false;
+		}
+
+		Runnable onCancel;
+		synchronized (this)
+		{
+			onCancel = mOnCancel;
+			mOnCancel = null;
+		}
+
+		if (onCancel != null)
+		{
+			onCancel.run();
+		}
+
+		return true;
+	}
+
+	public synchronized boolean isCancelled()
+	{
+		return mState == STATE_CANCELLED;
+	}
+
+	public synchronized boolean isDone()
+	{
+		return mState != STATE_PENDING;
+	}
+
+	/**
+	 * Checks if the future completed with a value
+	 * @return True if the future succeeded
+	 */
+	public synchronized boolean isSuccessful()
+	{
+		return mState == STATE_SUCCEEDED;
+	}
+
+	/**
+	 * Gets the error the future failed with
+	 * @return The error, a {@link CancellationException} if it was cancelled, or null if it has not failed
+	 */
+	public synchronized Throwable getError()
+	{
+		return mError;
+	}
+
+	/**
+	 * Gets the value without waiting
+	 * @return The value, or null if the future has not succeeded
+	 */
+	public synchronized T getValue()
+	{
+		return mValue;
+	}
+
+	public T get() throws InterruptedException, ExecutionException
+	{
+		mCompleted.await();
+
+		synchronized (this)
+		{
+			return report();
+		}
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if (!mCompleted.await(timeout, unit))
+		{
+			throw new TimeoutException();
+		}
+
+		synchronized (this)
+		{
+			return report();
+		}
+	}
+
+	/**
+	 * Adds a listener, which is called on the thread that completes the future, or straight away if it has completed
+	 * @param listener The listener
+	 * @return This future
+	 */
+	public HttpFuture<T> addListener(Listener<T> listener)
+	{
+		return addListener(listener, null);
+	}
+
+	/**
+	 * Adds a listener
+	 * @param listener The listener
+	 * @param executor The executor to call the listener on, or null to call it on the thread that completes the future
+	 * @return This future
+	 */
+	public HttpFuture<T> addListener(final Listener<T> listener, final Executor executor)
+	{
+		Runnable notify = new Runnable()
+		{
+			public void run()
+			{
+				if (executor == null)
+				{
+					listener.onComplete(HttpFuture.this);
+					return;
+				}
+
+				executor.execute(new Runnable()
+				{
+					public void run()
+					{
+						listener.onComplete(HttpFuture.this);
+					}
+				});
+			}
+		};
+
+		synchronized (this)
+		{
+			if (mState == STATE_PENDING)
+			{
+				mListeners.add(notify);
+				return this;
+			}
+		}
+
+		notify.run();
+		return this;
+	}
+
+	/**
+	 * Creates a future with the value of this future transformed. Cancelling it cancels this future
+	 * @param transform The transform, called on the thread that completes this future
+	 * @return The new future, which fails if this future fails or the transform throws
+	 */
+	public <R> HttpFuture<R> map(final Transform<? super T, ? extends R> transform)
+	{
+		final HttpFuture<R> mapped = new HttpFuture<R>();
+		mapped.setOnCancel(cancelRunnable());
+
+		addListener(new Listener<T>()
+		{
+			public void onComplete(HttpFuture<T> future)
+			{
+				if (!future.isSuccessful())
+				{
+					forward(future, mapped);
+					return;
+				}
+
+				try
+				{
+					mapped.complete(transform.apply(future.getValue()));
+				}
+				catch (Exception e)
+				{
+					mapped.fail(e);
+				}
+			}
+		});
+
+		return mapped;
+	}
+
+	/**
+	 * Starts a dependent request once this future succeeds. Cancelling the returned future cancels this future, or
+	 * the dependent request if it has started
+	 * @param transform Starts the dependent request from the value of this future, called on the thread that completes it
+	 * @return A future for the dependent request
+	 */
+	public <R> HttpFuture<R> then(final Transform<? super T, HttpFuture<R>> transform)
+	{
+		final HttpFuture<R> chained = new HttpFuture<R>();
+		chained.setOnCancel(cancelRunnable());
+
+		addListener(new Listener<T>()
+		{
+			public void onComplete(HttpFuture<T> future)
+			{
+				if (!future.isSuccessful())
+				{
+					forward(future, chained);
+					return;
+				}
+
+				HttpFuture<R> next;
+				try
+				{
+					next = transform.apply(future.getValue());
+				}
+				catch (Exception e)
+				{
+					chained.fail(e);
+					return;
+				}
+
+				if (next == null)
+				{
+					chained.complete(null);
+					return;
+				}
+
+				chained.setOnCancel(next.cancelRunnable());
+				next.addListener(new Listener<R>()
+				{
+					public void onComplete(HttpFuture<R> result)
+					{
+						if (result.isSuccessful())
+						{
+							chained.complete(result.getValue());
+						}
+						else
+						{
+							forward(result, chained);
+						}
+					}
+				});
+			}
+		});
+
+		return chained;
+	}
+
+	/**
+	 * Joins futures that are already running in parallel. If any of them fails the joined future fails straight
+	 * away with the same error and the others are cancelled. Cancelling the joined future cancels all of them
+	 * @param futures The futures to join
+	 * @return A future with the values in the same order as the futures
+	 */
+	public static <T> HttpFuture<List<T>> all(final List<? extends HttpFuture<? extends T>> futures)
+	{
+		final HttpFuture<List<T>> joined = new HttpFuture<List<T>>();
+		final Object[] values = new Object[futures.size()];
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+		joined.setOnCancel(new Runnable()
+		{
+			public void run()
+			{
+				for (HttpFuture<? extends T> future : futures)
+				{
+					future.cancel(true);
+				}
+			}
+		});
+
+		if (futures.isEmpty())
+		{
+			joined.complete(Collections.<T>emptyList());
+			return joined;
+		}
+
+		for (int index = 0; index < futures.size(); index++)
+		{
+			final int position = index;
+			final HttpFuture<? extends T> future = futures.get(index);
+
+			future.addListener(new Runnable()
+			{
+				public void run()
+				{
+					if (!future.isSuccessful())
+					{
+						forward(future, joined);
+
+						for (HttpFuture<? extends T> other : futures)
+						{
+							other.cancel(true);
+						}
+
+						return;
+					}
+
+					values[position] = future.getValue();
+
+					if (remaining.decrementAndGet() == 0)
+					{
+						List<T> list = new ArrayList<T>(values.length);
+						for (Object value : values)
+						{
+							@SuppressWarnings("unchecked") T item = (T)value;
+							list.add(item);
+						}
+
+						joined.complete(list);
+					}
+				}
+			});
+		}
+
+		return joined;
+	}
+
+	/**
+	 * Adds a runnable to call on the thread that completes the future, or straight away if it has completed
+	 * @param runnable The runnable
+	 */
+	private void addListener(Runnable runnable)
+	{
+		synchronized (this)
+		{
+			if (mState == STATE_PENDING)
+			{
+				mListeners.add(runnable);
+				return;
+			}
+		}
+
+		runnable.run();
+	}
+
+	/**
+	 * Passes the failure or cancellation of one future on to another
+	 * @param from The future that did not succeed
+	 * @param to The future to complete
+	 */
+	private static void forward(HttpFuture<?> from, HttpFuture<?> to)
+	{
+		if (from.isCancelled())
+		{
+			to.cancel(true);
+		}
+		else
+		{
+			to.fail(from.getError());
+		}
+	}
+
+	private Runnable cancelRunnable()
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				cancel(true);
+			}
+		};
+	}
+
+	private boolean finish(int state, T value, Throwable error)
+	{
+		ArrayList<Runnable> listeners;
+
+		synchronized (this)
+		{
+			if (mState != STATE_PENDING)
+			{
+				return false;
+			}
+
+			mState = state;
+			mValue = value;
+			mError = error;
+
+			if (state != STATE_CANCELLED)
+			{
+				mOnCancel = null;
+			}
+
+			listeners = mListeners;
+			mListeners = null;
+		}
+
+		mCompleted.countDown();
+
+		for (Runnable listener : listeners)
+		{
+			listener.run();
+		}
+
+		return true;
+	}
+
+	private T report() throws ExecutionException
+	{
+		if (mState == STATE_CANCELLED)
+		{
+			throw new CancellationException();
+		}
+
+		if (mState == STATE_FAILED)
+		{
+			throw new ExecutionException(mError);
+		}
+
+		return mValue;
+	}
+}
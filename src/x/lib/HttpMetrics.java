@@ -0,0 +1,594 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import x.type.ConnectionInfo;
+
+/**
+ * @brief Records the latency, error rate and bytes of every {@link AsyncHttpClient} request per host and per endpoint.
+ *
+ * Latencies are kept in log-bucketed histograms (the same layout as HdrHistogram, 32 sub-buckets per power of two)
+ * so p50/p95/p99 can be read at any time to within about 3%. Recording only uses atomic counters, so requests
+ * never wait on each other.
+ *
+ * Endpoints are grouped by path pattern. Patterns added with {@link addPathPattern} are matched first, otherwise
+ * path segments that look like ids (numbers, UUIDs and long hex strings) are replaced with <code>{id}</code>.
+ * Paths the patterns miss can still produce a new endpoint per request, so once {@link setMaxEndpoints} endpoints
+ * are recorded any new endpoint is recorded under {@link OVERFLOW_ENDPOINT} instead.
+ *
+ * Example:
+ * @code
+ * HttpMetrics metrics = HttpMetrics.getDefault();
+ * metrics.addPathPattern("/users/{user}/posts");
+ * metrics.startDump(60000);
+ *
+ * HttpMetrics.Snapshot snapshot = metrics.getEndpointSnapshot("GET api.example.com/users/{user}/posts");
+ * Debug.out("p95: " + snapshot.p95);
+ * @endcode
+ */
+public class HttpMetrics
+{
+	/**
+	 * The default amount of endpoints recorded separately
+	 */
+	public static final int DEFAULT_MAX_ENDPOINTS = 256;
+
+	/**
+	 * The endpoint requests are recorded under once the endpoint limit is reached
+	 */
+	public static final String OVERFLOW_ENDPOINT = "other";
+
+	private static HttpMetrics sDefault;
+
+	private final ConcurrentHashMap<String, Stats> mHosts = new ConcurrentHashMap<String, Stats>();
+	private final ConcurrentHashMap<String, Stats> mEndpoints = new ConcurrentHashMap<String, Stats>();
+	private final CopyOnWriteArrayList<String[]> mPathPatterns = new CopyOnWriteArrayList<String[]>();
+	private volatile int mMaxEndpoints = DEFAULT_MAX_ENDPOINTS;
+	private ScheduledExecutorService mDumpScheduler;
+	private ScheduledFuture<?> mDumpTask;
+
+	/**
+	 * Default constructor
+	 */
+	public HttpMetrics()
+	{
+	}
+
+	/**
+	 * Gets the shared registry that {@link AsyncHttpClient} records into by default
+	 * @return The shared registry
+	 */
+	public static synchronized HttpMetrics getDefault()
+	{
+		if (sDefault == null)
+		{
+			sDefault = new HttpMetrics();
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 * Adds a path pattern to group endpoints by. Segments in braces match any value
+	 * @param pattern The pattern, for example <code>/users/{user}/posts</code>
+	 */
+	public void addPathPattern(String pattern)
+	{
+		mPathPatterns.add(split(pattern));
+	}
+
+	/**
+	 * Sets the amount of endpoints recorded separately. Requests to new endpoints beyond the limit are recorded
+	 * under {@link OVERFLOW_ENDPOINT}. Defaults to {@link DEFAULT_MAX_ENDPOINTS}
+	 * @param max The amount of endpoints
+	 */
+	public void setMaxEndpoints(int max)
+	{
+		mMaxEndpoints = Math.max(0, max);
+	}
+
+	/**
+	 * Records a finished request
+	 * @param info The connection info of the request
+	 */
+	public void record(ConnectionInfo info)
+	{
+		URL url;
+
+		try
+		{
+			url = new URL(info.connectionUrl);
+		}
+		catch (Exception e)
+		{
+			return;
+		}
+
+		long latency = info.connectionTotalTime >= 0 ? info.connectionTotalTime : info.connectionResponseTime - info.connectionInitiationTime;
+		int code = info.connectionResponseCode;
+		boolean error = !((code / 100) == 2 || code == 304);
+		String host = url.getHost();
+		String endpoint = info.connectionMethod + " " + host + getPathPattern(url.getPath());
+
+		if (!mEndpoints.containsKey(endpoint) && mEndpoints.size() >= mMaxEndpoints)
+		{
+			endpoint = OVERFLOW_ENDPOINT;
+		}
+
+		getStats(mHosts, host).record(latency, error, info.connectionSentBytes, info.connectionReceivedBytes);
+		getStats(mEndpoints, endpoint).record(latency, error, info.connectionSentBytes, info.connectionReceivedBytes);
+	}
+
+	/**
+	 * Gets the path pattern a path is grouped by
+	 * @param path The path of the request
+	 * @return The matching pattern from {@link addPathPattern}, or the path with ids replaced by <code>{id}</code>
+	 */
+	public String getPathPattern(String path)
+	{
+		String[] segments = split(path);
+
+		for (String[] pattern : mPathPatterns)
+		{
+			if (matches(pattern, segments))
+			{
+				return join(pattern);
+			}
+		}
+
+		for (int index = 0; index < segments.length; index++)
+		{
+			if (isId(segments[index]))
+			{
+				segments[index] = "{id}";
+			}
+		}
+
+		return join(segments);
+	}
+
+	/**
+	 * Gets the statistics of a host
+	 * @param host The host name
+	 * @return The snapshot, or null if no requests were made to the host
+	 */
+	public Snapshot getHostSnapshot(String host)
+	{
+		Stats stats = mHosts.get(host);
+		return stats == null ? null : stats.snapshot(host);
+	}
+
+	/**
+	 * Gets the statistics of an endpoint
+	 * @param endpoint The endpoint in the format <code>METHOD host/path/pattern</code>
+	 * @return The snapshot, or null if no requests were made to the endpoint
+	 */
+	public Snapshot getEndpointSnapshot(String endpoint)
+	{
+		Stats stats = mEndpoints.get(endpoint);
+		return stats == null ? null : stats.snapshot(endpoint);
+	}
+
+	/**
+	 * Gets the statistics of every host
+	 * @return The snapshots, sorted by name
+	 */
+	public List<Snapshot> getHostSnapshots()
+	{
+		return snapshot(mHosts);
+	}
+
+	/**
+	 * Gets the statistics of every endpoint
+	 * @return The snapshots, sorted by name
+	 */
+	public List<Snapshot> getEndpointSnapshots()
+	{
+		return snapshot(mEndpoints);
+	}
+
+	/**
+	 * Clears all of the recorded statistics
+	 */
+	public void reset()
+	{
+		mHosts.clear();
+		mEndpoints.clear();
+	}
+
+	/**
+	 * Outputs the statistics of every host and endpoint through {@link Debug}
+	 */
+	public void dump()
+	{
+		StringBuilder out = new StringBuilder("HTTP metrics");
+
+		for (Snapshot snapshot : getHostSnapshots())
+		{
+			out.append("\n").append(snapshot);
+		}
+
+		for (Snapshot snapshot : getEndpointSnapshots())
+		{
+			out.append("\n").append(snapshot);
+		}
+
+		Debug.out(out.toString());
+	}
+
+	/**
+	 * Starts outputting the statistics through {@link Debug} on an interval. Call {@link stopDump} to stop it,
+	 * for example in production builds
+	 * @param interval The interval in MS
+	 */
+	public synchronized void startDump(long interval)
+	{
+		stopDump();
+
+		if (mDumpScheduler == null)
+		{
+			mDumpScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "XHttp-metrics");
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+		}
+
+		mDumpTask = mDumpScheduler.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				dump();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops outputting the statistics started with {@link startDump}
+	 */
+	public synchronized void stopDump()
+	{
+		if (mDumpTask != null)
+		{
+			mDumpTask.cancel(false);
+			mDumpTask = null;
+		}
+	}
+
+	private static Stats getStats(ConcurrentHashMap<String, Stats> map, String key)
+	{
+		Stats stats = map.get(key);
+		if (stats == null)
+		{
+			Stats newStats = new Stats();
+			stats = map.putIfAbsent(key, newStats);
+
+			if (stats == null)
+			{
+				stats = newStats;
+			}
+		}
+
+		return stats;
+	}
+
+	private static List<Snapshot> snapshot(ConcurrentHashMap<String, Stats> map)
+	{
+		ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+		for (Map.Entry<String, Stats> entry : map.entrySet())
+		{
+			snapshots.add(entry.getValue().snapshot(entry.getKey()));
+		}
+
+		Collections.sort(snapshots, new Comparator<Snapshot>()
+		{
+			public int compare(Snapshot lhs, Snapshot rhs)
+			{
+				return lhs.name.compareTo(rhs.name);
+			}
+		});
+
+		return snapshots;
+	}
+
+	private static String[] split(String path)
+	{
+		ArrayList<String> segments = new ArrayList<String>();
+
+		for (String segment : path.split("/"))
+		{
+			if (segment.length() > 0)
+			{
+				segments.add(segment);
+			}
+		}
+
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	private static String join(String[] segments)
+	{
+		if (segments.length == 0) return "/";
+
+		StringBuilder path = new StringBuilder();
+		for (String segment : segments)
+		{
+			path.append('/').append(segment);
+		}
+
+		return path.toString();
+	}
+
+	private static boolean matches(String[] pattern, String[] segments)
+	{
+		if (pattern.length != segments.length) return false;
+
+		for (int index = 0; index < pattern.length; index++)
+		{
+			boolean wildcard = pattern[index].startsWith("{") && pattern[index].endsWith("}");
+			if (!wildcard && !pattern[index].equals(segments[index]))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isId(String segment)
+	{
+		boolean digits = true;
+		boolean hex = segment.length() >= 16;
+
+		for (int index = 0; index < segment.length(); index++)
+		{
+			char c = segment.charAt(index);
+
+			if (c < '0' || c > '9')
+			{
+				digits = false;
+			}
+
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-'))
+			{
+				hex = false;
+			}
+		}
+
+		return digits || hex;
+	}
+
+	/**
+	 * @brief A lock-free histogram of values in log buckets with 32 linear sub-buckets each
+	 */
+	public static class Histogram
+	{
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+		private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+		private static final int MAX_BUCKET = 40;
+
+		private final AtomicLongArray mCounts = new AtomicLongArray((MAX_BUCKET + 2) * SUB_BUCKET_HALF);
+		private final AtomicLong mTotalCount = new AtomicLong(0);
+		private final AtomicLong mTotal = new AtomicLong(0);
+		private final AtomicLong mMax = new AtomicLong(0);
+
+		/**
+		 * Records a value
+		 * @param value The value, negative values are recorded as 0
+		 */
+		public void record(long value)
+		{
+			value = Math.max(0, value);
+
+			mCounts.incrementAndGet(getIndex(value));
+			mTotalCount.incrementAndGet();
+			mTotal.addAndGet(value);
+
+			long max;
+			while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value));
+		}
+
+		/**
+		 * Gets the value at a percentile
+		 * @param percentile The percentile between 0 and 100
+		 * @return The highest value in the bucket the percentile falls in, or 0 if nothing was recorded
+		 */
+		public long getValueAtPercentile(double percentile)
+		{
+			long count = mTotalCount.get();
+			if (count == 0) return 0;
+
+			long target = Math.max(1, (long)Math.ceil((percentile / 100.0) * count));
+			long seen = 0;
+
+			int length = mCounts.length();
+			for (int index = 0; index < length; index++)
+			{
+				seen += mCounts.get(index);
+
+				if (seen >= target)
+				{
+					return Math.min(mMax.get(), getHighestValue(index));
+				}
+			}
+
+			return mMax.get();
+		}
+
+		/**
+		 * Gets the amount of recorded values
+		 * @return The count
+		 */
+		public long getCount()
+		{
+			return mTotalCount.get();
+		}
+
+		/**
+		 * Gets the mean of the recorded values
+		 * @return The mean
+		 */
+		public long getMean()
+		{
+			long count = mTotalCount.get();
+			return count == 0 ? 0 : mTotal.get() / count;
+		}
+
+		/**
+		 * Gets the largest recorded value
+		 * @return The max
+		 */
+		public long getMax()
+		{
+			return mMax.get();
+		}
+
+		private static int getIndex(long value)
+		{
+			int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1);
+			if (bucket > MAX_BUCKET)
+			{
+				return (MAX_BUCKET + 2) * SUB_BUCKET_HALF - 1;
+			}
+
+			int subBucket = (int)(value >>> bucket);
+			return ((bucket + 1) * SUB_BUCKET_HALF) + (subBucket - SUB_BUCKET_HALF);
+		}
+
+		private static long getHighestValue(int index)
+		{
+			if (index < SUB_BUCKET_COUNT)
+			{
+				return index;
+			}
+
+			int bucket = (index / SUB_BUCKET_HALF) - 1;
+			long subBucket = (index % SUB_BUCKET_HALF) + SUB_BUCKET_HALF;
+
+			return ((subBucket + 1) << bucket) - 1;
+		}
+	}
+
+	/**
+	 * @brief The statistics of a host or endpoint at a point in time
+	 */
+	public static class Snapshot
+	{
+		/**
+		 * The host or endpoint
+		 */
+		public String name;
+		/**
+		 * The amount of requests
+		 */
+		public long count;
+		/**
+		 * The amount of requests which failed or got a response other than 2xx or 304
+		 */
+		public long errorCount;
+		/**
+		 * The rate of errors between 0 and 1
+		 */
+		public double errorRate;
+		/**
+		 * The median latency in MS
+		 */
+		public long p50;
+		/**
+		 * The 95th percentile latency in MS
+		 */
+		public long p95;
+		/**
+		 * The 99th percentile latency in MS
+		 */
+		public long p99;
+		/**
+		 * The mean latency in MS
+		 */
+		public long mean;
+		/**
+		 * The largest latency in MS
+		 */
+		public long max;
+		/**
+		 * The total body bytes sent
+		 */
+		public long bytesSent;
+		/**
+		 * The total body bytes received
+		 */
+		public long bytesReceived;
+
+		@Override public String toString()
+		{
+			return name + ": count=" + count + ", errors=" + errorCount + " (" + Math.round(errorRate * 100) + "%), p50=" + p50 + "ms, p95=" + p95 + "ms, p99=" + p99 + "ms, mean=" + mean + "ms, max=" + max + "ms, sent=" + bytesSent + ", received=" + bytesReceived;
+		}
+	}
+
+	/**
+	 * @brief The counters of a host or endpoint
+	 */
+	private static class Stats
+	{
+		private final Histogram mLatency = new Histogram();
+		private final AtomicLong mErrors = new AtomicLong(0);
+		private final AtomicLong mBytesSent = new AtomicLong(0);
+		private final AtomicLong mBytesReceived = new AtomicLong(0);
+
+		public void record(long latency, boolean error, long sent, long received)
+		{
+			mLatency.record(latency);
+			mBytesSent.addAndGet(sent);
+			mBytesReceived.addAndGet(received);
+
+			if (error)
+			{
+				mErrors.incrementAndGet();
+			}
+		}
+
+		public Snapshot snapshot(String name)
+		{
+			Snapshot snapshot = new Snapshot();
+			snapshot.name = name;
+			snapshot.count = mLatency.getCount();
+			snapshot.errorCount = mErrors.get();
+			snapshot.errorRate = snapshot.count == 0 ? 0 : (double)snapshot.errorCount / snapshot.count;
+			snapshot.p50 = mLatency.getValueAtPercentile(50);
+			snapshot.p95 = mLatency.getValueAtPercentile(95);
+			snapshot.p99 = mLatency.getValueAtPercentile(99);
+			snapshot.mean = mLatency.getMean();
+			snapshot.max = mLatency.getMax();
+			snapshot.bytesSent = mBytesSent.get();
+			snapshot.bytesReceived = mBytesReceived.get();
+
+			return snapshot;
+		}
+	}
+}
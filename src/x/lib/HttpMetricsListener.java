@@ -0,0 +1,24 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import x.type.ConnectionInfo;
+
+/**
+ * @brief Receives the timings of every {@link AsyncHttpClient} request, for example to export them to telemetry.
+ *
+ * Set with {@link AsyncHttpClient.setMetricsListener}. Called once per request on the request's worker thread
+ * after it has finished, so it should not block. Requests that shared an identical request in flight are only
+ * reported once.
+ */
+public interface HttpMetricsListener
+{
+	/**
+	 * Called when a request has finished
+	 * @param info The connection info of the request, including its phase timings
+	 */
+	public void onRequestFinished(ConnectionInfo info);
+}
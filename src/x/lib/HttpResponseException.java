@@ -0,0 +1,48 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+
+import x.type.HttpResult;
+
+/**
+ * @brief The error an {@link HttpFuture} or {@link HttpStream} fails with when the server did not respond with a 2xx
+ */
+public class HttpResponseException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final HttpResult mResult;
+
+	/**
+	 * Default constructor
+	 * @param result The response of the failed request
+	 */
+	public HttpResponseException(HttpResult result)
+	{
+		super("HTTP " + result.toString());
+		mResult = result;
+	}
+
+	/**
+	 * Gets the response of the failed request
+	 * @return The response, including any error body
+	 */
+	public HttpResult getResult()
+	{
+		return mResult;
+	}
+
+	/**
+	 * Gets the response code of the failed request
+	 * @return The response code, or 0 or less if the server could not be reached
+	 */
+	public int getResponseCode()
+	{
+		return mResult.getResponseCode();
+	}
+}
@@ -0,0 +1,369 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import x.type.HttpParams;
+import x.type.HttpResult;
+
+/**
+ * @brief Streams the body of a request to a subscriber in chunks, only reading as many chunks as it has asked for.
+ *
+ * Created with {@link AsyncHttpClient.openStream}. The request is sent when {@link subscribe} is called. The body
+ * is read off the connection one chunk at a time and only once the subscriber has requested it, so a slow
+ * subscriber leaves the rest of the body in the socket instead of in memory, and the server is slowed down by
+ * TCP flow control. Cancelling the subscription closes the connection.
+ *
+ * {@link Subscriber.onSubscribe} is called on the thread that subscribes, {@link Subscriber.onNext} on the request
+ * thread, and {@link Subscriber.onComplete} or {@link Subscriber.onError} on the main thread once the request has
+ * finished. They are never called at the same time. The request timeout of the client includes the time the
+ * subscriber takes to ask for more chunks.
+ *
+ * Example:
+ * @code
+ * new AsyncHttpClient().openStream("http://example.com/feed", null, null).subscribe(new HttpStream.Subscriber()
+ * {
+ * 	private HttpStream.Subscription mSubscription;
+ *
+ * 	public void onSubscribe(HttpStream.Subscription subscription)
+ * 	{
+ * 		mSubscription = subscription;
+ * 		mSubscription.request(1);
+ * 	}
+ *
+ * 	public void onNext(byte[] chunk)
+ * 	{
+ * 		parse(chunk);
+ * 		mSubscription.request(1);
+ * 	}
+ *
+ * 	public void onError(Throwable error){}
+ * 	public void onComplete(){}
+ * });
+ * @endcode
+ */
+public class HttpStream
+{
+	/**
+	 * The default maximum size of a chunk in bytes
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	private final AsyncHttpClient mClient;
+	private final String mUrl;
+	private final HttpParams mRequestParameters;
+	private final HttpParams mHeaders;
+	private final StreamSubscription mSubscription = new StreamSubscription();
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+	private Subscriber mSubscriber;
+
+	/**
+	 * @brief Receives the chunks of a stream
+	 */
+	public interface Subscriber
+	{
+		/**
+		 * Called when the stream is subscribed to, before the request is sent. No chunks are read until
+		 * {@link Subscription.request} is called
+		 * @param subscription The subscription
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called on the request thread with the next chunk of the body
+		 * @param chunk The chunk, which is not reused
+		 */
+		public void onNext(byte[] chunk);
+
+		/**
+		 * Called on the main thread if the request failed. Not called if the subscription was cancelled
+		 * @param error The error, a {@link HttpResponseException} if the server did not respond with a 2xx
+		 */
+		public void onError(Throwable error);
+
+		/**
+		 * Called on the main thread once the whole body has been passed to {@link onNext}
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * @brief Controls how much of a stream is read
+	 */
+	public interface Subscription
+	{
+		/**
+		 * Asks for more chunks. The chunks asked for add up until they are delivered
+		 * @param count The amount of chunks, must be more than 0. Otherwise the stream stops and fails with an
+		 * IllegalArgumentException, passed to {@link Subscriber.onError} like any other error
+		 */
+		public void request(long count);
+
+		/**
+		 * Stops the stream and closes the connection. No more methods are called on the subscriber
+		 */
+		public void cancel();
+	}
+
+	/**
+	 * Default constructor
+	 * @param client The client to send the request with, which can only send one request
+	 * @param url The url to stream
+	 * @param requestParameters The request parameters, can be null
+	 * @param headers The request headers, can be null
+	 */
+	public HttpStream(AsyncHttpClient client, String url, HttpParams requestParameters, HttpParams headers)
+	{
+		mClient = client;
+		mUrl = url;
+		mRequestParameters = requestParameters;
+		mHeaders = headers;
+	}
+
+	/**
+	 * Sets the maximum size of each chunk
+	 * @param size The size in bytes
+	 */
+	public void setChunkSize(int size)
+	{
+		mChunkSize = Math.max(1, size);
+	}
+
+	/**
+	 * Gets the maximum size of each chunk
+	 * @return The size in bytes
+	 */
+	public int getChunkSize()
+	{
+		return mChunkSize;
+	}
+
+	/**
+	 * Sends the request and streams its body to a subscriber. A stream can only be subscribed to once
+	 * @param subscriber The subscriber
+	 * @throws IllegalStateException If the stream has already been subscribed to
+	 */
+	public void subscribe(Subscriber subscriber)
+	{
+		synchronized (this)
+		{
+			if (mSubscriber != null)
+			{
+				throw new IllegalStateException("The stream has already been subscribed to");
+			}
+
+			mSubscriber = subscriber;
+		}
+
+		subscriber.onSubscribe(mSubscription);
+
+		Throwable error = mSubscription.getError();
+		if (error != null)
+		{
+			// nothing has been sent, so the error can't overlap onNext
+			subscriber.onError(error);
+		}
+		else if (!mSubscription.isCancelled())
+		{
+			mClient.stream(mUrl, mRequestParameters, mHeaders, new StreamResponse());
+		}
+	}
+
+	/**
+	 * @brief Counts the chunks the subscriber has asked for. The request thread waits on a lock rather than a
+	 * monitor, so a request on a virtual thread does not pin its carrier thread whilst the subscriber is slow
+	 */
+	private class StreamSubscription implements Subscription
+	{
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final Condition mChanged = mLock.newCondition();
+		private long mDemand = 0;
+		private boolean mCancelled = false;
+		private Throwable mError;
+
+		public void request(long count)
+		{
+			mLock.lock();
+			try
+			{
+				if (count <= 0)
+				{
+					// the request thread stops at its next chunk and the error is passed on once the request has
+					// finished, so onError is never called whilst onNext is running
+					if (mError == null && !mCancelled)
+					{
+						mError = new IllegalArgumentException("The amount of chunks requested must be more than 0");
+					}
+				}
+				else
+				{
+					mDemand = mDemand + count < 0 ? Long.MAX_VALUE : mDemand + count;
+				}
+
+				mChanged.signalAll();
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+		public void cancel()
+		{
+			mLock.lock();
+			try
+			{
+				if (mCancelled)
+				{
+					return;
+				}
+
+				mCancelled = true;
+				mChanged.signalAll();
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+
+			mClient.cancel();
+		}
+
+		public boolean isCancelled()
+		{
+			mLock.lock();
+			try
+			{
+				return mCancelled;
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * Gets the error the subscriber caused by asking for an invalid amount of chunks
+		 * @return The error, or null if there is none
+		 */
+		public Throwable getError()
+		{
+			mLock.lock();
+			try
+			{
+				return mError;
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * Waits until the subscriber asks for another chunk
+		 * @return True if a chunk can be delivered, false if the subscription was cancelled
+		 * @throws InterruptedIOException If the request was stopped whilst waiting
+		 * @throws IOException If the subscriber asked for an invalid amount of chunks
+		 */
+		public boolean take() throws IOException
+		{
+			mLock.lock();
+			try
+			{
+				while (mDemand == 0 && !mCancelled && mError == null)
+				{
+					mChanged.await();
+				}
+
+				if (mCancelled)
+				{
+					return false;
+				}
+
+				if (mError != null)
+				{
+					throw new IOException("The stream was stopped by its subscriber", mError);
+				}
+
+				if (mDemand != Long.MAX_VALUE)
+				{
+					mDemand--;
+				}
+
+				return true;
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted whilst waiting for the subscriber");
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @brief Reads the body off the connection as the subscriber asks for it
+	 */
+	private class StreamResponse extends AsyncHttpResponse
+	{
+		@Override public void onStream(InputStream stream, int totalSize) throws IOException
+		{
+			while (true)
+			{
+				// read before waiting for demand, so the end of the body finishes the stream without the
+				// subscriber having to ask for a chunk that never comes
+				byte[] buffer = new byte[mChunkSize];
+				int len = stream.read(buffer);
+
+				if (len == -1 || !mSubscription.take())
+				{
+					return;
+				}
+
+				byte[] chunk = buffer;
+				if (len < buffer.length)
+				{
+					chunk = new byte[len];
+					System.arraycopy(buffer, 0, chunk, 0, len);
+				}
+
+				mSubscriber.onNext(chunk);
+			}
+		}
+
+		@Override public void onFinish()
+		{
+			if (mSubscription.isCancelled())
+			{
+				return;
+			}
+
+			Throwable error = mSubscription.getError();
+			if (error != null)
+			{
+				mSubscriber.onError(error);
+				return;
+			}
+
+			HttpResult result = new HttpResult(getConnectionInfo(), null);
+			if (result.isSuccessful())
+			{
+				mSubscriber.onComplete();
+			}
+			else
+			{
+				mSubscriber.onError(new HttpResponseException(result));
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * @brief Opens the connections that {@link AsyncHttpClient} sends its requests over.
+ *
+ * The client only talks to the <code>HttpURLConnection</code> API, so any engine that can hand out
+ * <code>HttpURLConnection</code>s can be plugged in without changing the callers of <code>get</code>,
+ * <code>post</code> or <code>download</code>. {@link UrlConnectionTransport} uses the platform's implementation
+ * and is the default.
+ *
+ * A transport that multiplexes many requests over one connection, such as HTTP/2, should return true from
+ * {@link isMultiplexed}. Its connections then skip the per-host limits of the {@link ConnectionPool} and are not
+ * disconnected after a request that was fully read, because the transport manages its own sockets.
+ *
+ * Example:
+ * @code
+ * AsyncHttpClient.setTransport(new MyHttp2Transport());
+ * @endcode
+ */
+public interface HttpTransport
+{
+	/**
+	 * Opens a connection to a url. The connection must not be connected yet, the client sets the method,
+	 * headers and timeouts on it before it is used
+	 * @param url The url to connect to
+	 * @return The new connection
+	 * @throws IOException If the connection could not be created
+	 */
+	public HttpURLConnection openConnection(URL url) throws IOException;
+
+	/**
+	 * Checks if the transport sends many requests over one connection
+	 * @return True if the transport manages its own connections and does not need the connection pool
+	 */
+	public boolean isMultiplexed();
+
+	/**
+	 * Gets the name of the transport, used in benchmarks and logs
+	 * @return The name
+	 */
+	public String getName();
+}
@@ -0,0 +1,134 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import x.type.HttpParams;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * @brief The default {@link BatchFormat}, which sends the requests as a JSON array and reads the responses from one.
+ *
+ * A batch of two requests is sent as
+ * @code
+ * {"requests":[
+ * 	{"id":"0","method":"GET","url":"http://example.com/user","headers":{"Accept":"application/json"}},
+ * 	{"id":"1","method":"POST","url":"http://example.com/like","body":"id=15"}
+ * ]}
+ * @endcode
+ * and the server responds with
+ * @code
+ * {"responses":[
+ * 	{"id":"0","status":200,"headers":{"Content-Type":"application/json"},"body":{"name":"Callum"}},
+ * 	{"id":"1","status":404,"message":"Not Found"}
+ * ]}
+ * @endcode
+ * A body that is a JSON string is passed on as the string, any other body is passed on as its JSON text. Request
+ * bodies are sent as UTF-8 strings.
+ */
+public class JsonBatchFormat implements BatchFormat
+{
+	public String getContentType()
+	{
+		return "application/json; charset=utf-8";
+	}
+
+	public byte[] encode(List<HttpBatcher.Item> items) throws IOException
+	{
+		JsonArray requests = new JsonArray();
+
+		for (HttpBatcher.Item item : items)
+		{
+			JsonObject request = new JsonObject();
+			request.addProperty("id", item.id);
+			request.addProperty("method", item.method);
+			request.addProperty("url", item.url);
+
+			if (item.headers.size() > 0)
+			{
+				JsonObject headers = new JsonObject();
+				for (int index = 0; index < item.headers.size(); index++)
+				{
+					headers.addProperty(item.headers.getName(index), item.headers.getValue(index));
+				}
+
+				request.add("headers", headers);
+			}
+
+			if (item.body != null)
+			{
+				request.addProperty("body", new String(item.body, "UTF-8"));
+			}
+
+			requests.add(request);
+		}
+
+		JsonObject envelope = new JsonObject();
+		envelope.add("requests", requests);
+
+		return envelope.toString().getBytes("UTF-8");
+	}
+
+	public List<HttpBatcher.Result> decode(String body, List<HttpBatcher.Item> items) throws IOException
+	{
+		try
+		{
+			JsonElement root = new JsonParser().parse(body);
+			if (!root.isJsonObject() || !root.getAsJsonObject().has("responses"))
+			{
+				throw new IOException("The batch response has no responses");
+			}
+
+			JsonArray responses = root.getAsJsonObject().getAsJsonArray("responses");
+			List<HttpBatcher.Result> results = new ArrayList<HttpBatcher.Result>(responses.size());
+
+			for (JsonElement element : responses)
+			{
+				JsonObject response = element.getAsJsonObject();
+				int code = response.has("status") ? response.get("status").getAsInt() : 0;
+				String message = response.has("message") ? response.get("message").getAsString() : "";
+
+				HttpParams headers = new HttpParams();
+				if (response.has("headers"))
+				{
+					for (Map.Entry<String, JsonElement> header : response.getAsJsonObject("headers").entrySet())
+					{
+						headers.addParam(header.getKey(), header.getValue().getAsString());
+					}
+				}
+
+				String responseBody = null;
+				if (response.has("body") && !response.get("body").isJsonNull())
+				{
+					JsonElement value = response.get("body");
+					responseBody = value.isJsonPrimitive() && value.getAsJsonPrimitive().isString() ? value.getAsString() : value.toString();
+				}
+
+				results.add(new HttpBatcher.Result(response.get("id").getAsString(), code, message, headers, responseBody));
+			}
+
+			return results;
+		}
+		catch (JsonParseException e)
+		{
+			throw new IOException("The batch response is not valid JSON: " + e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			// a response missing its id, or a field of the wrong type
+			throw new IOException("The batch response is not in the expected format: " + e);
+		}
+	}
+}
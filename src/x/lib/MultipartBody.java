@@ -0,0 +1,238 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import x.type.FileHttpParams;
+import x.type.HttpParams;
+import x.type.ItemList;
+
+/**
+ * @brief A multipart/form-data request body that is written straight to the connection.
+ *
+ * Files added to {@link FileHttpParams} as a File, InputStream or FileChannel are read through a small reusable
+ * buffer as the body is sent, so they are never loaded into memory. The length of the body is worked out up front
+ * so the request can be sent with a fixed Content-Length.
+ *
+ * Example:
+ * @code
+ * FileHttpParams files = new FileHttpParams();
+ * files.addFile("photo", "photo.jpg", "image/jpeg", new File(path));
+ *
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.post("http://url.com/upload", new MultipartBody(new HttpParams(), files), response);
+ * @endcode
+ */
+public class MultipartBody
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ItemList<Object> mParts = new ItemList<Object>();
+	private final ItemList<Long> mPartLengths = new ItemList<Long>();
+	private final String mBoundary;
+	private long mContentLength = 0;
+
+	/**
+	 * Default constructor
+	 * @param values The form values to send, can be null
+	 * @param files The files to send, can be null
+	 */
+	public MultipartBody(HttpParams values, FileHttpParams files)
+	{
+		this(values, files, AsyncHttpClient.getBoundary());
+	}
+
+	/**
+	 * Default constructor
+	 * @param values The form values to send, can be null
+	 * @param files The files to send, can be null
+	 * @param boundary The boundary between the parts
+	 */
+	public MultipartBody(HttpParams values, FileHttpParams files, String boundary)
+	{
+		mBoundary = boundary;
+
+		StringBuffer res = new StringBuffer("\r\n").append("--").append(boundary).append("\r\n");
+
+		if (values != null)
+		{
+			ItemList<String[]> headers = values.getHeaders();
+			int size = headers.size();
+
+			for (int index = 0; index < size; index++)
+			{
+				String key = headers.get(index)[0];
+				String val = headers.get(index)[1];
+
+				res.append("Content-Disposition: form-data; name=\"").append(key).append("\"\r\n").append("\r\n").append(val).append("\r\n").append("--").append(boundary).append("\r\n");
+			}
+		}
+
+		addPart(res.toString().getBytes(), -1);
+
+		if (files != null && files.size() > 0)
+		{
+			int count = files.size();
+			for (int index = 0; index < count; index++)
+			{
+				StringBuffer fileRes = new StringBuffer();
+
+				if (index > 0)
+				{
+					fileRes.append("\r\n--").append(boundary).append("\r\n");
+				}
+
+				fileRes.append("Content-Disposition: form-data; name=\"").append(files.getFieldName(index)).append("\"; filename=\"").append(files.getFileName(index)).append("\"\r\n").append("Content-Type: ").append(files.getFileType(index)).append("\r\n\r\n");
+
+				addPart(fileRes.toString().getBytes(), -1);
+				addPart(files.getFileSource(index), files.getFileLength(index));
+			}
+		}
+
+		addPart(("\r\n--" + boundary + "--\r\n").getBytes(), -1);
+	}
+
+	private void addPart(Object part, long length)
+	{
+		if (part instanceof byte[])
+		{
+			length = ((byte[])part).length;
+		}
+
+		mParts.add(part);
+		mPartLengths.add(length);
+
+		if (mContentLength != -1)
+		{
+			mContentLength = length < 0 ? -1 : mContentLength + length;
+		}
+	}
+
+	/**
+	 * Gets the Content-Type header for the body
+	 * @return The header as a String[] which can be used with HttpParams.addParam(header)
+	 */
+	public String[] getContentTypeHeader()
+	{
+		return new String[]{"Content-Type", "multipart/form-data; boundary=" + mBoundary};
+	}
+
+	/**
+	 * Gets the length of the body
+	 * @return The length in bytes, or -1 if a stream of unknown length was added
+	 */
+	public long getContentLength()
+	{
+		return mContentLength;
+	}
+
+	/**
+	 * Checks if the body can be written more than once, for example when a
+	 * request is retried
+	 * @return False if an InputStream or FileChannel was added, as they can only be read once
+	 */
+	public boolean isRepeatable()
+	{
+		for (Object part : mParts)
+		{
+			if (part instanceof InputStream || part instanceof FileChannel)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes the body to a stream
+	 * @param out The stream to write to
+	 * @param response The response to report progress to, can be null
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, AsyncHttpResponse response) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long[] written = {0};
+		int total = mContentLength > Integer.MAX_VALUE ? -1 : (int)mContentLength;
+
+		int count = mParts.size();
+		for (int index = 0; index < count; index++)
+		{
+			Object part = mParts.get(index);
+
+			if (part instanceof byte[])
+			{
+				byte[] bytes = (byte[])part;
+				out.write(bytes);
+				written[0] += bytes.length;
+			}
+			else if (part instanceof File)
+			{
+				FileInputStream fis = new FileInputStream((File)part);
+
+				try
+				{
+					copy(fis, out, buffer, written, total, response);
+				}
+				finally
+				{
+					fis.close();
+				}
+			}
+			else if (part instanceof InputStream)
+			{
+				copy((InputStream)part, out, buffer, written, total, response);
+			}
+			else if (part instanceof FileChannel)
+			{
+				FileChannel channel = (FileChannel)part;
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+				int len;
+				while ((len = channel.read(byteBuffer)) != -1)
+				{
+					out.write(buffer, 0, len);
+					byteBuffer.clear();
+
+					written[0] += len;
+					reportProgress(response, written[0], total);
+				}
+			}
+
+			reportProgress(response, written[0], total);
+		}
+
+		out.flush();
+	}
+
+	private static void copy(InputStream in, OutputStream out, byte[] buffer, long[] written, int total, AsyncHttpResponse response) throws IOException
+	{
+		int len;
+		while ((len = in.read(buffer)) != -1)
+		{
+			out.write(buffer, 0, len);
+
+			written[0] += len;
+			reportProgress(response, written[0], total);
+		}
+	}
+
+	private static void reportProgress(AsyncHttpResponse response, long written, int total)
+	{
+		if (response != null)
+		{
+			response.onBytesProcessed((int)Math.min(written, Integer.MAX_VALUE), total);
+		}
+	}
+}
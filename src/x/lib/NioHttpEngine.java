@@ -0,0 +1,1716 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import x.lib.AsyncHttpClient.RequestMode;
+import x.type.ConnectionInfo;
+import x.type.HeaderSet;
+import x.type.HttpParams;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * @brief Sends many HTTP/1.1 requests at once from a small number of threads.
+ *
+ * {@link AsyncHttpClient} blocks one thread for the whole of each request, which is wasteful when hundreds of small
+ * downloads are in flight at once, such as the images of a feed. This engine drives the requests from a few event
+ * loop threads with non-blocking sockets and a selector, so the amount of threads stays the same however many
+ * requests are in flight. Each host belongs to one loop, which keeps its idle keep-alive connections and limits
+ * the connections open to it. Host names are looked up on a small resolver pool and finished bodies are
+ * decompressed and decoded on a small worker pool, so the loops only move bytes and never block.
+ *
+ * Results are delivered to the same {@link AsyncHttpResponse} callbacks as {@link AsyncHttpClient}, on the main
+ * thread unless another executor is set with {@link setCallbackExecutor}. Plain http requests with String or byte[]
+ * bodies are handled by the engine, https requests, multipart bodies and streams are handed to {@link AsyncHttpClient}.
+ * Those requests do not share the loops: each one takes a thread of the client's executor for its whole length, and
+ * if that executor refuses it the client fails it with {@link AsyncHttpClient#RESPONSE_CODE_REJECTED} straight away
+ * on the calling thread.
+ *
+ * Example:
+ * @code
+ * NioHttpEngine engine = NioHttpEngine.getDefault();
+ * engine.setMaxConnectionsPerHost(16);
+ *
+ * for (String url : imageUrls)
+ * {
+ * 	engine.download(url, null, new AsyncHttpResponse()
+ * 	{
+ * 		public void onSuccess(byte[] response)
+ * 		{
+ * 			// decode the image
+ * 		}
+ * 	});
+ * }
+ * @endcode
+ */
+public class NioHttpEngine
+{
+	/**
+	 * The default amount of connections open to a single host
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+	private static final int MAX_REDIRECTS = 5;
+	private static final int READ_BUFFER_SIZE = 16384;
+	private static final int MAX_HEADER_SIZE = 65536;
+	private static final long SWEEP_INTERVAL = 100;
+	private static final long ADDRESS_CACHE_DURATION = 60 * 1000;
+
+	private static final int STATE_HEADERS = 0;
+	private static final int STATE_BODY = 1;
+	private static final int STATE_CHUNK_SIZE = 2;
+	private static final int STATE_CHUNK_DATA = 3;
+	private static final int STATE_CHUNK_END = 4;
+	private static final int STATE_TRAILERS = 5;
+	private static final int STATE_UNTIL_CLOSE = 6;
+	private static final int STATE_DONE = 7;
+
+	private static NioHttpEngine sDefault;
+
+	private final Loop[] mLoops;
+	private final ThreadPoolExecutor mResolver;
+	private final ThreadPoolExecutor mDecoder;
+	private final ConcurrentHashMap<String, CachedAddress> mAddresses = new ConcurrentHashMap<String, CachedAddress>();
+	private final AtomicInteger mActiveCount = new AtomicInteger(0);
+	private volatile Executor mCallbackExecutor = new MainThreadExecutor();
+	private volatile int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private volatile int mConnectTimeout = AsyncHttpClient.DEFAULT_CONNECT_TIMEOUT;
+	private volatile int mReadTimeout = AsyncHttpClient.DEFAULT_READ_TIMEOUT;
+	private volatile long mKeepAliveDuration = ConnectionPool.DEFAULT_KEEP_ALIVE_DURATION;
+
+	/**
+	 * Default constructor, uses a single event loop
+	 */
+	public NioHttpEngine()
+	{
+		this(1);
+	}
+
+	/**
+	 * Default constructor
+	 * @param loops The amount of event loop threads
+	 */
+	public NioHttpEngine(int loops)
+	{
+		mLoops = new Loop[Math.max(1, loops)];
+
+		for (int index = 0; index < mLoops.length; index++)
+		{
+			mLoops[index] = new Loop("XHttp-nio-" + index);
+		}
+
+		mResolver = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger mCount = new AtomicInteger(0);
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "XHttp-nio-dns-" + mCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mResolver.allowCoreThreadTimeOut(true);
+
+		int decoders = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		mDecoder = new ThreadPoolExecutor(decoders, decoders, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger mCount = new AtomicInteger(0);
+
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "XHttp-nio-decode-" + mCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mDecoder.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Gets the shared engine
+	 * @return The shared engine
+	 */
+	public static synchronized NioHttpEngine getDefault()
+	{
+		if (sDefault == null)
+		{
+			sDefault = new NioHttpEngine();
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 * Sets the executor the response callbacks are run on. Defaults to the main thread
+	 * @param executor The executor, or null to use the main thread
+	 */
+	public void setCallbackExecutor(Executor executor)
+	{
+		mCallbackExecutor = executor == null ? new MainThreadExecutor() : executor;
+	}
+
+	/**
+	 * Sets the amount of connections that can be open to a single host. Requests over the limit wait for a connection
+	 * to become idle. Defaults to {@link DEFAULT_MAX_CONNECTIONS_PER_HOST}
+	 * @param connections The amount of connections
+	 */
+	public void setMaxConnectionsPerHost(int connections)
+	{
+		mMaxConnectionsPerHost = Math.max(1, connections);
+	}
+
+	/**
+	 * Sets the connect and read timeouts
+	 * @param connectTimeout The time in MS to wait for a connection to be made
+	 * @param readTimeout The time in MS to wait for data whilst the request is in flight
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout)
+	{
+		mConnectTimeout = Math.max(0, connectTimeout);
+		mReadTimeout = Math.max(0, readTimeout);
+	}
+
+	/**
+	 * Sets how long an idle connection is kept alive for. Defaults to {@link ConnectionPool.DEFAULT_KEEP_ALIVE_DURATION}
+	 * @param duration The time in MS
+	 */
+	public void setKeepAliveDuration(long duration)
+	{
+		mKeepAliveDuration = Math.max(0, duration);
+	}
+
+	/**
+	 * Gets the amount of requests that have been started and not finished
+	 * @return The amount of requests
+	 */
+	public int getActiveCount()
+	{
+		return mActiveCount.get();
+	}
+
+	/**
+	 * Gets the amount of event loop threads
+	 * @return The amount of threads
+	 */
+	public int getLoopCount()
+	{
+		return mLoops.length;
+	}
+
+	/**
+	 * Initiates a get request
+	 * @param url The url
+	 * @param response The response interface for the request call back
+	 * @return The call, used to cancel the request
+	 */
+	public Call get(String url, AsyncHttpResponse response)
+	{
+		return execute(RequestMode.GET, url, null, null, response);
+	}
+
+	/**
+	 * Initiates a get request
+	 * @param url The url
+	 * @param headers The request headers, can be null
+	 * @param response The response interface for the request call back
+	 * @return The call, used to cancel the request
+	 */
+	public Call get(String url, HttpParams headers, AsyncHttpResponse response)
+	{
+		return execute(RequestMode.GET, url, null, headers, response);
+	}
+
+	/**
+	 * Initiates a delete request
+	 * @param url The url
+	 * @param headers The request headers, can be null
+	 * @param response The response interface for the request call back
+	 * @return The call, used to cancel the request
+	 */
+	public Call delete(String url, HttpParams headers, AsyncHttpResponse response)
+	{
+		return execute(RequestMode.DELETE, url, null, headers, response);
+	}
+
+	/**
+	 * Initiates a post request
+	 * @param url The url
+	 * @param postData The data to send, a byte[] is sent as is, anything else as its String
+	 * @param headers The request headers, can be null
+	 * @param response The response interface for the request call back
+	 * @return The call, used to cancel the request
+	 */
+	public Call post(String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+	{
+		return execute(RequestMode.POST, url, postData, headers, response);
+	}
+
+	/**
+	 * Initiates a put request
+	 * @param url The url
+	 * @param postData The data to send, a byte[] is sent as is, anything else as its String
+	 * @param headers The request headers, can be null
+	 * @param response The response interface for the request call back
+	 * @return The call, used to cancel the request
+	 */
+	public Call put(String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+	{
+		return execute(RequestMode.PUT, url, postData, headers, response);
+	}
+
+	/**
+	 * Initiates a download, the body is delivered to {@link AsyncHttpResponse.onSuccess(byte[])}
+	 * @param url The url
+	 * @param headers The request headers, can be null
+	 * @param response The response interface for the request call back
+	 * @return The call, used to cancel the request
+	 */
+	public Call download(String url, HttpParams headers, AsyncHttpResponse response)
+	{
+		return execute(RequestMode.DOWNLOAD, url, null, headers, response);
+	}
+
+	/**
+	 * Initiates a request
+	 * @param mode The request mode
+	 * @param url The url
+	 * @param postData The data to send for POST and PUT, can be null
+	 * @param headers The request headers, can be null
+	 * @param response The response interface for the request call back, can be null
+	 * @return The call, used to cancel the request
+	 */
+	public Call execute(RequestMode mode, String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+	{
+		Call call = new Call(this, mode, response);
+
+		call.mInfo.connectionHeaders = headers;
+		call.mInfo.connectionSentData = postData;
+		call.mInfo.connectionResponseHeaders = new HttpParams();
+		call.mInfo.connectionInitiationTime = System.currentTimeMillis();
+		call.mInfo.connectionResponseTime = 0;
+		call.mInfo.connectionUrl = url;
+		call.mInfo.connectionMethod = mode.getString();
+
+		URL parsed = null;
+		try
+		{
+			parsed = new URL(url);
+		}
+		catch (MalformedURLException e)
+		{
+			// delivered as a failure below
+		}
+
+		if (parsed != null && (!"http".equalsIgnoreCase(parsed.getProtocol()) || mode == RequestMode.STREAM || postData instanceof MultipartBody))
+		{
+			// TLS and streamed bodies need blocking streams, so they go through the normal client. The client
+			// fails the request with RESPONSE_CODE_REJECTED itself if its executor is full or shut down
+			call.mClient = fallback(mode, url, postData, headers, response);
+			return call;
+		}
+
+		if (response != null)
+		{
+			response.setConnectionInfo(call.mInfo);
+			response.onSend();
+		}
+
+		mActiveCount.incrementAndGet();
+
+		if (parsed == null)
+		{
+			finish(call, new MalformedURLException(url));
+			return call;
+		}
+
+		HeaderSet merged = AsyncHttpClient.getGlobalHeaderSet().merge(headers);
+		String follow = merged.get("FollowRedirect");
+
+		call.mFollowRedirect = AsyncHttpClient.followRedirect;
+		if (follow != null)
+		{
+			call.mFollowRedirect = Boolean.parseBoolean(follow);
+			merged = merged.without("FollowRedirect");
+		}
+
+		call.mHeaders = merged;
+		call.mBody = postData == null ? null : (postData instanceof byte[] ? (byte[])postData : postData.toString().getBytes());
+		call.mQueuedTime = System.currentTimeMillis();
+
+		start(call, parsed);
+
+		return call;
+	}
+
+	/**
+	 * Stops the event loops, failing every request in flight
+	 */
+	public void shutdown()
+	{
+		for (Loop loop : mLoops)
+		{
+			loop.shutdown();
+		}
+
+		mResolver.shutdown();
+
+		// bodies already received are still decoded and delivered
+		mDecoder.shutdown();
+	}
+
+	private AsyncHttpClient fallback(RequestMode mode, String url, Object postData, HttpParams headers, AsyncHttpResponse response)
+	{
+		AsyncHttpClient client = new AsyncHttpClient();
+
+		switch (mode)
+		{
+			case POST:
+				client.post(url, postData, headers, response);
+				break;
+
+			case PUT:
+				client.put(url, postData, headers, response);
+				break;
+
+			case DELETE:
+				client.delete(url, (HttpParams)null, headers, response);
+				break;
+
+			case DOWNLOAD:
+				client.download(url, null, headers, response);
+				break;
+
+			case STREAM:
+				client.stream(url, null, headers, response);
+				break;
+
+			default:
+				client.get(url, null, headers, response);
+				break;
+		}
+
+		return client;
+	}
+
+	/**
+	 * Looks up the host of a call and hands it to the loop for the host
+	 */
+	private void start(final Call call, URL url)
+	{
+		call.mUrl = url;
+		call.mHostKey = ConnectionPool.getHostKey(url);
+		call.mLoop = mLoops[(call.mHostKey.hashCode() & 0x7fffffff) % mLoops.length];
+		call.mRequest = buildRequest(call);
+
+		final String host = url.getHost();
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		CachedAddress cached = mAddresses.get(host);
+
+		if (cached != null && System.currentTimeMillis() - cached.time < ADDRESS_CACHE_DURATION)
+		{
+			call.mAddress = new InetSocketAddress(cached.address, port);
+			call.mLoop.enqueue(call);
+			return;
+		}
+
+		try
+		{
+			mResolver.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						long start = System.currentTimeMillis();
+						InetAddress address = InetAddress.getByName(host);
+						call.mInfo.connectionDnsTime = System.currentTimeMillis() - start;
+
+						mAddresses.put(host, new CachedAddress(address, System.currentTimeMillis()));
+						call.mAddress = new InetSocketAddress(address, port);
+						call.mLoop.enqueue(call);
+					}
+					catch (IOException e)
+					{
+						finish(call, e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			finish(call, new IOException("The engine has been shut down"));
+		}
+	}
+
+	private byte[] buildRequest(Call call)
+	{
+		URL url = call.mUrl;
+		String path = url.getPath().length() == 0 ? "/" : url.getPath();
+		if (url.getQuery() != null)
+		{
+			path += "?" + url.getQuery();
+		}
+
+		StringBuilder request = new StringBuilder(256);
+		request.append(call.mMethod).append(' ').append(path).append(" HTTP/1.1\r\n");
+
+		if (!call.mHeaders.contains("Host"))
+		{
+			request.append("Host: ").append(url.getHost());
+			if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+			{
+				request.append(':').append(url.getPort());
+			}
+
+			request.append("\r\n");
+		}
+
+		for (int index = 0; index < call.mHeaders.size(); index++)
+		{
+			String name = call.mHeaders.getName(index);
+			if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")) continue;
+
+			request.append(name).append(": ").append(call.mHeaders.getValue(index)).append("\r\n");
+		}
+
+		if (AsyncHttpClient.acceptCompression && !call.mHeaders.contains("Accept-Encoding"))
+		{
+			request.append("Accept-Encoding: gzip, deflate\r\n");
+		}
+
+		if (AsyncHttpClient.getConnectionPool().isLegacyMode())
+		{
+			request.append("Connection: close\r\n");
+		}
+
+		if (call.mBody != null)
+		{
+			request.append("Content-Length: ").append(call.mBody.length).append("\r\n");
+		}
+		else if (call.mMethod.equals("POST") || call.mMethod.equals("PUT"))
+		{
+			request.append("Content-Length: 0\r\n");
+		}
+
+		request.append("\r\n");
+
+		byte[] header = request.toString().getBytes();
+		if (call.mBody == null || call.mBody.length == 0)
+		{
+			return header;
+		}
+
+		byte[] bytes = new byte[header.length + call.mBody.length];
+		System.arraycopy(header, 0, bytes, 0, header.length);
+		System.arraycopy(call.mBody, 0, bytes, header.length, call.mBody.length);
+
+		return bytes;
+	}
+
+	/**
+	 * Finishes a call and posts its callbacks. Can be called from any thread, does nothing if the call has already
+	 * finished or was cancelled. A received body is decoded on the worker pool rather than the calling thread, which
+	 * is usually a loop
+	 */
+	private void finish(final Call call, final Exception error)
+	{
+		if (!call.mDone.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		mActiveCount.decrementAndGet();
+
+		final long now = System.currentTimeMillis();
+
+		if (error == null)
+		{
+			try
+			{
+				mDecoder.execute(new Runnable()
+				{
+					public void run()
+					{
+						deliver(call, null, now);
+					}
+				});
+
+				return;
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the engine was shut down, decode on this thread instead
+			}
+		}
+
+		deliver(call, error, now);
+	}
+
+	/**
+	 * Decodes the body of a finished call, records its metrics and posts its callbacks
+	 * @param call The call
+	 * @param error The error the call failed with, or null if it received a response
+	 * @param now The time the call finished
+	 */
+	private void deliver(final Call call, Exception error, long now)
+	{
+		final ConnectionInfo info = call.mInfo;
+		Object result = null;
+
+		if (error == null)
+		{
+			try
+			{
+				byte[] body = decode(call);
+				info.connectionUncompressedReceivedBytes = body.length;
+
+				if (call.mMode == RequestMode.DOWNLOAD)
+				{
+					result = body;
+				}
+				else
+				{
+					result = ResponseDecoder.readString(new ByteArrayInputStream(body), body.length, call.mContentType);
+					call.mMessage = (String)result;
+				}
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+
+		if (error != null)
+		{
+			result = null;
+			call.mCode = error instanceof SocketTimeoutException ? AsyncHttpClient.RESPONSE_CODE_TIMEOUT : 0;
+			call.mMessage = error.getMessage() == null ? "" : error.getMessage();
+		}
+
+		info.connectionResponseCode = call.mCode;
+		info.connectionResponseMessage = call.mMessage;
+		info.connectionAttempts = 1;
+		info.connectionSentBytes = call.mSentBytes;
+		info.connectionUncompressedSentBytes = call.mSentBytes;
+		info.connectionReceivedBytes = call.mReceivedBytes;
+		info.connectionTotalTime = now - call.mQueuedTime;
+		if (call.mFirstByteTime > 0)
+		{
+			info.connectionTransferTime = now - call.mFirstByteTime;
+		}
+
+		HttpMetrics metrics = AsyncHttpClient.getHttpMetrics();
+		if (metrics != null)
+		{
+			metrics.record(info);
+		}
+
+		HttpMetricsListener listener = AsyncHttpClient.getMetricsListener();
+		if (listener != null)
+		{
+			listener.onRequestFinished(info);
+		}
+
+		if (call.mResponse == null)
+		{
+			return;
+		}
+
+		final Object deliver = result;
+		mCallbackExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				if (call.mCancelled)
+				{
+					return;
+				}
+
+				AsyncHttpResponse response = call.mResponse;
+				info.connectionResponseTime = System.currentTimeMillis();
+				response.beforeFinish();
+
+				if ((info.connectionResponseCode / 100) == 2)
+				{
+					if (call.mMode == RequestMode.DOWNLOAD)
+					{
+						response.onSuccess((byte[])deliver);
+					}
+					else
+					{
+						response.onSuccess(deliver);
+					}
+				}
+				else
+				{
+					response.onFailure();
+
+					if (deliver != null)
+					{
+						response.onFailure(deliver);
+					}
+
+					response.onFailure(info.connectionResponseCode, info.connectionResponseMessage);
+				}
+
+				response.onFinish();
+			}
+		});
+	}
+
+	/**
+	 * Passes the download progress of a call to its response on the callback executor. Progress made whilst an
+	 * update is waiting to run is merged into that update, so a fast download does not flood the callback thread
+	 * @param call The call
+	 * @param processed The amount of body bytes received
+	 * @param total The length of the body, -1 if unknown
+	 */
+	private void postProgress(final Call call, int processed, int total)
+	{
+		call.mProgress = processed;
+		call.mProgressTotal = total;
+
+		if (!call.mProgressPosted.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		mCallbackExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				call.mProgressPosted.set(false);
+
+				if (!call.mCancelled)
+				{
+					call.mResponse.onBytesProcessed(call.mProgress, call.mProgressTotal);
+				}
+			}
+		});
+	}
+
+	private byte[] decode(Call call) throws IOException
+	{
+		byte[] body = call.mResponseBody == null ? new byte[0] : call.mResponseBody.toByteArray();
+		String encoding = call.mContentEncoding;
+
+		if (body.length == 0 || encoding == null || encoding.equalsIgnoreCase("identity"))
+		{
+			return body;
+		}
+
+		InputStream in;
+		if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+		{
+			in = new GZIPInputStream(new ByteArrayInputStream(body));
+		}
+		else if (encoding.equalsIgnoreCase("deflate"))
+		{
+			int first = body[0] & 0xff;
+			boolean zlib = body.length > 1 && (first & 0x0f) == 8 && ((first << 8) | (body[1] & 0xff)) % 31 == 0;
+			in = new InflaterInputStream(new ByteArrayInputStream(body), new Inflater(!zlib));
+		}
+		else
+		{
+			return body;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 3);
+		byte[] buffer = new byte[8192];
+		int len;
+		while ((len = in.read(buffer)) > -1)
+		{
+			out.write(buffer, 0, len);
+		}
+
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @brief A request sent through the engine
+	 */
+	public static class Call
+	{
+		private final NioHttpEngine mEngine;
+		private final RequestMode mMode;
+		private final AsyncHttpResponse mResponse;
+		private final ConnectionInfo mInfo = new ConnectionInfo();
+		private final AtomicBoolean mDone = new AtomicBoolean(false);
+		private volatile boolean mCancelled = false;
+		private volatile AsyncHttpClient mClient;
+		private String mMethod;
+		private HeaderSet mHeaders;
+		private boolean mFollowRedirect;
+		private byte[] mBody;
+		private URL mUrl;
+		private String mHostKey;
+		private volatile Loop mLoop;
+		private volatile InetSocketAddress mAddress;
+		private byte[] mRequest;
+		private Connection mConnection;
+		private int mRedirects = 0;
+		private boolean mRetried = false;
+		private boolean mReusedConnection = false;
+
+		private long mQueuedTime;
+		private long mStartTime;
+		private long mFirstByteTime;
+		private long mSentBytes;
+		private long mReceivedBytes;
+
+		private int mState = STATE_HEADERS;
+		private int mCode = 0;
+		private String mMessage = "";
+		private boolean mKeepAlive = false;
+		private long mRemaining = 0;
+		private int mContentLength = -1;
+		private String mContentType;
+		private String mContentEncoding;
+		private String mLocation;
+		private ByteArrayOutputStream mResponseBody;
+		private volatile int mProgress;
+		private volatile int mProgressTotal;
+		private final AtomicBoolean mProgressPosted = new AtomicBoolean(false);
+
+		private Call(NioHttpEngine engine, RequestMode mode, AsyncHttpResponse response)
+		{
+			mEngine = engine;
+			mMode = mode;
+			mResponse = response;
+			mMethod = mode == RequestMode.DOWNLOAD ? "GET" : mode.getString();
+		}
+
+		/**
+		 * Cancels the request. No more callbacks are made for it
+		 */
+		public void cancel()
+		{
+			mCancelled = true;
+
+			AsyncHttpClient client = mClient;
+			if (client != null)
+			{
+				client.cancel();
+				return;
+			}
+
+			if (mDone.compareAndSet(false, true))
+			{
+				mEngine.mActiveCount.decrementAndGet();
+
+				Loop loop = mLoop;
+				if (loop != null)
+				{
+					loop.cancel(this);
+				}
+			}
+		}
+
+		/**
+		 * Checks if the request was cancelled
+		 * @return True if {@link cancel} was called
+		 */
+		public boolean isCancelled()
+		{
+			return mCancelled;
+		}
+
+		/**
+		 * Gets the connection info of the request, which is filled in when it finishes. For requests handed to
+		 * {@link AsyncHttpClient} this is the info the client fills in, if the request has a response
+		 * @return The connection info
+		 */
+		public ConnectionInfo getConnectionInfo()
+		{
+			if (mClient != null && mResponse != null)
+			{
+				return mResponse.getConnectionInfo();
+			}
+
+			return mInfo;
+		}
+
+		private void resetResponse()
+		{
+			mState = STATE_HEADERS;
+			mCode = 0;
+			mMessage = "";
+			mKeepAlive = false;
+			mRemaining = 0;
+			mContentLength = -1;
+			mContentType = null;
+			mContentEncoding = null;
+			mLocation = null;
+			mResponseBody = null;
+			mFirstByteTime = 0;
+		}
+	}
+
+	/**
+	 * @brief A socket to a host and the call it is serving
+	 */
+	private static class Connection
+	{
+		public final String hostKey;
+		public SocketChannel channel;
+		public SelectionKey key;
+		public ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		public ByteBuffer out;
+		public Call call;
+		public boolean connected;
+		public long lastActivity;
+
+		public Connection(String hostKey)
+		{
+			this.hostKey = hostKey;
+		}
+	}
+
+	/**
+	 * @brief The idle connections and waiting calls of a host
+	 */
+	private static class Host
+	{
+		public final LinkedList<Connection> idle = new LinkedList<Connection>();
+		public final LinkedList<Call> pending = new LinkedList<Call>();
+		public int open;
+	}
+
+	/**
+	 * @brief A looked up address and when it was looked up
+	 */
+	private static class CachedAddress
+	{
+		public final InetAddress address;
+		public final long time;
+
+		public CachedAddress(InetAddress address, long time)
+		{
+			this.address = address;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * @brief Runs callbacks on the main thread
+	 */
+	private static class MainThreadExecutor implements Executor
+	{
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		public void execute(Runnable command)
+		{
+			mHandler.post(command);
+		}
+	}
+
+	/**
+	 * @brief An event loop thread with its own selector. Every field is only touched from the loop's own thread
+	 */
+	private class Loop implements Runnable
+	{
+		private final Selector mSelector;
+		private final Thread mThread;
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+		private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+		private final HashSet<Connection> mConnections = new HashSet<Connection>();
+		private volatile boolean mRunning = true;
+		private long mLastSweep = 0;
+
+		public Loop(String name)
+		{
+			try
+			{
+				mSelector = Selector.open();
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Could not open selector", e);
+			}
+
+			mThread = new Thread(this, name);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+
+		public void enqueue(final Call call)
+		{
+			post(new Runnable()
+			{
+				public void run()
+				{
+					if (call.mDone.get())
+					{
+						return;
+					}
+
+					Host host = getHost(call.mHostKey);
+					host.pending.add(call);
+					dispatch(host);
+				}
+			});
+		}
+
+		public void cancel(final Call call)
+		{
+			post(new Runnable()
+			{
+				public void run()
+				{
+					Connection conn = call.mConnection;
+					if (conn != null && conn.call == call)
+					{
+						conn.call = null;
+						close(conn);
+						dispatch(getHost(conn.hostKey));
+					}
+					else if (call.mHostKey != null)
+					{
+						getHost(call.mHostKey).pending.remove(call);
+					}
+				}
+			});
+		}
+
+		public void shutdown()
+		{
+			mRunning = false;
+			mSelector.wakeup();
+		}
+
+		private void post(Runnable task)
+		{
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (mRunning)
+				{
+					mSelector.select(mConnections.isEmpty() ? 0 : SWEEP_INTERVAL);
+
+					Runnable task;
+					while ((task = mTasks.poll()) != null)
+					{
+						task.run();
+					}
+
+					Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+					while (keys.hasNext())
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						Connection conn = (Connection)key.attachment();
+
+						try
+						{
+							if (!key.isValid()) continue;
+
+							if (key.isConnectable())
+							{
+								onConnectable(conn);
+							}
+							else
+							{
+								if (key.isWritable())
+								{
+									onWritable(conn);
+								}
+
+								if (key.isValid() && key.isReadable())
+								{
+									onReadable(conn);
+								}
+							}
+						}
+						catch (IOException e)
+						{
+							fail(conn, e);
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if (now - mLastSweep >= SWEEP_INTERVAL)
+					{
+						mLastSweep = now;
+						sweep(now);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				Debug.out(e);
+			}
+			finally
+			{
+				IOException error = new IOException("Engine shut down");
+
+				for (Connection conn : new HashSet<Connection>(mConnections))
+				{
+					Call call = conn.call;
+					close(conn);
+
+					if (call != null) finish(call, error);
+				}
+
+				for (Host host : mHosts.values())
+				{
+					for (Call call : host.pending)
+					{
+						finish(call, error);
+					}
+				}
+
+				mHosts.clear();
+
+				try
+				{
+					mSelector.close();
+				}
+				catch (IOException e)
+				{
+					// already closing
+				}
+			}
+		}
+
+		private Host getHost(String hostKey)
+		{
+			Host host = mHosts.get(hostKey);
+			if (host == null)
+			{
+				host = new Host();
+				mHosts.put(hostKey, host);
+			}
+
+			return host;
+		}
+
+		/**
+		 * Starts as many waiting calls of a host as there are idle connections or room for new ones
+		 */
+		private void dispatch(Host host)
+		{
+			while (!host.pending.isEmpty())
+			{
+				Connection conn = host.idle.poll();
+				if (conn != null)
+				{
+					Call call = host.pending.poll();
+					call.mReusedConnection = true;
+					call.mInfo.connectionReused = true;
+					send(conn, call);
+					continue;
+				}
+
+				if (host.open >= mMaxConnectionsPerHost)
+				{
+					return;
+				}
+
+				Call call = host.pending.poll();
+				try
+				{
+					open(host, call);
+				}
+				catch (IOException e)
+				{
+					finish(call, e);
+				}
+			}
+		}
+
+		private void open(Host host, Call call) throws IOException
+		{
+			SocketChannel channel = SocketChannel.open();
+			Connection conn = new Connection(call.mHostKey);
+
+			try
+			{
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				conn.channel = channel;
+				conn.call = call;
+				conn.lastActivity = System.currentTimeMillis();
+				call.mConnection = conn;
+				call.mStartTime = conn.lastActivity;
+				call.mReusedConnection = false;
+				call.mInfo.connectionReused = false;
+				call.mInfo.connectionQueueTime = call.mStartTime - call.mQueuedTime;
+
+				if (channel.connect(call.mAddress))
+				{
+					conn.key = channel.register(mSelector, 0, conn);
+					onConnected(conn);
+				}
+				else
+				{
+					conn.key = channel.register(mSelector, SelectionKey.OP_CONNECT, conn);
+				}
+			}
+			catch (IOException e)
+			{
+				channel.close();
+				throw e;
+			}
+
+			host.open++;
+			mConnections.add(conn);
+		}
+
+		private void onConnectable(Connection conn) throws IOException
+		{
+			if (conn.channel.finishConnect())
+			{
+				onConnected(conn);
+			}
+		}
+
+		private void onConnected(Connection conn)
+		{
+			conn.connected = true;
+
+			Call call = conn.call;
+			if (call != null)
+			{
+				call.mInfo.connectionConnectTime = System.currentTimeMillis() - call.mStartTime;
+				send(conn, call);
+			}
+		}
+
+		private void send(Connection conn, Call call)
+		{
+			long now = System.currentTimeMillis();
+
+			conn.call = call;
+			conn.out = ByteBuffer.wrap(call.mRequest);
+			conn.lastActivity = now;
+			call.mConnection = conn;
+			call.resetResponse();
+
+			if (call.mReusedConnection)
+			{
+				call.mStartTime = now;
+				call.mInfo.connectionQueueTime = now - call.mQueuedTime;
+				call.mInfo.connectionConnectTime = -1;
+			}
+
+			conn.key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		private void onWritable(Connection conn) throws IOException
+		{
+			Call call = conn.call;
+			if (call == null || conn.out == null)
+			{
+				conn.key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+
+			int written = conn.channel.write(conn.out);
+			call.mSentBytes += written;
+			conn.lastActivity = System.currentTimeMillis();
+
+			if (!conn.out.hasRemaining())
+			{
+				conn.out = null;
+				call.mInfo.connectionSendTime = conn.lastActivity - call.mStartTime - Math.max(0, call.mInfo.connectionConnectTime);
+				conn.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void onReadable(Connection conn) throws IOException
+		{
+			if (conn.in.remaining() == 0)
+			{
+				if (conn.in.capacity() >= MAX_HEADER_SIZE)
+				{
+					throw new IOException("Response headers too large");
+				}
+
+				ByteBuffer larger = ByteBuffer.allocate(conn.in.capacity() * 2);
+				conn.in.flip();
+				larger.put(conn.in);
+				conn.in = larger;
+			}
+
+			int read = conn.channel.read(conn.in);
+			Call call = conn.call;
+
+			if (read == -1)
+			{
+				if (call != null && call.mState == STATE_UNTIL_CLOSE)
+				{
+					complete(conn);
+				}
+				else if (call != null)
+				{
+					fail(conn, new IOException("Connection closed by the server"));
+				}
+				else
+				{
+					// an idle connection was closed by the server
+					close(conn);
+				}
+
+				return;
+			}
+
+			if (call == null)
+			{
+				// data on an idle connection, it can't be used again
+				close(conn);
+				return;
+			}
+
+			conn.lastActivity = System.currentTimeMillis();
+			call.mReceivedBytes += read;
+
+			if (call.mFirstByteTime == 0 && read > 0)
+			{
+				call.mFirstByteTime = conn.lastActivity;
+				call.mInfo.connectionFirstByteTime = conn.lastActivity - call.mStartTime - Math.max(0, call.mInfo.connectionConnectTime) - Math.max(0, call.mInfo.connectionSendTime);
+			}
+
+			while (conn.call == call && parse(conn, call))
+			{
+				// parse everything that has arrived
+			}
+		}
+
+		/**
+		 * Moves the response parser on with the data that has arrived
+		 * @return True if the parser moved on and can be called again
+		 */
+		private boolean parse(Connection conn, Call call) throws IOException
+		{
+			byte[] data = conn.in.array();
+			int length = conn.in.position();
+
+			switch (call.mState)
+			{
+				case STATE_HEADERS:
+				{
+					int end = indexOf(data, length, "\r\n\r\n", 0);
+					if (end < 0) return false;
+
+					parseHeaders(call, new String(data, 0, end, "ISO-8859-1"));
+					consume(conn.in, end + 4);
+
+					if (call.mState == STATE_DONE)
+					{
+						complete(conn);
+						return false;
+					}
+
+					return true;
+				}
+
+				case STATE_BODY:
+				case STATE_CHUNK_DATA:
+				case STATE_UNTIL_CLOSE:
+				{
+					if (length == 0) return false;
+
+					int amount = call.mState == STATE_UNTIL_CLOSE ? length : (int)Math.min(length, call.mRemaining);
+					call.mResponseBody.write(data, 0, amount);
+					call.mRemaining -= amount;
+					consume(conn.in, amount);
+
+					if (call.mMode == RequestMode.DOWNLOAD && call.mResponse != null)
+					{
+						postProgress(call, call.mResponseBody.size(), call.mContentEncoding == null ? call.mContentLength : -1);
+					}
+
+					if (call.mState == STATE_UNTIL_CLOSE)
+					{
+						return false;
+					}
+
+					if (call.mRemaining == 0)
+					{
+						if (call.mState == STATE_BODY)
+						{
+							call.mState = STATE_DONE;
+							complete(conn);
+							return false;
+						}
+
+						call.mState = STATE_CHUNK_END;
+					}
+
+					return true;
+				}
+
+				case STATE_CHUNK_SIZE:
+				{
+					int end = indexOf(data, length, "\r\n", 0);
+					if (end < 0) return false;
+
+					String line = new String(data, 0, end, "ISO-8859-1");
+					int extension = line.indexOf(';');
+					if (extension >= 0) line = line.substring(0, extension);
+
+					try
+					{
+						call.mRemaining = Long.parseLong(line.trim(), 16);
+					}
+					catch (NumberFormatException e)
+					{
+						throw new IOException("Invalid chunk size " + line);
+					}
+
+					consume(conn.in, end + 2);
+					call.mState = call.mRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+					return true;
+				}
+
+				case STATE_CHUNK_END:
+				{
+					if (length < 2) return false;
+
+					consume(conn.in, 2);
+					call.mState = STATE_CHUNK_SIZE;
+					return true;
+				}
+
+				case STATE_TRAILERS:
+				{
+					int end = indexOf(data, length, "\r\n", 0);
+					if (end < 0) return false;
+
+					consume(conn.in, end + 2);
+
+					if (end == 0)
+					{
+						call.mState = STATE_DONE;
+						complete(conn);
+						return false;
+					}
+
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private void parseHeaders(Call call, String head) throws IOException
+		{
+			String[] lines = head.split("\r\n");
+			String[] status = lines[0].split(" ", 3);
+
+			if (status.length < 2 || !status[0].startsWith("HTTP/"))
+			{
+				throw new IOException("Invalid status line " + lines[0]);
+			}
+
+			try
+			{
+				call.mCode = Integer.parseInt(status[1]);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid status line " + lines[0]);
+			}
+
+			if (call.mCode / 100 == 1)
+			{
+				// an interim response, the real one follows
+				return;
+			}
+
+			call.mMessage = status.length > 2 ? status[2] : "";
+			call.mKeepAlive = status[0].equals("HTTP/1.1");
+
+			long contentLength = -1;
+			boolean chunked = false;
+
+			for (int index = 1; index < lines.length; index++)
+			{
+				int colon = lines[index].indexOf(':');
+				if (colon <= 0) continue;
+
+				String name = lines[index].substring(0, colon).trim();
+				String value = lines[index].substring(colon + 1).trim();
+				String key = name.toLowerCase(Locale.US);
+
+				call.mInfo.connectionResponseHeaders.addParam(name, value);
+
+				if (key.equals("content-length"))
+				{
+					try
+					{
+						contentLength = Long.parseLong(value);
+					}
+					catch (NumberFormatException e)
+					{
+						throw new IOException("Invalid Content-Length " + value);
+					}
+				}
+				else if (key.equals("transfer-encoding"))
+				{
+					chunked = value.toLowerCase(Locale.US).contains("chunked");
+				}
+				else if (key.equals("connection"))
+				{
+					if (value.equalsIgnoreCase("close")) call.mKeepAlive = false;
+					else if (value.equalsIgnoreCase("keep-alive")) call.mKeepAlive = true;
+				}
+				else if (key.equals("content-type"))
+				{
+					call.mContentType = value;
+				}
+				else if (key.equals("content-encoding"))
+				{
+					call.mContentEncoding = value;
+				}
+				else if (key.equals("location"))
+				{
+					call.mLocation = value;
+				}
+			}
+
+			if (call.mMethod.equals("HEAD") || call.mCode == 204 || call.mCode == 304)
+			{
+				call.mState = STATE_DONE;
+			}
+			else if (chunked)
+			{
+				call.mResponseBody = new ByteArrayOutputStream();
+				call.mState = STATE_CHUNK_SIZE;
+			}
+			else if (contentLength >= 0)
+			{
+				call.mContentLength = (int)Math.min(contentLength, Integer.MAX_VALUE);
+				call.mResponseBody = new ByteArrayOutputStream(call.mContentLength);
+				call.mRemaining = contentLength;
+				call.mState = contentLength == 0 ? STATE_DONE : STATE_BODY;
+			}
+			else
+			{
+				call.mResponseBody = new ByteArrayOutputStream();
+				call.mKeepAlive = false;
+				call.mState = STATE_UNTIL_CLOSE;
+			}
+		}
+
+		/**
+		 * Finishes the call of a connection that has its whole response, and returns the connection to the idle list
+		 */
+		private void complete(Connection conn)
+		{
+			Call call = conn.call;
+			Host host = getHost(conn.hostKey);
+			conn.call = null;
+			call.mConnection = null;
+
+			if (call.mKeepAlive && conn.in.position() == 0 && mRunning)
+			{
+				conn.lastActivity = System.currentTimeMillis();
+				conn.key.interestOps(SelectionKey.OP_READ);
+				host.idle.addFirst(conn);
+			}
+			else
+			{
+				close(conn);
+			}
+
+			if (!redirect(call))
+			{
+				finish(call, null);
+			}
+
+			dispatch(host);
+		}
+
+		/**
+		 * Sends a call again to the url it was redirected to
+		 * @return True if the call was redirected
+		 */
+		private boolean redirect(Call call)
+		{
+			int code = call.mCode;
+			if (!call.mFollowRedirect || call.mLocation == null || call.mRedirects >= MAX_REDIRECTS || !(code == 301 || code == 302 || code == 303 || code == 307 || code == 308))
+			{
+				return false;
+			}
+
+			URL target;
+			try
+			{
+				target = new URL(call.mUrl, call.mLocation);
+			}
+			catch (MalformedURLException e)
+			{
+				return false;
+			}
+
+			// like HttpURLConnection, redirects to another protocol are not followed
+			if (!target.getProtocol().equalsIgnoreCase(call.mUrl.getProtocol()))
+			{
+				return false;
+			}
+
+			if (code == 303 || ((code == 301 || code == 302) && call.mMethod.equals("POST")))
+			{
+				call.mMethod = "GET";
+				call.mBody = null;
+			}
+
+			call.mRedirects++;
+			call.mRetried = false;
+			call.mInfo.connectionResponseHeaders = new HttpParams();
+			start(call, target);
+
+			return true;
+		}
+
+		/**
+		 * Fails the call of a connection and closes it. A call that got nothing back on a reused connection is sent
+		 * again once, as the server may have closed the idle connection just as it was reused
+		 */
+		private void fail(Connection conn, Exception error)
+		{
+			Call call = conn.call;
+			Host host = getHost(conn.hostKey);
+			conn.call = null;
+			close(conn);
+
+			if (call != null)
+			{
+				call.mConnection = null;
+
+				boolean stale = call.mReusedConnection && call.mFirstByteTime == 0 && !(error instanceof SocketTimeoutException);
+				if (stale && !call.mRetried && !call.mMethod.equals("POST"))
+				{
+					call.mRetried = true;
+					host.pending.addFirst(call);
+				}
+				else
+				{
+					finish(call, error);
+				}
+			}
+
+			dispatch(host);
+		}
+
+		private void close(Connection conn)
+		{
+			if (!mConnections.remove(conn))
+			{
+				return;
+			}
+
+			Host host = getHost(conn.hostKey);
+			host.open--;
+			host.idle.remove(conn);
+
+			if (conn.key != null)
+			{
+				conn.key.cancel();
+			}
+
+			try
+			{
+				conn.channel.close();
+			}
+			catch (IOException e)
+			{
+				// already closed
+			}
+		}
+
+		/**
+		 * Times out calls that have waited too long for the server, and closes connections that have been idle too long
+		 */
+		private void sweep(long now)
+		{
+			for (Connection conn : new HashSet<Connection>(mConnections))
+			{
+				long idle = now - conn.lastActivity;
+
+				if (conn.call != null)
+				{
+					int timeout = conn.connected ? mReadTimeout : mConnectTimeout;
+					if (timeout > 0 && idle >= timeout)
+					{
+						fail(conn, new SocketTimeoutException(conn.connected ? "Read timed out" : "Connect timed out"));
+					}
+				}
+				else if (idle >= mKeepAliveDuration)
+				{
+					close(conn);
+				}
+			}
+		}
+
+		private int indexOf(byte[] data, int length, String pattern, int from)
+		{
+			int size = pattern.length();
+
+			outer:
+			for (int index = from; index <= length - size; index++)
+			{
+				for (int offset = 0; offset < size; offset++)
+				{
+					if (data[index + offset] != pattern.charAt(offset)) continue outer;
+				}
+
+				return index;
+			}
+
+			return -1;
+		}
+
+		private void consume(ByteBuffer buffer, int amount)
+		{
+			buffer.flip();
+			buffer.position(amount);
+			buffer.compact();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @brief Limits the rate requests are sent to each host with a token bucket per host.
+ *
+ * Each host has a bucket holding up to its burst of tokens, refilled at its rate. Sending a request takes a token,
+ * so a host can be sent a burst of requests at once and then one request every 1 / rate seconds. Hosts without a
+ * limit of their own use the default limit, or are not limited if there is none. Each host has its own bucket, so
+ * a throttled host never holds back requests to other hosts.
+ *
+ * Used by {@link AsyncHttpQueuer.setRateLimiter}, which holds back requests to a throttled host until a token is
+ * available and records the time they were held back for.
+ *
+ * Example:
+ * @code
+ * RateLimiter limiter = new RateLimiter();
+ * limiter.setHostLimit(ConnectionPool.getHostKey(new URL("https://api.partner.com")), 5, 10);
+ * queuer.setRateLimiter(limiter);
+ * @endcode
+ */
+public class RateLimiter
+{
+	private final HashMap<String, Bucket> mBuckets = new HashMap<String, Bucket>();
+	private final HashMap<String, double[]> mHostLimits = new HashMap<String, double[]>();
+	private double mDefaultRate = 0;
+	private int mDefaultBurst = 0;
+
+	/**
+	 * Default constructor, only hosts given a limit with {@link setHostLimit} are limited
+	 */
+	public RateLimiter()
+	{
+	}
+
+	/**
+	 * Default constructor
+	 * @param rate The default amount of requests per second for each host
+	 * @param burst The default amount of requests that can be sent to a host at once after it has been idle
+	 */
+	public RateLimiter(double rate, int burst)
+	{
+		setDefaultLimit(rate, burst);
+	}
+
+	/**
+	 * Sets the limit for hosts without a limit of their own
+	 * @param rate The amount of requests per second, or 0 to not limit them
+	 * @param burst The amount of requests that can be sent at once after the host has been idle
+	 */
+	public synchronized void setDefaultLimit(double rate, int burst)
+	{
+		mDefaultRate = Math.max(0, rate);
+		mDefaultBurst = Math.max(1, burst);
+
+		for (Map.Entry<String, Bucket> entry : mBuckets.entrySet())
+		{
+			if (!mHostLimits.containsKey(entry.getKey()))
+			{
+				entry.getValue().setLimit(mDefaultRate, mDefaultBurst);
+			}
+		}
+	}
+
+	/**
+	 * Sets the limit for a host
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @param rate The amount of requests per second, or 0 to not limit the host
+	 * @param burst The amount of requests that can be sent at once after the host has been idle
+	 */
+	public synchronized void setHostLimit(String hostKey, double rate, int burst)
+	{
+		rate = Math.max(0, rate);
+		burst = Math.max(1, burst);
+
+		mHostLimits.put(hostKey, new double[]{rate, burst});
+		getBucket(hostKey).setLimit(rate, burst);
+	}
+
+	/**
+	 * Removes the limit of a host, so it uses the default limit
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 */
+	public synchronized void removeHostLimit(String hostKey)
+	{
+		mHostLimits.remove(hostKey);
+		getBucket(hostKey).setLimit(mDefaultRate, mDefaultBurst);
+	}
+
+	/**
+	 * Takes a token for a request to a host if one is available. Never blocks
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return 0 if the request can be sent now, otherwise the time in MS until the next token is available
+	 */
+	public synchronized long tryAcquire(String hostKey)
+	{
+		return getBucket(hostKey).tryAcquire(System.nanoTime());
+	}
+
+	/**
+	 * Records the time a request was held back for before it got a token
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @param wait The time in MS
+	 */
+	public synchronized void recordThrottledWait(String hostKey, long wait)
+	{
+		Bucket bucket = getBucket(hostKey);
+		bucket.throttledCount++;
+		bucket.throttledTime += Math.max(0, wait);
+	}
+
+	/**
+	 * Gets the total time requests to a host have been held back for
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The time in MS
+	 */
+	public synchronized long getThrottledTime(String hostKey)
+	{
+		Bucket bucket = mBuckets.get(hostKey);
+		return bucket == null ? 0 : bucket.throttledTime;
+	}
+
+	/**
+	 * Gets the amount of requests to a host that have been held back
+	 * @param hostKey The host from {@link ConnectionPool.getHostKey}
+	 * @return The amount of requests
+	 */
+	public synchronized long getThrottledCount(String hostKey)
+	{
+		Bucket bucket = mBuckets.get(hostKey);
+		return bucket == null ? 0 : bucket.throttledCount;
+	}
+
+	/**
+	 * Gets the total time requests to each host have been held back for
+	 * @return A map of host to time in MS
+	 */
+	public synchronized Map<String, Long> getThrottledTimes()
+	{
+		HashMap<String, Long> times = new HashMap<String, Long>();
+
+		for (Map.Entry<String, Bucket> entry : mBuckets.entrySet())
+		{
+			times.put(entry.getKey(), entry.getValue().throttledTime);
+		}
+
+		return times;
+	}
+
+	private Bucket getBucket(String hostKey)
+	{
+		Bucket bucket = mBuckets.get(hostKey);
+		if (bucket == null)
+		{
+			double[] limit = mHostLimits.get(hostKey);
+
+			bucket = new Bucket();
+			bucket.setLimit(limit == null ? mDefaultRate : limit[0], limit == null ? mDefaultBurst : (int)limit[1]);
+			bucket.tokens = bucket.burst;
+			mBuckets.put(hostKey, bucket);
+		}
+
+		return bucket;
+	}
+
+	/**
+	 * @brief The tokens and throttling stats of a host
+	 */
+	private static class Bucket
+	{
+		public double rate;
+		public int burst;
+		public double tokens;
+		public long lastRefill = System.nanoTime();
+		public long throttledCount;
+		public long throttledTime;
+
+		public void setLimit(double rate, int burst)
+		{
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = Math.min(tokens, burst);
+		}
+
+		public long tryAcquire(long now)
+		{
+			if (rate <= 0)
+			{
+				return 0;
+			}
+
+			tokens = Math.min(burst, tokens + ((now - lastRefill) / 1000000000.0) * rate);
+			lastRefill = now;
+
+			if (tokens >= 1)
+			{
+				tokens -= 1;
+				return 0;
+			}
+
+			return Math.max(1, (long)Math.ceil(((1 - tokens) / rate) * 1000));
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * @brief Reads HTTP response bodies into Strings exactly as they were sent.
+ *
+ * The body is read as bytes into a buffer sized from the <code>Content-Length</code> header, up to 1MB so a bogus
+ * header can not exhaust the memory, and decoded once using the charset from the <code>Content-Type</code> header. When the length is unknown the body is read
+ * into a buffer that is kept per thread and reused by the next request on the same thread.
+ */
+public class ResponseDecoder
+{
+	/**
+	 * The charset used when the response does not specify one
+	 */
+	public static final String DEFAULT_CHARSET = "UTF-8";
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+	private static final int MAX_PRESIZED_BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>()
+	{
+		@Override protected byte[] initialValue()
+		{
+			return new byte[INITIAL_BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Reads the whole of a response body as a String
+	 * @param is The stream to read. The stream is not closed
+	 * @param contentLength The length of the body from the Content-Length header, -1 if unknown
+	 * @param contentType The Content-Type header of the response, can be null
+	 * @return The decoded body
+	 * @throws IOException
+	 */
+	public static String readString(InputStream is, int contentLength, String contentType) throws IOException
+	{
+		String charset = getCharset(contentType, DEFAULT_CHARSET);
+
+		if (contentLength == 0)
+		{
+			return "";
+		}
+
+		if (contentLength > 0)
+		{
+			// the header is not trusted beyond the cap, larger bodies grow the buffer as they arrive
+			byte[] body = new byte[Math.min(contentLength, MAX_PRESIZED_BUFFER_SIZE)];
+			int read = readFully(is, body, 0, body.length);
+
+			int next = read < body.length ? -1 : is.read();
+			if (next == -1)
+			{
+				return new String(body, 0, read, charset);
+			}
+
+			// the body is larger than the cap or the server sent more than it said, read the rest of the stream
+			return readRemaining(is, body, read, (byte)next, charset);
+		}
+
+		return readRemaining(is, null, 0, (byte)0, charset);
+	}
+
+	/**
+	 * Gets the charset from a Content-Type header
+	 * @param contentType The header value, for example <code>application/json; charset=utf-8</code>
+	 * @param defaultCharset The charset to use if none is set or the charset is not supported
+	 * @return The charset name
+	 */
+	public static String getCharset(String contentType, String defaultCharset)
+	{
+		if (contentType == null) return defaultCharset;
+
+		String[] parts = contentType.split(";");
+		for (int index = 1; index < parts.length; index++)
+		{
+			String part = parts[index].trim();
+
+			if (part.regionMatches(true, 0, "charset=", 0, 8))
+			{
+				String charset = part.substring(8).trim();
+
+				if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\""))
+				{
+					charset = charset.substring(1, charset.length() - 1);
+				}
+
+				try
+				{
+					if (Charset.isSupported(charset))
+					{
+						return charset;
+					}
+				}
+				catch (Exception e)
+				{
+					// illegal charset name
+				}
+			}
+		}
+
+		return defaultCharset;
+	}
+
+	/**
+	 * Reads the rest of a stream into the pooled buffer and decodes it
+	 * @param is The stream to read
+	 * @param prefix The bytes already read, can be null
+	 * @param prefixLength The amount of bytes in the prefix
+	 * @param extra A byte read past the end of the prefix, ignored if prefix is null
+	 * @param charset The charset to decode with
+	 * @return The decoded body
+	 * @throws IOException
+	 */
+	private static String readRemaining(InputStream is, byte[] prefix, int prefixLength, byte extra, String charset) throws IOException
+	{
+		byte[] buffer = sBuffer.get();
+		int count = 0;
+
+		if (prefix != null)
+		{
+			buffer = ensureCapacity(buffer, prefixLength + 1 + INITIAL_BUFFER_SIZE, 0);
+			System.arraycopy(prefix, 0, buffer, 0, prefixLength);
+			count = prefixLength;
+			buffer[count++] = extra;
+		}
+
+		int len;
+		while ((len = is.read(buffer, count, buffer.length - count)) != -1)
+		{
+			count += len;
+
+			if (count == buffer.length)
+			{
+				buffer = ensureCapacity(buffer, buffer.length * 2, count);
+			}
+		}
+
+		String result = new String(buffer, 0, count, charset);
+
+		if (buffer.length <= MAX_POOLED_BUFFER_SIZE)
+		{
+			sBuffer.set(buffer);
+		}
+
+		return result;
+	}
+
+	private static byte[] ensureCapacity(byte[] buffer, int capacity, int count)
+	{
+		if (buffer.length >= capacity) return buffer;
+
+		byte[] newBuffer = new byte[capacity];
+		System.arraycopy(buffer, 0, newBuffer, 0, count);
+
+		return newBuffer;
+	}
+
+	private static int readFully(InputStream is, byte[] buffer, int offset, int length) throws IOException
+	{
+		int total = 0;
+		while (total < length)
+		{
+			int len = is.read(buffer, offset + total, length - total);
+			if (len == -1) break;
+
+			total += len;
+		}
+
+		return total;
+	}
+}
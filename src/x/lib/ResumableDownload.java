@@ -0,0 +1,875 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import x.type.ConnectionInfo;
+import x.type.HeaderSet;
+import x.type.HttpParams;
+
+/**
+ * @brief Downloads a file to disk in a way that can be resumed after the connection drops.
+ *
+ * The data received so far is kept in a partial file in the partial download directory, with a small meta file
+ * recording the ETag, Last-Modified and length of the resource. The next attempt asks for the rest of the file
+ * with a <code>Range</code> header, guarded by <code>If-Range</code> so a changed resource is downloaded again
+ * from the start. Once finished the length is checked and the file is moved to its destination.
+ *
+ * Large files can be split into several ranges that are downloaded in parallel, each with its own partial file.
+ * Servers that do not support ranges fall back to a single download, as does a resumed download whose server sends
+ * the whole file instead of a range. The extra ranges are run in the bulk lane of the client's executor and wait in
+ * the connection pool's queue for their host like any other request, so they count against the per host limit. The
+ * thread calling {@link download} downloads the first range, then any range that has not started yet, so the
+ * download never waits on a host whose limit it fills itself. Progress is only reported on the calling thread, so
+ * the response is never called from several threads at once.
+ *
+ * This is used by {@link AsyncHttpClient.downloadResumable}.
+ */
+public class ResumableDownload
+{
+	private static final int BUFFER_SIZE = 8192;
+	private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+	private static final long PROGRESS_INTERVAL = 100;
+
+	private final String mUrl;
+	private final HeaderSet mHeaders;
+	private final File mDestination;
+	private final File mPartialDirectory;
+	private final int mSegments;
+	private final String mKey;
+	private final AtomicLong mReceived = new AtomicLong(0);
+	private final CopyOnWriteArrayList<HttpURLConnection> mConnections = new CopyOnWriteArrayList<HttpURLConnection>();
+	private volatile boolean mCancelled = false;
+	private volatile boolean mSegmentFailed = false;
+	private volatile Thread mReportingThread;
+	private long mReported = -1;
+	private int mConnectTimeout = 0;
+	private int mReadTimeout = 0;
+
+	/**
+	 * Default constructor
+	 * @param url The url to download
+	 * @param headers The headers to send, can be null
+	 * @param destination The file the download is moved to once complete
+	 * @param partialDirectory The directory the partial files are kept in
+	 * @param segments The amount of ranges to download in parallel, 1 for a single connection
+	 */
+	public ResumableDownload(String url, HttpParams headers, File destination, File partialDirectory, int segments)
+	{
+		mUrl = url;
+		mHeaders = AsyncHttpClient.getGlobalHeaderSet().merge(headers).without("FollowRedirect");
+		mDestination = destination;
+		mPartialDirectory = partialDirectory;
+		mSegments = Math.max(1, segments);
+		mKey = CacheManager.getHash(url);
+	}
+
+	/**
+	 * Sets the connect and read timeouts of the connections
+	 * @param connectTimeout The time in MS to wait for a connection, or 0 to wait forever
+	 * @param readTimeout The time in MS to wait for data, or 0 to wait forever
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout)
+	{
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+	}
+
+	/**
+	 * Stops the download and closes its connections. Can be called from any thread. The data received so far is
+	 * kept so it can be resumed
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+
+		for (HttpURLConnection conn : mConnections)
+		{
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * Deletes the partial files of the download
+	 */
+	public void discard()
+	{
+		new File(mPartialDirectory, mKey + ".meta").delete();
+		new File(mPartialDirectory, mKey + ".part").delete();
+
+		for (int index = 0; index < mSegments; index++)
+		{
+			getSegmentFile(index).delete();
+		}
+	}
+
+	/**
+	 * Downloads the file, resuming from the partial files if there are any
+	 * @param info The connection info to fill in
+	 * @param response The response to report progress to, can be null
+	 * @return The destination file, or null if the server responded with an error
+	 * @throws IOException If the connection dropped. The partial files are kept
+	 */
+	public File download(ConnectionInfo info, AsyncHttpResponse response) throws IOException
+	{
+		mReportingThread = Thread.currentThread();
+		mPartialDirectory.mkdirs();
+		Meta meta = Meta.load(new File(mPartialDirectory, mKey + ".meta"));
+
+		if (mSegments > 1)
+		{
+			File result = downloadSegments(meta, info, response);
+			if (result != null || info.connectionResponseCode / 100 != 2)
+			{
+				return result;
+			}
+
+			// the server can't do ranges, so start again as a single download
+			meta.clear();
+			mSegmentFailed = false;
+		}
+
+		return downloadSingle(meta, info, response);
+	}
+
+	private File downloadSingle(Meta meta, ConnectionInfo info, AsyncHttpResponse response) throws IOException
+	{
+		File part = new File(mPartialDirectory, mKey + ".part");
+		long existing = meta.segments == 1 && part.exists() ? part.length() : 0;
+
+		if (existing == 0)
+		{
+			part.delete();
+			meta.clear();
+		}
+
+		String hostKey = ConnectionPool.getHostKey(new URL(mUrl));
+		HttpURLConnection conn = openRange(existing, -1, meta);
+		ConnectionPool pool = acquire(hostKey);
+		boolean reusable = false;
+
+		try
+		{
+			int code = conn.getResponseCode();
+			info.connectionResponseCode = code;
+			info.connectionResponseMessage = conn.getResponseMessage();
+
+			if (code == 416 && existing > 0 && existing == meta.length)
+			{
+				// we already have all of it
+				info.connectionResponseCode = 200;
+				reusable = true;
+			}
+			else
+			{
+				if (code == HttpURLConnection.HTTP_PARTIAL && (getRangeStart(conn) != existing || !meta.matches(conn)))
+				{
+					throw new IOException("Server returned an unexpected range");
+				}
+				else if (code == HttpURLConnection.HTTP_OK)
+				{
+					existing = 0;
+					meta.clear();
+				}
+				else if (code != HttpURLConnection.HTTP_PARTIAL)
+				{
+					return null;
+				}
+
+				meta.update(conn, code == HttpURLConnection.HTTP_PARTIAL ? getRangeTotal(conn) : conn.getContentLength(), 1);
+				meta.save();
+
+				mReceived.set(existing);
+				InputStream is = conn.getInputStream();
+				write(is, part, existing, meta.length, response);
+				reusable = is.read() == -1;
+				is.close();
+
+				info.connectionResponseCode = 200;
+			}
+		}
+		catch (IOException e)
+		{
+			if (e.getMessage() != null && e.getMessage().startsWith("Server returned an unexpected range"))
+			{
+				discard();
+			}
+
+			throw e;
+		}
+		finally
+		{
+			release(pool, hostKey, conn, reusable);
+		}
+
+		if (mCancelled)
+		{
+			throw new IOException("Download cancelled");
+		}
+
+		if (meta.length >= 0 && part.length() < meta.length)
+		{
+			throw new IOException("Connection closed before the download finished");
+		}
+		else if (meta.length >= 0 && part.length() > meta.length)
+		{
+			discard();
+			throw new IOException("Downloaded length does not match");
+		}
+
+		moveToDestination(part);
+		new File(mPartialDirectory, mKey + ".meta").delete();
+
+		return mDestination;
+	}
+
+	private File downloadSegments(final Meta meta, ConnectionInfo info, final AsyncHttpResponse response) throws IOException
+	{
+		if (meta.segments != mSegments || meta.length <= 0)
+		{
+			meta.clear();
+
+			// probe the first byte to find the length and if ranges are supported
+			String hostKey = ConnectionPool.getHostKey(new URL(mUrl));
+			HttpURLConnection conn = openRange(0, 0, meta);
+			ConnectionPool pool = acquire(hostKey);
+
+			try
+			{
+				int code = conn.getResponseCode();
+				info.connectionResponseCode = code;
+				info.connectionResponseMessage = conn.getResponseMessage();
+
+				long total = code == HttpURLConnection.HTTP_PARTIAL ? getRangeTotal(conn) : -1;
+				if (total < MIN_SEGMENT_SIZE * 2)
+				{
+					return null;
+				}
+
+				meta.update(conn, total, mSegments);
+				meta.save();
+			}
+			finally
+			{
+				release(pool, hostKey, conn, false);
+			}
+
+			for (int index = 0; index < mSegments; index++)
+			{
+				getSegmentFile(index).delete();
+			}
+		}
+
+		long segmentSize = meta.length / mSegments;
+		Segment[] segments = new Segment[mSegments];
+		mSegmentFailed = false;
+
+		long existing = 0;
+		for (int index = 0; index < mSegments; index++)
+		{
+			existing += getSegmentFile(index).length();
+		}
+
+		mReceived.set(existing);
+
+		for (int index = 0; index < mSegments; index++)
+		{
+			long start = index * segmentSize;
+			long end = index == mSegments - 1 ? meta.length - 1 : start + segmentSize - 1;
+
+			segments[index] = new Segment(index, start, end, meta, response);
+		}
+
+		// the first segment is downloaded on this thread
+		for (int index = 1; index < mSegments; index++)
+		{
+			submit(segments[index]);
+		}
+
+		try
+		{
+			// run the segments that have not started yet, and report the progress of the others whilst waiting
+			for (Segment segment : segments)
+			{
+				segment.run();
+
+				while (!segment.done.await(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS))
+				{
+					reportProgress(meta.length, response);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// the partial files must not be written to once this returns
+			cancel();
+			awaitSegments(segments);
+
+			throw new IOException("Download interrupted");
+		}
+
+		for (Segment segment : segments)
+		{
+			if (segment.error instanceof RangeIgnoredException)
+			{
+				// the resource changed, so download it again from the start
+				discard();
+				meta.clear();
+				mReceived.set(0);
+
+				info.connectionResponseCode = HttpURLConnection.HTTP_OK;
+				return null;
+			}
+		}
+
+		for (Segment segment : segments)
+		{
+			IOException e = segment.error;
+			if (e != null)
+			{
+				if (e.getMessage() != null && e.getMessage().startsWith("Server returned an unexpected range"))
+				{
+					discard();
+				}
+
+				throw e;
+			}
+		}
+
+		if (mCancelled)
+		{
+			throw new IOException("Download cancelled");
+		}
+
+		// join the segments into the destination
+		File joined = new File(mPartialDirectory, mKey + ".part");
+		FileOutputStream fos = new FileOutputStream(joined);
+
+		try
+		{
+			for (int index = 0; index < mSegments; index++)
+			{
+				FileInputStream fis = new FileInputStream(getSegmentFile(index));
+
+				try
+				{
+					long size = fis.getChannel().size();
+					long position = 0;
+
+					while (position < size)
+					{
+						position += fis.getChannel().transferTo(position, size - position, fos.getChannel());
+					}
+				}
+				finally
+				{
+					fis.close();
+				}
+			}
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		if (joined.length() != meta.length)
+		{
+			discard();
+			throw new IOException("Downloaded length does not match");
+		}
+
+		moveToDestination(joined);
+		discard();
+
+		info.connectionResponseCode = 200;
+		return mDestination;
+	}
+
+	/**
+	 * Hands a segment to the bulk lane of the client's executor through the connection pool's queue for its host. A
+	 * segment the executor refuses is left for the thread calling {@link download} to run
+	 */
+	private void submit(Segment segment) throws IOException
+	{
+		Executor executor = AsyncHttpClient.getExecutor();
+		if (executor instanceof HttpExecutor)
+		{
+			executor = ((HttpExecutor)executor).getLane(HttpExecutor.Priority.BULK);
+		}
+
+		try
+		{
+			if (AsyncHttpClient.getTransport().isMultiplexed())
+			{
+				executor.execute(segment);
+			}
+			else
+			{
+				AsyncHttpClient.getConnectionPool().execute(ConnectionPool.getHostKey(new URL(mUrl)), segment, executor);
+			}
+		}
+		catch (RejectedExecutionException e)
+		{
+			Debug.out(e);
+		}
+	}
+
+	/**
+	 * Waits for the segments that have started to finish, and stops the others from starting. The thread's
+	 * interrupt is kept
+	 */
+	private void awaitSegments(Segment[] segments)
+	{
+		boolean interrupted = false;
+
+		for (Segment segment : segments)
+		{
+			segment.skip();
+
+			while (true)
+			{
+				try
+				{
+					segment.done.await();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void downloadSegment(int segment, long start, long end, Meta meta, AsyncHttpResponse response) throws IOException
+	{
+		File part = getSegmentFile(segment);
+		long existing = part.length();
+		long length = end - start + 1;
+
+		if (existing >= length || mCancelled || mSegmentFailed)
+		{
+			return;
+		}
+
+		String hostKey = ConnectionPool.getHostKey(new URL(mUrl));
+		HttpURLConnection conn = openRange(start + existing, end, meta);
+		ConnectionPool pool = acquire(hostKey);
+		boolean reusable = false;
+
+		try
+		{
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_OK)
+			{
+				throw new RangeIgnoredException();
+			}
+			else if (code != HttpURLConnection.HTTP_PARTIAL || getRangeStart(conn) != start + existing || !meta.matches(conn))
+			{
+				throw new IOException("Server returned an unexpected range");
+			}
+
+			InputStream is = conn.getInputStream();
+			write(is, part, existing, meta.length, response);
+			reusable = is.read() == -1;
+			is.close();
+		}
+		finally
+		{
+			release(pool, hostKey, conn, reusable);
+		}
+
+		if (part.length() > length)
+		{
+			part.delete();
+			throw new IOException("Segment length does not match");
+		}
+		else if (!mCancelled && !mSegmentFailed && part.length() < length)
+		{
+			throw new IOException("Connection closed before the download finished");
+		}
+	}
+
+	private void write(InputStream is, File part, long position, long total, AsyncHttpResponse response) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(part, position > 0);
+
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+
+			int len;
+			while (!mCancelled && !mSegmentFailed && (len = is.read(buffer)) != -1)
+			{
+				fos.write(buffer, 0, len);
+				mReceived.addAndGet(len);
+
+				if (Thread.currentThread() == mReportingThread)
+				{
+					reportProgress(total, response);
+				}
+			}
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	/**
+	 * Reports the amount received by all of the segments. Only called on the thread that called {@link download}
+	 */
+	private void reportProgress(long total, AsyncHttpResponse response)
+	{
+		long received = mReceived.get();
+
+		if (response != null && received != mReported)
+		{
+			mReported = received;
+			response.onBytesProcessed((int)Math.min(received, Integer.MAX_VALUE), total > Integer.MAX_VALUE ? -1 : (int)total);
+		}
+	}
+
+	private HttpURLConnection openRange(long start, long end, Meta meta) throws IOException
+	{
+		HttpTransport transport = AsyncHttpClient.getTransport();
+		HttpURLConnection conn = transport.openConnection(new URL(mUrl));
+		conn.setDoInput(true);
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(mConnectTimeout);
+		conn.setReadTimeout(mReadTimeout);
+		mConnections.add(conn);
+
+		if (!transport.isMultiplexed() && AsyncHttpClient.getConnectionPool().isLegacyMode())
+		{
+			conn.setRequestProperty("Connection", "close");
+		}
+
+		mHeaders.applyTo(conn);
+
+		// ranges are of the encoded body, so ask for it unencoded
+		conn.setRequestProperty("Accept-Encoding", "identity");
+
+		if (start > 0 || end >= 0)
+		{
+			conn.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+
+			String validator = meta.getValidator();
+			if (start > 0 && validator != null)
+			{
+				conn.setRequestProperty("If-Range", validator);
+			}
+		}
+
+		return conn;
+	}
+
+	private ConnectionPool acquire(String hostKey)
+	{
+		if (AsyncHttpClient.getTransport().isMultiplexed())
+		{
+			// the transport manages its own connections
+			return null;
+		}
+
+		ConnectionPool pool = AsyncHttpClient.getConnectionPool();
+		pool.acquire(hostKey);
+
+		return pool;
+	}
+
+	private void release(ConnectionPool pool, String hostKey, HttpURLConnection conn, boolean reusable)
+	{
+		mConnections.remove(conn);
+		reusable = reusable && (pool == null || !pool.isLegacyMode());
+
+		if (!reusable)
+		{
+			conn.disconnect();
+		}
+
+		if (pool != null)
+		{
+			pool.release(hostKey, reusable);
+		}
+	}
+
+	private void moveToDestination(File part) throws IOException
+	{
+		mDestination.delete();
+
+		if (!part.renameTo(mDestination))
+		{
+			// different file systems, copy instead
+			FileInputStream fis = new FileInputStream(part);
+			FileOutputStream fos = new FileOutputStream(mDestination);
+
+			try
+			{
+				long size = fis.getChannel().size();
+				long position = 0;
+
+				while (position < size)
+				{
+					position += fis.getChannel().transferTo(position, size - position, fos.getChannel());
+				}
+			}
+			finally
+			{
+				fis.close();
+				fos.close();
+			}
+
+			part.delete();
+		}
+	}
+
+	private File getSegmentFile(int segment)
+	{
+		return new File(mPartialDirectory, mKey + ".part." + segment);
+	}
+
+	/**
+	 * Gets the first byte of a 206 response from its Content-Range header
+	 */
+	private static long getRangeStart(HttpURLConnection conn)
+	{
+		String range = conn.getHeaderField("Content-Range");
+		if (range == null) return -1;
+
+		try
+		{
+			int start = range.indexOf(' ') + 1;
+			return Long.parseLong(range.substring(start, range.indexOf('-', start)).trim());
+		}
+		catch (Exception e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the total length of the resource from the Content-Range header of a 206 response
+	 */
+	private static long getRangeTotal(HttpURLConnection conn)
+	{
+		String range = conn.getHeaderField("Content-Range");
+		if (range == null || range.indexOf('/') < 0) return -1;
+
+		try
+		{
+			return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			// length is "*"
+			return -1;
+		}
+	}
+
+	/**
+	 * @brief A range of the file, run once by whichever thread gets to it first
+	 */
+	private class Segment implements HostQueue.Rejectable
+	{
+		public final CountDownLatch done = new CountDownLatch(1);
+		public volatile IOException error;
+		private final AtomicBoolean mClaimed = new AtomicBoolean(false);
+		private final int mIndex;
+		private final long mStart;
+		private final long mEnd;
+		private final Meta mMeta;
+		private final AsyncHttpResponse mResponse;
+
+		public Segment(int index, long start, long end, Meta meta, AsyncHttpResponse response)
+		{
+			mIndex = index;
+			mStart = start;
+			mEnd = end;
+			mMeta = meta;
+			mResponse = response;
+		}
+
+		public void run()
+		{
+			if (!mClaimed.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			try
+			{
+				downloadSegment(mIndex, mStart, mEnd, mMeta, mResponse);
+			}
+			catch (IOException e)
+			{
+				error = e;
+
+				// stop the other segments, the download fails or starts again either way
+				mSegmentFailed = true;
+				for (HttpURLConnection conn : mConnections)
+				{
+					conn.disconnect();
+				}
+			}
+			finally
+			{
+				done.countDown();
+			}
+		}
+
+		public void reject()
+		{
+			// left for the thread calling download to run
+		}
+
+		/**
+		 * Stops the segment from running if it has not started
+		 */
+		public void skip()
+		{
+			if (mClaimed.compareAndSet(false, true))
+			{
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * @brief Thrown when the server sends the whole file in reply to a range request
+	 */
+	private static class RangeIgnoredException extends IOException
+	{
+		public RangeIgnoredException()
+		{
+			super("Server ignored the range");
+		}
+	}
+
+	/**
+	 * @brief The details of the resource being downloaded, stored next to the partial files
+	 */
+	private static class Meta
+	{
+		public String etag;
+		public String lastModified;
+		public long length = -1;
+		public int segments = 0;
+		private File mFile;
+
+		public static Meta load(File file)
+		{
+			Meta meta = new Meta();
+			meta.mFile = file;
+
+			if (!file.exists()) return meta;
+
+			try
+			{
+				Properties properties = new Properties();
+				FileInputStream fis = new FileInputStream(file);
+
+				try
+				{
+					properties.load(fis);
+				}
+				finally
+				{
+					fis.close();
+				}
+
+				meta.etag = properties.getProperty("etag");
+				meta.lastModified = properties.getProperty("lastModified");
+				meta.length = Long.parseLong(properties.getProperty("length", "-1"));
+				meta.segments = Integer.parseInt(properties.getProperty("segments", "0"));
+			}
+			catch (Exception e)
+			{
+				meta.clear();
+			}
+
+			return meta;
+		}
+
+		public void save() throws IOException
+		{
+			Properties properties = new Properties();
+			if (etag != null) properties.setProperty("etag", etag);
+			if (lastModified != null) properties.setProperty("lastModified", lastModified);
+			properties.setProperty("length", String.valueOf(length));
+			properties.setProperty("segments", String.valueOf(segments));
+
+			FileOutputStream fos = new FileOutputStream(mFile);
+
+			try
+			{
+				properties.store(fos, null);
+			}
+			finally
+			{
+				fos.close();
+			}
+		}
+
+		public void clear()
+		{
+			etag = null;
+			lastModified = null;
+			length = -1;
+			segments = 0;
+		}
+
+		public void update(HttpURLConnection conn, long totalLength, int segmentCount)
+		{
+			etag = conn.getHeaderField("ETag");
+			lastModified = conn.getHeaderField("Last-Modified");
+			length = totalLength;
+			segments = segmentCount;
+		}
+
+		/**
+		 * Checks the ETag of a response against the stored one
+		 */
+		public boolean matches(HttpURLConnection conn)
+		{
+			String responseEtag = conn.getHeaderField("ETag");
+			return etag == null || responseEtag == null || etag.equals(responseEtag);
+		}
+
+		/**
+		 * Gets the value for If-Range. Weak ETags can't be used so Last-Modified is used instead
+		 */
+		public String getValidator()
+		{
+			if (etag != null && !etag.startsWith("W/"))
+			{
+				return etag;
+			}
+
+			return lastModified;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import x.lib.AsyncHttpClient.RequestMode;
+
+/**
+ * @brief Decides if and when a failed {@link AsyncHttpClient} request is sent again.
+ *
+ * The delay between attempts grows exponentially and is fully jittered, a random time between 0 and
+ * <code>baseDelay * 2^(attempt - 1)</code> capped at the max delay, where attempt is the amount of attempts made so
+ * far, so that clients failing at the same moment do not all retry at the same moment. A <code>Retry-After</code> header from the server is used instead when there is one.
+ *
+ * Only idempotent requests (GET, PUT, DELETE and DOWNLOAD) are retried unless
+ * {@link setRetryNonIdempotent} is set. By default, requests are retried on connection errors and the status codes
+ * 408, 429, 500, 502, 503 and 504.
+ *
+ * Example:
+ * @code
+ * RetryPolicy policy = new RetryPolicy(3);
+ * policy.setBaseDelay(500);
+ *
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.setRetryPolicy(policy);
+ * client.get("http://url.com/api.json", response);
+ * @endcode
+ */
+public class RetryPolicy
+{
+	/**
+	 * The status codes retried by default
+	 */
+	public static final int[] DEFAULT_RETRY_STATUS_CODES = {408, 429, 500, 502, 503, 504};
+
+	private static final Random sRandom = new Random();
+
+	private int mMaxAttempts;
+	private long mBaseDelay = 1000;
+	private long mMaxDelay = 30000;
+	private long mMaxRetryAfter = 60000;
+	private boolean mRetryNonIdempotent = false;
+	private int[] mRetryStatusCodes = DEFAULT_RETRY_STATUS_CODES;
+	private RetryCondition mRetryCondition;
+
+	/**
+	 * @brief Decides if a failed attempt should be retried, used in place of the status codes and connection errors
+	 */
+	public interface RetryCondition
+	{
+		/**
+		 * Called after an attempt failed
+		 * @param mode The request mode
+		 * @param responseCode The response code of the attempt, 0 if no response was received
+		 * @param error The error the attempt failed with, or null if the server responded
+		 * @return True to retry the request
+		 */
+		public boolean shouldRetry(RequestMode mode, int responseCode, Throwable error);
+	}
+
+	/**
+	 * Default constructor
+	 * @param maxAttempts The total amount of attempts, including the first
+	 */
+	public RetryPolicy(int maxAttempts)
+	{
+		mMaxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * Sets the total amount of attempts, including the first
+	 * @param maxAttempts The amount of attempts
+	 */
+	public void setMaxAttempts(int maxAttempts)
+	{
+		mMaxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * Gets the total amount of attempts, including the first
+	 * @return The amount of attempts
+	 */
+	public int getMaxAttempts()
+	{
+		return mMaxAttempts;
+	}
+
+	/**
+	 * Sets the delay the backoff grows from. Defaults to 1000
+	 * @param delay The delay in MS
+	 */
+	public void setBaseDelay(long delay)
+	{
+		mBaseDelay = Math.max(0, delay);
+	}
+
+	/**
+	 * Sets the largest delay between attempts. Defaults to 30000
+	 * @param delay The delay in MS
+	 */
+	public void setMaxDelay(long delay)
+	{
+		mMaxDelay = Math.max(0, delay);
+	}
+
+	/**
+	 * Sets the longest <code>Retry-After</code> that will be waited for. Longer waits fail the request instead.
+	 * Defaults to 60000
+	 * @param delay The delay in MS
+	 */
+	public void setMaxRetryAfter(long delay)
+	{
+		mMaxRetryAfter = Math.max(0, delay);
+	}
+
+	/**
+	 * Sets if POST and STREAM requests should be retried. A POST may be applied twice by the server, and a stream may
+	 * have passed part of the body to its handler before it failed
+	 * @param retry True to retry requests that are not idempotent
+	 */
+	public void setRetryNonIdempotent(boolean retry)
+	{
+		mRetryNonIdempotent = retry;
+	}
+
+	/**
+	 * Sets the status codes that are retried
+	 * @param codes The status codes
+	 */
+	public void setRetryStatusCodes(int... codes)
+	{
+		mRetryStatusCodes = codes == null ? new int[0] : codes;
+	}
+
+	/**
+	 * Sets the condition to decide which failed attempts are retried, in place of the status codes and connection errors
+	 * @param condition The condition, or null to use the status codes
+	 */
+	public void setRetryCondition(RetryCondition condition)
+	{
+		mRetryCondition = condition;
+	}
+
+	/**
+	 * Checks if a failed attempt should be retried
+	 * @param mode The request mode
+	 * @param attempt The amount of attempts made so far
+	 * @param responseCode The response code of the attempt, 0 if no response was received
+	 * @param error The error the attempt failed with, or null if the server responded
+	 * @return True to retry the request
+	 */
+	public boolean shouldRetry(RequestMode mode, int attempt, int responseCode, Throwable error)
+	{
+		if (attempt >= mMaxAttempts || (!isIdempotent(mode) && !mRetryNonIdempotent))
+		{
+			return false;
+		}
+
+		if (mRetryCondition != null)
+		{
+			return mRetryCondition.shouldRetry(mode, responseCode, error);
+		}
+
+		for (int code : mRetryStatusCodes)
+		{
+			if (code == responseCode)
+			{
+				return true;
+			}
+		}
+
+		// a 404 is reported as a FileNotFoundException and is not worth retrying
+		return (responseCode / 100) != 2 && error instanceof IOException && !(error instanceof FileNotFoundException);
+	}
+
+	/**
+	 * Checks if a request can be sent more than once without changing its outcome
+	 * @param mode The request mode
+	 * @return True for GET, PUT, DELETE and DOWNLOAD requests
+	 */
+	private static boolean isIdempotent(RequestMode mode)
+	{
+		return mode == RequestMode.GET || mode == RequestMode.PUT || mode == RequestMode.DELETE || mode == RequestMode.DOWNLOAD;
+	}
+
+	/**
+	 * Gets the time to wait before the next attempt
+	 * @param attempt The amount of attempts made so far
+	 * @param retryAfter The <code>Retry-After</code> header of the failed attempt, can be null
+	 * @return The delay in MS, or -1 if the server asked for a longer wait than {@link setMaxRetryAfter}
+	 */
+	public long getDelay(int attempt, String retryAfter)
+	{
+		long serverDelay = parseRetryAfter(retryAfter);
+		if (serverDelay >= 0)
+		{
+			return serverDelay > mMaxRetryAfter ? -1 : serverDelay;
+		}
+
+		long ceiling = mMaxDelay;
+		if (attempt - 1 < 62 && (mBaseDelay << (attempt - 1)) >> (attempt - 1) == mBaseDelay)
+		{
+			ceiling = Math.min(mMaxDelay, mBaseDelay << (attempt - 1));
+		}
+
+		synchronized (sRandom)
+		{
+			return (long)(sRandom.nextDouble() * (ceiling + 1));
+		}
+	}
+
+	/**
+	 * Parses a <code>Retry-After</code> header
+	 * @param retryAfter The header, either a delay in seconds or a HTTP date
+	 * @return The delay in MS, or -1 if the header is missing or invalid
+	 */
+	public static long parseRetryAfter(String retryAfter)
+	{
+		if (retryAfter == null) return -1;
+
+		retryAfter = retryAfter.trim();
+
+		try
+		{
+			return Math.max(0, Long.parseLong(retryAfter) * 1000);
+		}
+		catch (NumberFormatException e)
+		{
+			// not a delay, try a date
+		}
+
+		try
+		{
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			Date date = format.parse(retryAfter);
+
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+		catch (Exception e)
+		{
+			return -1;
+		}
+	}
+}
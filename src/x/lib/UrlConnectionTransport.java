@@ -0,0 +1,53 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * @brief The default {@link HttpTransport}, which uses the platform's <code>HttpURLConnection</code>.
+ *
+ * Requests are sent over HTTP/1.1 with the keep-alive pool configured by {@link ConnectionPool}.
+ */
+public class UrlConnectionTransport implements HttpTransport
+{
+	private final Proxy mProxy;
+
+	/**
+	 * Default constructor
+	 */
+	public UrlConnectionTransport()
+	{
+		this(null);
+	}
+
+	/**
+	 * Default constructor
+	 * @param proxy The proxy to connect through, or null to use the system's proxy settings
+	 */
+	public UrlConnectionTransport(Proxy proxy)
+	{
+		mProxy = proxy;
+	}
+
+	@Override public HttpURLConnection openConnection(URL url) throws IOException
+	{
+		return (HttpURLConnection)(mProxy == null ? url.openConnection() : url.openConnection(mProxy));
+	}
+
+	@Override public boolean isMultiplexed()
+	{
+		return false;
+	}
+
+	@Override public String getName()
+	{
+		return "HttpURLConnection";
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * @brief x lib is the library which includes the commonly used functions in 3 Sided Cube Android applications
+ *
+ * @author Callum Taylor
+ **/
+package x.lib;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @brief Runs each {@link AsyncHttpClient} request on its own virtual thread.
+ *
+ * On a JVM with virtual threads (Java 21 and later) a request blocked in <code>HttpURLConnection</code> only holds a
+ * small heap allocated stack instead of a platform thread, so tens of thousands of requests can be in flight at once.
+ * The runtime is checked through reflection, so the library still builds and runs on Android and older JVMs, where
+ * {@link create} returns the bounded {@link HttpExecutor} instead.
+ *
+ * The {@link ConnectionPool} still limits the connections to each host, so raise its per host limit to make use of
+ * the extra concurrency. Requests over a host limit wait in the pool's queue for that host before they are handed to
+ * the executor, so they do not hold a virtual thread. The library waits on <code>java.util.concurrent</code> locks
+ * rather than <code>synchronized</code> monitors wherever a request can block, such as {@link HttpStream} waiting for
+ * its subscriber or {@link HttpFuture#get}, so a waiting virtual thread does not pin its carrier thread.
+ *
+ * Example:
+ * @code
+ * if (AsyncHttpClient.setVirtualThreadMode(true))
+ * {
+ * 	AsyncHttpClient.setConnectionPool(new ConnectionPool(64, 60 * 1000, 256));
+ * }
+ * @endcode
+ */
+public class VirtualThreadExecutor implements Executor
+{
+	private static Boolean sSupported;
+
+	private final ExecutorService mExecutor;
+	private final AtomicInteger mActiveCount = new AtomicInteger(0);
+	private final AtomicInteger mPeakActiveCount = new AtomicInteger(0);
+	private final AtomicLong mCompletedCount = new AtomicLong(0);
+
+	/**
+	 * Default constructor
+	 * @throws UnsupportedOperationException If the runtime does not support virtual threads
+	 */
+	public VirtualThreadExecutor()
+	{
+		mExecutor = newVirtualThreadExecutor("XHttp-virtual-");
+		if (mExecutor == null)
+		{
+			throw new UnsupportedOperationException("Virtual threads are not supported by this runtime");
+		}
+	}
+
+	/**
+	 * Checks if the runtime supports virtual threads
+	 * @return True if a {@link VirtualThreadExecutor} can be created
+	 */
+	public static synchronized boolean isSupported()
+	{
+		if (sSupported == null)
+		{
+			ExecutorService executor = newVirtualThreadExecutor("XHttp-virtual-check-");
+			sSupported = executor != null;
+
+			if (executor != null)
+			{
+				executor.shutdown();
+			}
+		}
+
+		return sSupported;
+	}
+
+	/**
+	 * Creates a virtual thread executor if the runtime supports it
+	 * @return A new {@link VirtualThreadExecutor}, or the shared {@link HttpExecutor} if virtual threads are not supported
+	 */
+	public static Executor create()
+	{
+		return isSupported() ? new VirtualThreadExecutor() : HttpExecutor.getDefault();
+	}
+
+	public void execute(final Runnable command)
+	{
+		mExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				int active = mActiveCount.incrementAndGet();
+				int peak;
+				while (active > (peak = mPeakActiveCount.get()) && !mPeakActiveCount.compareAndSet(peak, active));
+
+				try
+				{
+					command.run();
+				}
+				finally
+				{
+					mActiveCount.decrementAndGet();
+					mCompletedCount.incrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the amount of requests currently running
+	 * @return The amount of running requests
+	 */
+	public int getActiveCount()
+	{
+		return mActiveCount.get();
+	}
+
+	/**
+	 * Gets the largest amount of requests that have been running at once
+	 * @return The peak amount of running requests
+	 */
+	public int getPeakActiveCount()
+	{
+		return mPeakActiveCount.get();
+	}
+
+	/**
+	 * Gets the amount of requests that have finished running
+	 * @return The amount of completed requests
+	 */
+	public long getCompletedCount()
+	{
+		return mCompletedCount.get();
+	}
+
+	/**
+	 * Stops the executor once the requests handed to it have finished. Requests handed to it afterwards are rejected
+	 */
+	public void shutdown()
+	{
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Creates an executor that starts a named virtual thread for each task, using
+	 * <code>Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory())</code>
+	 * @param prefix The prefix of the thread names
+	 * @return The executor, or null if the runtime does not support virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor(String prefix)
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+			Method create = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)create.invoke(null, factory);
+		}
+		catch (Exception e)
+		{
+			// not Java 21, or virtual threads are disabled
+			return null;
+		}
+	}
+}
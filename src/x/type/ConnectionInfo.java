@@ -46,9 +46,82 @@ public class ConnectionInfo
 	 * The connection method
 	 */
 	public String connectionMethod = "";
+	/**
+	 * The amount of body bytes sent to the server, after compression
+	 */
+	public long connectionSentBytes = 0;
+	/**
+	 * The amount of body bytes sent to the server, before compression
+	 */
+	public long connectionUncompressedSentBytes = 0;
+	/**
+	 * The amount of body bytes received from the server, before decompression
+	 */
+	public long connectionReceivedBytes = 0;
+	/**
+	 * The amount of body bytes received from the server, after decompression
+	 */
+	public long connectionUncompressedReceivedBytes = 0;
+	/**
+	 * If the response was served from the http cache
+	 */
+	public boolean connectionFromCache = false;
+	/**
+	 * The amount of attempts made, more than 1 if the request was retried
+	 */
+	public int connectionAttempts = 0;
+	/**
+	 * The time in MS each attempt took
+	 */
+	public ItemList<Long> connectionAttemptDurations = new ItemList<Long>();
+	/**
+	 * The response code of each attempt, 0 if no response was received
+	 */
+	public ItemList<Integer> connectionAttemptResponseCodes = new ItemList<Integer>();
+	/**
+	 * The amount of times the request was retried
+	 */
+	public int connectionRetryCount = 0;
+	/**
+	 * If the request is expected to have been sent on a connection kept alive from an earlier request. This is
+	 * estimated by {@link ConnectionPool}, as the platform does not report socket reuse
+	 */
+	public boolean connectionReused = false;
+	/**
+	 * The time in MS the request waited to be executed
+	 */
+	public long connectionQueueTime = -1;
+	/**
+	 * The time in MS the DNS lookup took, -1 if there was none or no metrics listener was set
+	 */
+	public long connectionDnsTime = -1;
+	/**
+	 * The time in MS the TCP connection took to open, -1 if there was none
+	 */
+	public long connectionConnectTime = -1;
+	/**
+	 * The time in MS the TLS handshake took, -1 if there was none
+	 */
+	public long connectionTlsTime = -1;
+	/**
+	 * The time in MS the request took to send once connected
+	 */
+	public long connectionSendTime = -1;
+	/**
+	 * The time in MS between the request being sent and the response headers being received
+	 */
+	public long connectionFirstByteTime = -1;
+	/**
+	 * The time in MS the response body took to receive
+	 */
+	public long connectionTransferTime = -1;
+	/**
+	 * The total time in MS from the request being started to it finishing
+	 */
+	public long connectionTotalTime = -1;
 
 	@Override public String toString()
 	{
-		return "ConnectionInfo " + hashCode() + "\n[\n    connectionUrl=" + connectionUrl + ", \n    connectionHeaders=" + connectionHeaders + ", \n    connectionSentData=" + connectionSentData + ", \n    connectionInitiationTime=" + connectionInitiationTime + ", \n    connectionResponseTime=" + connectionResponseTime + ", \n    connectionResponseCode=" + connectionResponseCode + ", \n    connectionResponseMessage=" + connectionResponseMessage + ", \n    connectionResponseHeaders=" + connectionResponseHeaders + ", \n    connectionMethod=" + connectionMethod + "\n]";
+		return "ConnectionInfo " + hashCode() + "\n[\n    connectionUrl=" + connectionUrl + ", \n    connectionHeaders=" + connectionHeaders + ", \n    connectionSentData=" + connectionSentData + ", \n    connectionInitiationTime=" + connectionInitiationTime + ", \n    connectionResponseTime=" + connectionResponseTime + ", \n    connectionResponseCode=" + connectionResponseCode + ", \n    connectionResponseMessage=" + connectionResponseMessage + ", \n    connectionResponseHeaders=" + connectionResponseHeaders + ", \n    connectionMethod=" + connectionMethod + ", \n    connectionSentBytes=" + connectionSentBytes + ", \n    connectionUncompressedSentBytes=" + connectionUncompressedSentBytes + ", \n    connectionReceivedBytes=" + connectionReceivedBytes + ", \n    connectionUncompressedReceivedBytes=" + connectionUncompressedReceivedBytes + ", \n    connectionFromCache=" + connectionFromCache + ", \n    connectionAttempts=" + connectionAttempts + ", \n    connectionAttemptDurations=" + connectionAttemptDurations + ", \n    connectionAttemptResponseCodes=" + connectionAttemptResponseCodes + ", \n    connectionRetryCount=" + connectionRetryCount + ", \n    connectionReused=" + connectionReused + ", \n    connectionQueueTime=" + connectionQueueTime + ", \n    connectionDnsTime=" + connectionDnsTime + ", \n    connectionConnectTime=" + connectionConnectTime + ", \n    connectionTlsTime=" + connectionTlsTime + ", \n    connectionSendTime=" + connectionSendTime + ", \n    connectionFirstByteTime=" + connectionFirstByteTime + ", \n    connectionTransferTime=" + connectionTransferTime + ", \n    connectionTotalTime=" + connectionTotalTime + "\n]";
 	}
 }
\ No newline at end of file
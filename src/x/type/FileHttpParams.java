@@ -1,5 +1,10 @@
 package x.type;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
 /**
  * @brief This class is used to create an object collection of files to use when posting with AsyncHttpClient.
  */
@@ -8,7 +13,8 @@ public class FileHttpParams
 	private ItemList<String> fieldNames;
 	private ItemList<String> fileNames;
 	private ItemList<String> fileTypes;
-	private ItemList<byte[]> files;
+	private ItemList<Object> files;
+	private ItemList<Long> fileLengths;
 	
 	/**
 	 * Default constructor
@@ -18,7 +24,8 @@ public class FileHttpParams
 		fieldNames = new ItemList<String>();
 		fileNames = new ItemList<String>();
 		fileTypes = new ItemList<String>();
-		files = new ItemList<byte[]>();
+		files = new ItemList<Object>();
+		fileLengths = new ItemList<Long>();
 	}		
 	
 	/**
@@ -29,11 +36,55 @@ public class FileHttpParams
 	 * @param fileContents The file contents as a byte array
 	 */
 	public void addFile(String fieldName, String fileName, String fileType, byte[] fileContents)
+	{
+		addSource(fieldName, fileName, fileType, fileContents, fileContents.length);
+	}
+	
+	/**
+	 * Adds a file to the collection. The file is streamed when the request is sent rather than loaded into memory
+	 * @param fieldName The field name to post
+	 * @param fileName The filename to post
+	 * @param fileType The filetype to post. Based on MIME types E.G. "image/png", "text/plain"
+	 * @param file The file to send
+	 */
+	public void addFile(String fieldName, String fileName, String fileType, File file)
+	{
+		addSource(fieldName, fileName, fileType, file, file.length());
+	}
+	
+	/**
+	 * Adds a stream to the collection. The stream is read when the request is sent, so it can only be sent once
+	 * @param fieldName The field name to post
+	 * @param fileName The filename to post
+	 * @param fileType The filetype to post. Based on MIME types E.G. "image/png", "text/plain"
+	 * @param stream The stream to send
+	 * @param length The amount of bytes that will be read from the stream, -1 if unknown
+	 */
+	public void addFile(String fieldName, String fileName, String fileType, InputStream stream, long length)
+	{
+		addSource(fieldName, fileName, fileType, stream, length);
+	}
+	
+	/**
+	 * Adds a file channel to the collection. The channel is read from its current position to the end when the request is sent
+	 * @param fieldName The field name to post
+	 * @param fileName The filename to post
+	 * @param fileType The filetype to post. Based on MIME types E.G. "image/png", "text/plain"
+	 * @param channel The channel to send
+	 * @throws IOException If the size of the channel could not be read
+	 */
+	public void addFile(String fieldName, String fileName, String fileType, FileChannel channel) throws IOException
+	{
+		addSource(fieldName, fileName, fileType, channel, channel.size() - channel.position());
+	}
+	
+	private void addSource(String fieldName, String fileName, String fileType, Object source, long length)
 	{
 		fieldNames.add(fieldName);
 		fileNames.add(fileName);
 		fileTypes.add(fileType);
-		files.add(fileContents);
+		files.add(source);
+		fileLengths.add(length);
 	}
 	
 	/**
@@ -78,10 +129,31 @@ public class FileHttpParams
 	/**
 	 * Gets the field data from an index
 	 * @param index The index
-	 * @return The field name
+	 * @return The file contents, or null if the file was added as a File, InputStream or FileChannel
 	 */
 	public byte[] getFileContents(int index)
+	{
+		Object source = files.get(index);
+		return source instanceof byte[] ? (byte[])source : null;
+	}
+	
+	/**
+	 * Gets the source of the file data from an index
+	 * @param index The index
+	 * @return The byte[], File, InputStream or FileChannel the file was added with
+	 */
+	public Object getFileSource(int index)
 	{
 		return files.get(index);
 	}
+	
+	/**
+	 * Gets the length of the file data from an index
+	 * @param index The index
+	 * @return The length in bytes, -1 if unknown
+	 */
+	public long getFileLength(int index)
+	{
+		return fileLengths.get(index);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+/**
+ * @brief x type is the type library which includes the commonly used data types in the X Library lib
+ *
+ * @author Callum Taylor
+**/
+package x.type;
+
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * @brief An immutable set of request headers compiled from one or more {@link HttpParams}.
+ *
+ * Headers are merged once when the set is compiled, with later params replacing earlier ones whatever the case
+ * of the name. Lookups are case-insensitive hash lookups, and {@link applyTo} sets the headers on a connection
+ * straight from arrays, so a compiled set can be reused by any amount of requests without allocating.
+ */
+public final class HeaderSet
+{
+	/**
+	 * A set with no headers
+	 */
+	public static final HeaderSet EMPTY = new HeaderSet(new String[0], new String[0]);
+
+	private final String[] mNames;
+	private final String[] mValues;
+	private final HashMap<String, Integer> mIndex;
+
+	private HeaderSet(String[] names, String[] values)
+	{
+		mNames = names;
+		mValues = values;
+		mIndex = new HashMap<String, Integer>(names.length * 4);
+
+		for (int index = 0; index < names.length; index++)
+		{
+			mIndex.put(names[index], index);
+			mIndex.put(names[index].toLowerCase(Locale.US), index);
+		}
+	}
+
+	/**
+	 * Compiles params into a header set
+	 * @param params The params to merge, later params replace headers of the same name in earlier ones. Null params are skipped
+	 * @return The compiled set
+	 */
+	public static HeaderSet compile(HttpParams... params)
+	{
+		return EMPTY.merge(params);
+	}
+
+	/**
+	 * Creates a new set with more headers merged in
+	 * @param params The params to merge, replacing headers of the same name in this set. Null params are skipped
+	 * @return The new set, or this set if there was nothing to merge
+	 */
+	public HeaderSet merge(HttpParams... params)
+	{
+		int extra = 0;
+		for (HttpParams param : params)
+		{
+			if (param != null) extra += param.getHeaderList().size();
+		}
+
+		if (extra == 0)
+		{
+			return this;
+		}
+
+		String[] names = new String[mNames.length + extra];
+		String[] values = new String[mNames.length + extra];
+		HashMap<String, Integer> positions = new HashMap<String, Integer>();
+		int count = 0;
+
+		for (int index = 0; index < mNames.length; index++)
+		{
+			names[count] = mNames[index];
+			values[count] = mValues[index];
+			positions.put(mNames[index].toLowerCase(Locale.US), count++);
+		}
+
+		for (HttpParams param : params)
+		{
+			if (param == null) continue;
+
+			ItemList<String[]> headers = param.getHeaderList();
+			int size = headers.size();
+
+			for (int index = 0; index < size; index++)
+			{
+				String[] header = headers.get(index);
+				if (header[0] == null) continue;
+
+				String key = header[0].toLowerCase(Locale.US);
+				Integer position = positions.get(key);
+
+				if (position != null)
+				{
+					names[position] = header[0];
+					values[position] = header[1];
+				}
+				else
+				{
+					names[count] = header[0];
+					values[count] = header[1];
+					positions.put(key, count++);
+				}
+			}
+		}
+
+		String[] mergedNames = new String[count];
+		String[] mergedValues = new String[count];
+		System.arraycopy(names, 0, mergedNames, 0, count);
+		System.arraycopy(values, 0, mergedValues, 0, count);
+
+		return new HeaderSet(mergedNames, mergedValues);
+	}
+
+	/**
+	 * Creates a new set without a header
+	 * @param name The name of the header to remove, in any case
+	 * @return The new set, or this set if it doesn't have the header
+	 */
+	public HeaderSet without(String name)
+	{
+		Integer position = find(name);
+		if (position == null)
+		{
+			return this;
+		}
+
+		String[] names = new String[mNames.length - 1];
+		String[] values = new String[mNames.length - 1];
+		int count = 0;
+
+		for (int index = 0; index < mNames.length; index++)
+		{
+			if (index == position) continue;
+
+			names[count] = mNames[index];
+			values[count++] = mValues[index];
+		}
+
+		return new HeaderSet(names, values);
+	}
+
+	/**
+	 * Gets the value of a header
+	 * @param name The name of the header, in any case
+	 * @return The value, or null if the header isn't set
+	 */
+	public String get(String name)
+	{
+		Integer position = find(name);
+		return position == null ? null : mValues[position];
+	}
+
+	/**
+	 * Checks if a header is set
+	 * @param name The name of the header, in any case
+	 * @return True if the header is set
+	 */
+	public boolean contains(String name)
+	{
+		return find(name) != null;
+	}
+
+	/**
+	 * Gets the amount of headers
+	 * @return The amount of headers
+	 */
+	public int size()
+	{
+		return mNames.length;
+	}
+
+	/**
+	 * Gets the name of a header
+	 * @param index The index of the header
+	 * @return The name
+	 */
+	public String getName(int index)
+	{
+		return mNames[index];
+	}
+
+	/**
+	 * Gets the value of a header
+	 * @param index The index of the header
+	 * @return The value
+	 */
+	public String getValue(int index)
+	{
+		return mValues[index];
+	}
+
+	/**
+	 * Sets the headers on a connection
+	 * @param conn The connection, which must not be connected yet
+	 */
+	public void applyTo(URLConnection conn)
+	{
+		for (int index = 0; index < mNames.length; index++)
+		{
+			conn.setRequestProperty(mNames[index], mValues[index]);
+		}
+	}
+
+	private Integer find(String name)
+	{
+		if (name == null) return null;
+
+		Integer position = mIndex.get(name);
+		if (position == null)
+		{
+			position = mIndex.get(name.toLowerCase(Locale.US));
+		}
+
+		return position;
+	}
+
+	@Override public String toString()
+	{
+		StringBuilder out = new StringBuilder("{");
+
+		for (int index = 0; index < mNames.length; index++)
+		{
+			if (index > 0) out.append(", ");
+			out.append(mNames[index]).append(": ").append(mValues[index]);
+		}
+
+		return out.append("}").toString();
+	}
+}
@@ -16,6 +16,7 @@ import java.net.URLEncoder;
 public class HttpParams implements Serializable
 {
 	private ItemList<String[]> queryString;
+	private transient volatile int modCount = 0;
 
 	/**
 	 * Default Constructor
@@ -105,6 +106,8 @@ public class HttpParams implements Serializable
 			String[] parts = queryString.get(index);
 			parts[1] = URLEncoder.encode(parts[1] == null ? "" : parts[1]);
 		}
+
+		modCount++;
 	}
 
 	/**
@@ -118,6 +121,8 @@ public class HttpParams implements Serializable
 			String[] parts = queryString.get(index);
 			parts[1] = URLDecoder.decode(parts[1] == null ? "" : parts[1]);
 		}
+
+		modCount++;
 	}
 
 	/**
@@ -161,6 +166,7 @@ public class HttpParams implements Serializable
 			if (queryString.get(dataIndex)[0].equals(key))
 			{
 				queryString.get(dataIndex)[1] = value;
+				modCount++;
 				return;
 			}
 		}
@@ -205,6 +211,7 @@ public class HttpParams implements Serializable
 	public void addParam(String key, String value)
 	{
 		queryString.add(new String[]{key, value});
+		modCount++;
 	}
 
 	/**
@@ -216,13 +223,40 @@ public class HttpParams implements Serializable
 		if (params == null) return;
 
 		queryString.addAll(params.queryString);
+		modCount++;
+	}
+
+	/**
+	 * Gets the amount of times the params have been changed through their methods. Used to tell when a
+	 * {@link HeaderSet} compiled from them is out of date
+	 * @return The change count
+	 */
+	public int getModCount()
+	{
+		return modCount;
 	}
 
 	/**
-	 * Get the headers as an array list
+	 * Get a copy of the headers as an array list. Changing the copy does not change the params, use the add
+	 * and remove methods for that
 	 * @return The headers as the array list
 	 */
 	public ItemList<String[]> getHeaders()
+	{
+		ItemList<String[]> headers = new ItemList<String[]>();
+		for (String[] header : queryString)
+		{
+			headers.add(header.clone());
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Gets the headers for reading only, without copying them
+	 * @return The headers as the array list
+	 */
+	ItemList<String[]> getHeaderList()
 	{
 		return queryString;
 	}
@@ -0,0 +1,99 @@
+/**
+ * @brief x type is the type library which includes the commonly used data types in the X Library lib
+ *
+ * @author Callum Taylor
+**/
+package x.type;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * @brief The finished response of a request, as passed to an {@link x.lib.HttpFuture}
+ */
+public class HttpResult
+{
+	private final ConnectionInfo mConnectionInfo;
+	private final Object mBody;
+
+	/**
+	 * Default constructor
+	 * @param connectionInfo The connection info of the request
+	 * @param body The body of the response, a String, byte[] or File depending on the request mode. Can be null
+	 */
+	public HttpResult(ConnectionInfo connectionInfo, Object body)
+	{
+		mConnectionInfo = connectionInfo;
+		mBody = body;
+	}
+
+	/**
+	 * Gets the response code
+	 * @return The response code, or 0 or less if the server could not be reached
+	 */
+	public int getResponseCode()
+	{
+		return mConnectionInfo.connectionResponseCode;
+	}
+
+	/**
+	 * Gets the response message
+	 * @return The response message
+	 */
+	public String getResponseMessage()
+	{
+		return mConnectionInfo.connectionResponseMessage;
+	}
+
+	/**
+	 * Checks if the response code is >= 200 and < 300
+	 * @return True if the request succeeded
+	 */
+	public boolean isSuccessful()
+	{
+		return (mConnectionInfo.connectionResponseCode / 100) == 2;
+	}
+
+	/**
+	 * Gets the body of the response
+	 * @return The body, a String, byte[] or File depending on the request mode. Can be null
+	 */
+	public Object getBody()
+	{
+		return mBody;
+	}
+
+	/**
+	 * Gets the body of the response as a string
+	 * @return The body decoded as UTF-8 if it is a byte[], or null if there was no body
+	 */
+	public String getBodyAsString()
+	{
+		if (mBody instanceof byte[])
+		{
+			try
+			{
+				return new String((byte[])mBody, "UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				return new String((byte[])mBody);
+			}
+		}
+
+		return mBody == null ? null : mBody.toString();
+	}
+
+	/**
+	 * Gets the connection info of the request
+	 * @return The connection info
+	 */
+	public ConnectionInfo getConnectionInfo()
+	{
+		return mConnectionInfo;
+	}
+
+	@Override public String toString()
+	{
+		return mConnectionInfo.connectionResponseCode + " " + mConnectionInfo.connectionResponseMessage;
+	}
+}